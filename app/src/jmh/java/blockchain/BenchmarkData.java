@@ -0,0 +1,30 @@
+package blockchain;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/** benchmark에서 쓰는 트랜잭션/블록 생성 도우미 */
+final class BenchmarkData {
+    private static final Wallet WALLET = new Wallet();
+
+    private BenchmarkData() {}
+
+    static List<Transaction> transactions(int count, int dataSize, boolean signed) {
+        String padding = "x".repeat(Math.max(0, dataSize));
+        List<Transaction> txs = new ArrayList<>(count);
+        for (int i = 0; i < count; i++) {
+            Transaction tx = new Transaction(WALLET.getPublicKey(), "recipient-" + i, i + padding, i % 100);
+            if (signed) {
+                tx.signTransaction(WALLET.getPrivateKey());
+            }
+            txs.add(tx);
+        }
+        return txs;
+    }
+
+    static Block block(List<Transaction> txs) {
+        BlockHeader header = new BlockHeader(CryptoUtil.ZERO_HASH, MerkleTree.getMerkleRoot(txs),
+                System.currentTimeMillis(), 1, Difficulty.INITIAL_BITS, 0);
+        return new Block(header, txs);
+    }
+}
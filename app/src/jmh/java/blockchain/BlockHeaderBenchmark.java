@@ -0,0 +1,46 @@
+package blockchain;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/** 채굴 루프 한 번(nonce 하나)에 해당하는 비용 */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class BlockHeaderBenchmark {
+    BlockHeader header;
+    BlockHeader.NonceHasher hasher;
+    byte[] target;
+    long nonce;
+
+    @Setup
+    public void setup() {
+        header = new BlockHeader(CryptoUtil.ZERO_HASH, CryptoUtil.hashSHA256(""), System.currentTimeMillis(), 1, Difficulty.INITIAL_BITS, 0);
+        hasher = new BlockHeader.NonceHasher(header);
+        target = Difficulty.toTargetBytes(Difficulty.INITIAL_BITS);
+    }
+
+    @Benchmark
+    public String calculateHash() {
+        header.setNonce(nonce++);
+        return header.calculateHash();
+    }
+
+    @Benchmark
+    public boolean midstateHashAndCompare() {
+        return CryptoUtil.meetsTarget(hasher.hash(nonce++), target);
+    }
+}
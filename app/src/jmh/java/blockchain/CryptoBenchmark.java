@@ -0,0 +1,45 @@
+package blockchain;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class CryptoBenchmark {
+    @Param({"64", "1024", "16384"})
+    int payloadSize;
+
+    String text;
+    byte[] bytes;
+
+    @Setup
+    public void setup() {
+        text = "a".repeat(payloadSize);
+        bytes = new byte[payloadSize];
+    }
+
+    @Benchmark
+    public String hashSHA256String() {
+        return CryptoUtil.hashSHA256(text);
+    }
+
+    @Benchmark
+    public byte[] sha256Bytes() {
+        return CryptoUtil.sha256(bytes);
+    }
+}
@@ -0,0 +1,72 @@
+package blockchain;
+
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/** 이미 poolSize 개가 들어 있는 mempool에서의 연산 비용 */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(value = 1, jvmArgsAppend = "-Xmx4g")
+public class MempoolBenchmark {
+    private static final int EXTRA = 1024;
+
+    @Param({"1000", "100000", "500000"})
+    int poolSize;
+
+    Mempool mempool;
+    List<Transaction> extra;
+    int next;
+
+    @Setup
+    public void setup() {
+        List<Transaction> txs = BenchmarkData.transactions(poolSize + EXTRA, 16, false);
+        extra = txs.subList(poolSize, txs.size());
+        mempool = new Mempool(poolSize + EXTRA);
+        for (Transaction tx : txs.subList(0, poolSize)) {
+            mempool.addTransaction(tx);
+        }
+    }
+
+    /** 새 트랜잭션 추가 후 제거 (pool 크기는 유지) */
+    @Benchmark
+    public boolean addAndRemove() {
+        Transaction tx = extra.get(next++ % EXTRA);
+        boolean added = mempool.addTransaction(tx);
+        mempool.removeTransactions(List.of(tx));
+        return added;
+    }
+
+    @Benchmark
+    public boolean rejectDuplicate() {
+        Transaction tx = extra.get(next++ % EXTRA);
+        mempool.addTransaction(tx);
+        boolean added = mempool.addTransaction(tx);
+        mempool.removeTransactions(List.of(tx));
+        return added;
+    }
+
+    /** 블록 하나 분량을 꺼냈다가 다시 넣는다 */
+    @Benchmark
+    public int selectForBlock() {
+        List<Transaction> txs = mempool.getTransactionsForBlock(100);
+        for (Transaction tx : txs) {
+            mempool.addTransaction(tx);
+        }
+        return txs.size();
+    }
+}
@@ -0,0 +1,66 @@
+package blockchain;
+
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class MerkleTreeBenchmark {
+    @Param({"10", "1000", "100000"})
+    int txCount;
+
+    List<Transaction> txs;
+    List<Transaction> extra;
+    MerkleTree tree;
+    MerkleTree growing;
+    String lastID;
+    int next;
+
+    @Setup
+    public void setup() {
+        txs = BenchmarkData.transactions(txCount, 16, false);
+        extra = BenchmarkData.transactions(1024, 32, false);
+        tree = new MerkleTree(txs);
+        lastID = txs.get(txCount - 1).getTransactionID();
+    }
+
+    /** append 벤치마크는 iteration 동안 tree가 자라므로 매번 txCount 크기로 되돌린다 */
+    @Setup(Level.Iteration)
+    public void resetGrowingTree() {
+        growing = new MerkleTree(txs);
+    }
+
+    @Benchmark
+    public String getMerkleRoot() {
+        return MerkleTree.getMerkleRoot(txs);
+    }
+
+    /** 템플릿에 트랜잭션 하나를 추가하는 비용 (오른쪽 끝 경로만 다시 계산) */
+    @Benchmark
+    public byte[] append() {
+        growing.append(extra.get(next++ & 1023));
+        return growing.getRoot();
+    }
+
+    @Benchmark
+    public MerkleTree.Proof getProof() {
+        return tree.getProof(lastID);
+    }
+}
@@ -0,0 +1,103 @@
+package blockchain;
+
+import java.nio.ByteBuffer;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.google.gson.Gson;
+
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class SerializationBenchmark {
+    @Param({"1", "100", "1000"})
+    int txCount;
+
+    @Param({"16", "1024"})
+    int dataSize;
+
+    Gson gson = new Gson();
+    Transaction tx;
+    Block block;
+    String txJson;
+    String blockJson;
+    byte[] txBinary;
+    byte[] blockBinary;
+
+    @Setup
+    public void setup() {
+        List<Transaction> txs = BenchmarkData.transactions(txCount, dataSize, true);
+        tx = txs.get(0);
+        block = BenchmarkData.block(txs);
+        txJson = gson.toJson(tx);
+        blockJson = gson.toJson(block);
+        txBinary = BinaryCodec.encodeTransaction(tx);
+        blockBinary = BinaryCodec.encodeBlock(block);
+    }
+
+    @Benchmark
+    public String encodeTransaction() {
+        return gson.toJson(tx);
+    }
+
+    @Benchmark
+    public Transaction decodeTransaction() {
+        return gson.fromJson(txJson, Transaction.class);
+    }
+
+    @Benchmark
+    public String encodeBlock() {
+        return gson.toJson(block);
+    }
+
+    @Benchmark
+    public Block decodeBlock() {
+        return gson.fromJson(blockJson, Block.class);
+    }
+
+    @Benchmark
+    public byte[] encodeTransactionBinary() {
+        return BinaryCodec.encodeTransaction(tx);
+    }
+
+    @Benchmark
+    public Transaction decodeTransactionBinary() {
+        return BinaryCodec.decodeTransaction(ByteBuffer.wrap(txBinary));
+    }
+
+    @Benchmark
+    public byte[] encodeBlockBinary() {
+        return BinaryCodec.encodeBlock(block);
+    }
+
+    /** 모든 트랜잭션까지 디코딩한다. gson decodeBlock과 같은 양의 일 */
+    @Benchmark
+    public Block decodeBlockBinary() {
+        Block decoded = BinaryCodec.decodeBlock(ByteBuffer.wrap(blockBinary));
+        for (Transaction t : decoded.getTransactions()) {
+            t.getTransactionID();
+        }
+        return decoded;
+    }
+
+    /** 헤더만 보고 버리는 경우 (이미 가진 블록을 relay 받을 때) */
+    @Benchmark
+    public Block decodeBlockBinaryLazy() {
+        return BinaryCodec.decodeBlock(ByteBuffer.wrap(blockBinary));
+    }
+}
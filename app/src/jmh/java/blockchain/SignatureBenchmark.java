@@ -0,0 +1,82 @@
+package blockchain;
+
+import java.nio.charset.StandardCharsets;
+import java.security.PublicKey;
+import java.util.Base64;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * 트랜잭션 하나 크기의 데이터에 대한 서명/검증과 공개키 디코딩.
+ * String API (매번 Signature/KeyFactory 생성, Base64 디코딩) 와
+ * byte[] API + thread별 엔진 + PublicKeyCache 를 비교한다.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@Threads(4)
+public class SignatureBenchmark {
+    Wallet wallet;
+    String data;
+    byte[] dataBytes;
+    byte[] signature;
+    String encodedKey;
+    byte[] encodedKeyBytes;
+
+    @Setup
+    public void setup() {
+        wallet = new Wallet();
+        Transaction tx = new Transaction(wallet.getPublicKey(), "recipient", 10, 1, 0, "payment");
+        dataBytes = tx.getDataToSignBytes();
+        // 서명 입력과 같은 길이의 문자열. String을 받는 sign 경로와 비교한다
+        data = new String(dataBytes, StandardCharsets.ISO_8859_1);
+        signature = CryptoUtil.sign(wallet.getPrivateKey(), dataBytes);
+        encodedKey = CryptoUtil.keyToString(wallet.getPublicKey());
+        encodedKeyBytes = Base64.getDecoder().decode(encodedKey);
+    }
+
+    @Benchmark
+    public byte[] signString() {
+        return CryptoUtil.sign(wallet.getPrivateKey(), data);
+    }
+
+    @Benchmark
+    public byte[] signBytes() {
+        return CryptoUtil.sign(wallet.getPrivateKey(), dataBytes);
+    }
+
+    /** 검증할 때마다 sender 키를 디코딩하던 이전 경로 */
+    @Benchmark
+    public boolean verifyDecodingKey() {
+        return CryptoUtil.verify(CryptoUtil.decodePublicKey(encodedKeyBytes), dataBytes, signature);
+    }
+
+    @Benchmark
+    public boolean verifyCachedKey() {
+        return CryptoUtil.verify(encodedKeyBytes, dataBytes, signature);
+    }
+
+    @Benchmark
+    public PublicKey decodePublicKey() {
+        return CryptoUtil.decodePublicKey(encodedKeyBytes);
+    }
+
+    @Benchmark
+    public PublicKey cachedPublicKey() {
+        return CryptoUtil.stringToPublicKey(encodedKey);
+    }
+}
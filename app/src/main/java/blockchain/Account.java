@@ -0,0 +1,26 @@
+package blockchain;
+
+/**
+ * 주소 하나의 상태. 불변 객체이며, 상태가 바뀌면 새 Account를 만든다.
+ * nonce는 이 주소가 보낼 다음 트랜잭션의 번호로, 같은 트랜잭션의 재사용(double-spend)을 막는다.
+ */
+public final class Account {
+    public static final Account EMPTY = new Account(0, 0);
+
+    private final long balance;
+    private final long nonce;
+
+    public Account(long balance, long nonce) {
+        this.balance = balance;
+        this.nonce = nonce;
+    }
+
+    public long getBalance() { return balance; }
+    public long getNonce() { return nonce; }
+    public boolean isEmpty() { return balance == 0 && nonce == 0; }
+
+    @Override
+    public String toString() {
+        return "Account[balance=" + balance + ", nonce=" + nonce + "]";
+    }
+}
@@ -0,0 +1,109 @@
+package blockchain;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.SocketException;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * daemon의 관리용 socket. 127.0.0.1:&lt;port&gt; 에서 한 줄에 하나씩 Commands 명령을 받는다.
+ * 각 응답은 "." 한 줄로 끝나므로 script에서 응답의 끝을 알 수 있다.
+ *
+ *   $ printf 'status\nquit\n' | nc 127.0.0.1 9000
+ *
+ * 'stop' 은 daemon을 정상 종료시키고, 'quit' 은 연결만 닫는다. loopback에만 bind 한다.
+ */
+public class AdminServer {
+    private static final int MAX_CLIENTS = 2;
+    // 한 줄이 이보다 길면 연결을 닫는다
+    private static final int MAX_LINE_LENGTH = 16 * 1024;
+
+    private final Node node;
+    private final Runnable onStop;
+    private final ServerSocket server;
+    private final ExecutorService clients;
+    private volatile boolean running;
+
+    public AdminServer(Node node, int port, Runnable onStop) throws IOException {
+        this.node = node;
+        this.onStop = onStop;
+        this.server = new ServerSocket(port, MAX_CLIENTS, InetAddress.getLoopbackAddress());
+        this.clients = Executors.newFixedThreadPool(MAX_CLIENTS, r -> {
+            Thread t = new Thread(r, "admin-client");
+            t.setDaemon(true);
+            return t;
+        });
+    }
+
+    public void start() {
+        running = true;
+        Thread acceptor = new Thread(this::acceptLoop, "admin-server");
+        acceptor.setDaemon(true);
+        acceptor.start();
+        Log.info("Admin socket: " + server.getInetAddress().getHostAddress() + ":" + getPort());
+    }
+
+    public int getPort() { return server.getLocalPort(); }
+
+    public void stop() {
+        running = false;
+        try {
+            server.close();
+        } catch (IOException e) {
+            Log.warn("Admin socket close failed.");
+        }
+        clients.shutdownNow();
+    }
+
+    private void acceptLoop() {
+        while (running) {
+            try {
+                Socket socket = server.accept();
+                clients.execute(() -> serve(socket));
+            } catch (IOException e) {
+                if (running) { Log.warn("Admin socket accept failed: " + e.getMessage()); }
+            }
+        }
+    }
+
+    private void serve(Socket socket) {
+        try (socket;
+             BufferedReader in = new BufferedReader(new InputStreamReader(socket.getInputStream(), StandardCharsets.UTF_8));
+             Writer out = new OutputStreamWriter(socket.getOutputStream(), StandardCharsets.UTF_8)) {
+            String line;
+            while (running && (line = in.readLine()) != null) {
+                if (line.length() > MAX_LINE_LENGTH) { return; }
+                String command = line.trim();
+                if (command.isEmpty()) { continue; }
+                if (command.equalsIgnoreCase("quit")) { return; }
+                if (command.equalsIgnoreCase("stop") || command.equalsIgnoreCase("exit")) {
+                    respond(out, "Stopping.\n");
+                    Log.info("Admin: stop requested.");
+                    // 이 thread는 stop()에서 중단되므로 종료는 다른 thread에서 한다
+                    Thread stopper = new Thread(onStop, "admin-stop");
+                    stopper.start();
+                    return;
+                }
+                respond(out, Commands.execute(node, command));
+            }
+        } catch (SocketException e) {
+            // client가 먼저 연결을 끊었다
+        } catch (IOException | RuntimeException e) {
+            Log.warn("Admin command failed: " + e.getMessage());
+        }
+    }
+
+    private static void respond(Writer out, String text) throws IOException {
+        out.write(text);
+        out.write(".\n");
+        out.flush();
+    }
+}
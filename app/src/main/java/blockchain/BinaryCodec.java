@@ -0,0 +1,332 @@
+package blockchain;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.AbstractList;
+import java.util.Arrays;
+import java.util.Base64;
+import java.util.List;
+import java.util.RandomAccess;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * Block, BlockHeader, Transaction의 reflection 없는 binary codec. PACKED wire 메시지와 BlockStore가 사용한다.
+ *
+ * Transaction : [id][sender][recipient][data] 문자열, [amount][fee][nonce] zigzag varint, [timestamp] 8바이트,
+ *               [signature] (varint 길이 + 1, 0이면 null)
+ * Block       : [BlockHeader.toBytes()][tx count(4)]{[length(4)][Transaction]}
+ * 서명 입력    : [sender][recipient][data] 문자열(UTF-8), [amount][fee][nonce][timestamp] 각 8바이트
+ *
+ * 문자열은 [tag][varint 길이][bytes] 이며 tag는 0 = null, 1 = Base64(ID, 공개키)를 푼 원래 바이트,
+ * 2 = UTF-8 이다. Base64로 다시 인코딩했을 때 원래 문자열과 같을 때만 1을 쓰므로 내용이 그대로 보존된다.
+ *
+ * 블록을 디코딩하면 트랜잭션은 위치만 기록해 두고 처음 접근할 때 디코딩한다(LazyTransactions).
+ * 그대로 다시 인코딩하면 트랜잭션 구간은 디코딩 없이 복사한다.
+ */
+public final class BinaryCodec {
+    private static final byte NULL = 0;
+    private static final byte BASE64 = 1;
+    private static final byte UTF8 = 2;
+
+    // 인코딩용 thread별 작업 버퍼. 결과만 새 배열로 복사한다
+    private static final int MAX_RETAINED_BUFFER = 4 * 1024 * 1024;
+    private static final ThreadLocal<byte[]> scratch = ThreadLocal.withInitial(() -> new byte[64 * 1024]);
+
+    private BinaryCodec() {}
+
+    public static byte[] encodeTransaction(Transaction tx) {
+        Output out = new Output();
+        writeTransaction(out, tx);
+        return out.toByteArray();
+    }
+
+    /**
+     * 트랜잭션 ID hash와 서명의 입력. 모든 field의 경계가 길이로 정해지므로
+     * 주소나 data에 구분자가 들어 있어도 다른 트랜잭션으로 읽힐 수 없다.
+     */
+    public static byte[] encodeSigningData(Transaction tx) {
+        Output out = new Output();
+        writeString(out, tx.getSenderPublicKey(), false);
+        writeString(out, tx.getRecipientAddress(), false);
+        writeString(out, tx.getData(), false);
+        out.putLong(tx.getAmount());
+        out.putLong(tx.getFee());
+        out.putLong(tx.getNonce());
+        out.putLong(tx.getTimestamp());
+        return out.toByteArray();
+    }
+
+    public static Transaction decodeTransaction(ByteBuffer in) {
+        String id = readString(in);
+        String sender = readString(in);
+        String recipient = readString(in);
+        String data = readString(in);
+        long amount = readVarLong(in);
+        long fee = readVarLong(in);
+        long nonce = readVarLong(in);
+        long timestamp = in.getLong();
+        byte[] signature = null;
+        int signatureLength = readVarInt(in) - 1;
+        if (signatureLength >= 0) {
+            signature = new byte[checkLength(in, signatureLength)];
+            in.get(signature);
+        }
+        return new Transaction(id, sender, recipient, data, amount, fee, nonce, timestamp, signature);
+    }
+
+    public static byte[] encodeBlock(Block block) {
+        Output out = new Output();
+        writeBlock(out, block);
+        return out.toByteArray();
+    }
+
+    /**
+     * 헤더와 트랜잭션 위치만 읽는다. 트랜잭션 구간이 잘못되어 있으면 여기서 예외가 나고,
+     * 트랜잭션 하나의 내용이 잘못된 경우는 그 트랜잭션을 처음 읽을 때 예외가 난다.
+     * in의 내용은 이후 바뀌면 안 된다.
+     */
+    public static Block decodeBlock(ByteBuffer in) {
+        BlockHeader header = BlockHeader.fromBytes(in);
+        int count = in.getInt();
+        if (count < 0 || count > in.remaining() / Integer.BYTES) {
+            throw new IllegalArgumentException("Invalid transaction count " + count);
+        }
+        ByteBuffer section = in.slice();
+        int[] offsets = new int[count + 1];
+        int position = 0;
+        for (int i = 0; i < count; i++) {
+            int length = section.getInt(position);
+            if (length < 0 || length > section.limit() - position - Integer.BYTES) {
+                throw new IllegalArgumentException("Invalid transaction length " + length);
+            }
+            offsets[i] = position;
+            position += Integer.BYTES + length;
+        }
+        offsets[count] = position;
+        in.position(in.position() + position);
+        return new Block(header, new LazyTransactions(section.limit(position), offsets));
+    }
+
+    private static void writeBlock(Output out, Block block) {
+        out.put(block.getHeader().toBytes());
+        List<Transaction> txs = block.getTransactions();
+        out.putInt(txs.size());
+        if (txs instanceof LazyTransactions lazy) {
+            // 받은 그대로의 트랜잭션 구간을 복사한다
+            out.put(lazy.section.duplicate().position(0));
+            return;
+        }
+        for (Transaction tx : txs) {
+            int lengthAt = out.reserveInt();
+            writeTransaction(out, tx);
+            out.putInt(lengthAt, out.position() - lengthAt - Integer.BYTES);
+        }
+    }
+
+    private static void writeTransaction(Output out, Transaction tx) {
+        writeString(out, tx.getTransactionID(), true);
+        writeString(out, tx.getSenderPublicKey(), true);
+        writeString(out, tx.getRecipientAddress(), true);
+        writeString(out, tx.getData(), false);
+        writeVarLong(out, tx.getAmount());
+        writeVarLong(out, tx.getFee());
+        writeVarLong(out, tx.getNonce());
+        out.putLong(tx.getTimestamp());
+        byte[] signature = tx.getSignature();
+        if (signature == null) {
+            writeVarInt(out, 0);
+        } else {
+            writeVarInt(out, signature.length + 1);
+            out.put(signature);
+        }
+    }
+
+    private static void writeString(Output out, String value, boolean maybeBase64) {
+        if (value == null) {
+            out.put(NULL);
+            return;
+        }
+        if (maybeBase64) {
+            byte[] raw = decodeCanonicalBase64(value);
+            if (raw != null) {
+                out.put(BASE64);
+                writeVarInt(out, raw.length);
+                out.put(raw);
+                return;
+            }
+        }
+        byte[] utf8 = value.getBytes(StandardCharsets.UTF_8);
+        out.put(UTF8);
+        writeVarInt(out, utf8.length);
+        out.put(utf8);
+    }
+
+    /** @return 다시 인코딩하면 value와 같아지는 Base64이면 원래 바이트, 아니면 null */
+    private static byte[] decodeCanonicalBase64(String value) {
+        if (value.isEmpty() || value.length() % 4 != 0) { return null; }
+        try {
+            byte[] raw = Base64.getDecoder().decode(value);
+            return Base64.getEncoder().encodeToString(raw).equals(value) ? raw : null;
+        } catch (IllegalArgumentException e) {
+            return null;
+        }
+    }
+
+    private static String readString(ByteBuffer in) {
+        byte tag = in.get();
+        if (tag == NULL) { return null; }
+        byte[] bytes = new byte[checkLength(in, readVarInt(in))];
+        in.get(bytes);
+        if (tag == BASE64) { return Base64.getEncoder().encodeToString(bytes); }
+        if (tag == UTF8) { return new String(bytes, StandardCharsets.UTF_8); }
+        throw new IllegalArgumentException("Unknown string tag " + tag);
+    }
+
+    private static int checkLength(ByteBuffer in, int length) {
+        if (length < 0 || length > in.remaining()) {
+            throw new IllegalArgumentException("Invalid length " + length);
+        }
+        return length;
+    }
+
+    private static void writeVarInt(Output out, int value) {
+        while ((value & ~0x7F) != 0) {
+            out.put((byte) ((value & 0x7F) | 0x80));
+            value >>>= 7;
+        }
+        out.put((byte) value);
+    }
+
+    private static int readVarInt(ByteBuffer in) {
+        int value = 0;
+        for (int shift = 0; shift < 32; shift += 7) {
+            byte b = in.get();
+            value |= (b & 0x7F) << shift;
+            if (b >= 0) { return value; }
+        }
+        throw new IllegalArgumentException("Varint too long");
+    }
+
+    /** 음수도 짧게 쓰도록 zigzag로 바꿔 쓴다 */
+    private static void writeVarLong(Output out, long value) {
+        long zigzag = (value << 1) ^ (value >> 63);
+        while ((zigzag & ~0x7FL) != 0) {
+            out.put((byte) ((zigzag & 0x7F) | 0x80));
+            zigzag >>>= 7;
+        }
+        out.put((byte) zigzag);
+    }
+
+    private static long readVarLong(ByteBuffer in) {
+        long zigzag = 0;
+        for (int shift = 0; shift < 64; shift += 7) {
+            byte b = in.get();
+            zigzag |= (long) (b & 0x7F) << shift;
+            if (b >= 0) { return (zigzag >>> 1) ^ -(zigzag & 1); }
+        }
+        throw new IllegalArgumentException("Varint too long");
+    }
+
+    /**
+     * 블록의 트랜잭션 목록. 각 트랜잭션은 처음 get 할 때 디코딩해서 보관한다.
+     * 검증 pipeline이 여러 thread에서 나눠 읽으므로 thread-safe 하다.
+     */
+    static final class LazyTransactions extends AbstractList<Transaction> implements RandomAccess {
+        // [length(4)][Transaction] 의 연속. position 0부터 시작한다
+        private final ByteBuffer section;
+        // i번째 트랜잭션 record의 시작 위치. 마지막 원소는 구간의 끝
+        private final int[] offsets;
+        private final AtomicReferenceArray<Transaction> decoded;
+
+        LazyTransactions(ByteBuffer section, int[] offsets) {
+            this.section = section.asReadOnlyBuffer();
+            this.offsets = offsets;
+            this.decoded = new AtomicReferenceArray<>(offsets.length - 1);
+        }
+
+        @Override
+        public Transaction get(int index) {
+            Transaction tx = decoded.get(index);
+            if (tx != null) { return tx; }
+            ByteBuffer record = section.duplicate();
+            record.limit(offsets[index + 1]).position(offsets[index] + Integer.BYTES);
+            tx = decodeTransaction(record);
+            if (record.hasRemaining()) {
+                throw new IllegalArgumentException("Trailing bytes in transaction " + index);
+            }
+            return decoded.compareAndSet(index, null, tx) ? tx : decoded.get(index);
+        }
+
+        @Override
+        public int size() { return offsets.length - 1; }
+    }
+
+    /** thread별 작업 버퍼 위에 쓰는 출력. 모자라면 두 배로 늘린다 */
+    private static final class Output {
+        private byte[] buffer = scratch.get();
+        private int position;
+
+        int position() { return position; }
+
+        void put(byte b) {
+            ensure(1);
+            buffer[position++] = b;
+        }
+
+        void put(byte[] bytes) {
+            ensure(bytes.length);
+            System.arraycopy(bytes, 0, buffer, position, bytes.length);
+            position += bytes.length;
+        }
+
+        void put(ByteBuffer bytes) {
+            int length = bytes.remaining();
+            ensure(length);
+            bytes.get(buffer, position, length);
+            position += length;
+        }
+
+        void putInt(int value) {
+            ensure(Integer.BYTES);
+            putInt(position, value);
+            position += Integer.BYTES;
+        }
+
+        void putInt(int at, int value) {
+            buffer[at] = (byte) (value >>> 24);
+            buffer[at + 1] = (byte) (value >>> 16);
+            buffer[at + 2] = (byte) (value >>> 8);
+            buffer[at + 3] = (byte) value;
+        }
+
+        int reserveInt() {
+            ensure(Integer.BYTES);
+            int at = position;
+            position += Integer.BYTES;
+            return at;
+        }
+
+        void putLong(long value) {
+            ensure(Long.BYTES);
+            for (int i = Long.BYTES - 1; i >= 0; i--) {
+                buffer[position + i] = (byte) value;
+                value >>>= 8;
+            }
+            position += Long.BYTES;
+        }
+
+        byte[] toByteArray() {
+            byte[] result = Arrays.copyOf(buffer, position);
+            if (buffer.length <= MAX_RETAINED_BUFFER) {
+                scratch.set(buffer);
+            }
+            return result;
+        }
+
+        private void ensure(int extra) {
+            if (position + extra > buffer.length) {
+                buffer = Arrays.copyOf(buffer, Math.max(buffer.length * 2, position + extra));
+            }
+        }
+    }
+}
@@ -22,7 +22,7 @@ public class Block {
         return "Block[" +
                 "Hash=" + hash.substring(0, 10) + "..., " +
                 "Number=" + header.getNumber() + ", " +
-                "ParentHash=" + (header.getParentHash().isEmpty() || header.getParentHash().equals("0") ? "GENESIS(0)" : header.getParentHash().substring(0, 10)) + "..., " +
+                "ParentHash=" + (header.getNumber() == 0 ? "GENESIS(0)" : header.getParentHash().substring(0, 10)) + "..., " +
                 "TxCount=" + transactions.size() + ", " +
                 "MerkleRoot=" + (header.getTransactionsRoot().isEmpty() ? "empty" : header.getTransactionsRoot().substring(0, 10)) + "..., " +
                 "Nonce=" + header.getNonce() +
@@ -1,33 +1,109 @@
 package blockchain;
 
+import java.nio.ByteBuffer;
+import java.security.DigestException;
+import java.security.MessageDigest;
+import java.util.Base64;
+
 public class BlockHeader {
+    // parentHash(32) | transactionsRoot(32) | timestamp(8) | number(8) | bits(8) | nonce(8), big-endian
+    public static final int SIZE = CryptoUtil.HASH_SIZE * 2 + Long.BYTES * 4;
+    private static final int PREFIX_SIZE = SIZE - Long.BYTES;
+
     private String parentHash;
     private String transactionsRoot;
     private long timestamp;
     private long number;
-    private long difficulty;
+    // PoW target의 compact 표현 (Difficulty.encodeCompact)
+    private long bits;
     private long nonce;
 
-    public BlockHeader(String parentHash, String transactionsRoot, long timestamp, long number, long difficulty, long nonce) {
+    public BlockHeader(String parentHash, String transactionsRoot, long timestamp, long number, long bits, long nonce) {
         this.parentHash = parentHash;
         this.transactionsRoot = transactionsRoot;
         this.timestamp = timestamp;
         this.number = number;
-        this.difficulty = difficulty;
+        this.bits = bits;
         this.nonce = nonce;
     }
 
+    public BlockHeader copy() {
+        return new BlockHeader(parentHash, transactionsRoot, timestamp, number, bits, nonce);
+    }
+
+    /** nonce를 제외한 고정 길이 바이너리 헤더 */
+    private void writePrefix(ByteBuffer buffer) {
+        buffer.put(CryptoUtil.decodeHash(parentHash));
+        buffer.put(CryptoUtil.decodeHash(transactionsRoot));
+        buffer.putLong(timestamp);
+        buffer.putLong(number);
+        buffer.putLong(bits);
+    }
+
+    public byte[] toBytes() {
+        ByteBuffer buffer = ByteBuffer.allocate(SIZE);
+        writePrefix(buffer);
+        buffer.putLong(nonce);
+        return buffer.array();
+    }
+
+    /** toBytes()의 역변환 */
+    public static BlockHeader fromBytes(ByteBuffer buffer) {
+        byte[] parentHash = new byte[CryptoUtil.HASH_SIZE];
+        byte[] transactionsRoot = new byte[CryptoUtil.HASH_SIZE];
+        buffer.get(parentHash).get(transactionsRoot);
+        return new BlockHeader(Base64.getEncoder().encodeToString(parentHash), Base64.getEncoder().encodeToString(transactionsRoot),
+                buffer.getLong(), buffer.getLong(), buffer.getLong(), buffer.getLong());
+    }
+
+    public byte[] calculateHashBytes() {
+        return CryptoUtil.sha256(toBytes());
+    }
+
     public String calculateHash() {
-        String dataToHash = parentHash + transactionsRoot + Long.toString(timestamp) + Long.toString(number) + Long.toString(difficulty) + Long.toString(nonce);
-        return CryptoUtil.hashSHA256(dataToHash);
+        return Base64.getEncoder().encodeToString(calculateHashBytes());
     }
 
     public String getParentHash() { return parentHash; }
     public String getTransactionsRoot() { return transactionsRoot; }
     public long getTimestamp() { return timestamp; }
     public long getNumber() { return number; }
-    public long getDifficulty() { return difficulty; }
+    public long getBits() { return bits; }
     public long getNonce() { return nonce; }
 
     public void setNonce(long nonce) { this.nonce = nonce; }
+
+    /**
+     * 채굴용 hasher. nonce와 무관한 prefix는 한 번만 digest에 넣어 두고(midstate),
+     * nonce마다 그 상태를 clone 해서 nonce 8바이트만 추가로 hash 한다.
+     * 한 thread 안에서만 사용해야 한다.
+     */
+    public static class NonceHasher {
+        private final MessageDigest midstate;
+        private final byte[] nonceBytes = new byte[Long.BYTES];
+        private final byte[] hash = new byte[CryptoUtil.HASH_SIZE];
+
+        public NonceHasher(BlockHeader header) {
+            ByteBuffer prefix = ByteBuffer.allocate(PREFIX_SIZE);
+            header.writePrefix(prefix);
+            this.midstate = CryptoUtil.newSHA256();
+            this.midstate.update(prefix.array());
+        }
+
+        /** @return 내부 버퍼에 담긴 hash. 다음 호출 시 덮어쓰이므로 보관하려면 복사해야 한다. */
+        public byte[] hash(long nonce) {
+            for (int i = Long.BYTES - 1; i >= 0; i--) {
+                nonceBytes[i] = (byte) nonce;
+                nonce >>>= 8;
+            }
+            try {
+                MessageDigest digest = (MessageDigest) midstate.clone();
+                digest.update(nonceBytes);
+                digest.digest(hash, 0, hash.length);
+            } catch (CloneNotSupportedException | DigestException e) {
+                throw new RuntimeException(e);
+            }
+            return hash;
+        }
+    }
 }
@@ -0,0 +1,351 @@
+package blockchain;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ThreadLocalRandom;
+
+import com.google.common.hash.HashFunction;
+import com.google.common.hash.Hashing;
+import com.google.gson.Gson;
+
+import blockchain.MessageWrapper.MessageType;
+
+/**
+ * 새 블록의 전파. 블록 전체 대신 헤더와 트랜잭션별 6바이트 short ID만 담은 compact block을 보낸다.
+ *
+ * 받은 쪽은 mempool의 트랜잭션으로 블록을 복원하고, 없는 트랜잭션만 GETBLOCKTXN으로 요청한다.
+ * short ID는 블록 hash와 보내는 쪽이 고른 salt로 만든 key의 SipHash이므로
+ * 블록마다 충돌하는 트랜잭션 쌍이 달라진다. 복원한 블록의 Merkle root가 맞지 않으면
+ * (short ID 충돌) GETDATA로 블록 전체를 요청한다.
+ */
+public class BlockRelay {
+    public static final int SHORT_ID_BYTES = 6;
+    private static final long SHORT_ID_MASK = (1L << (8 * SHORT_ID_BYTES)) - 1;
+    // compact block 하나에 들어갈 수 있는 최대 트랜잭션 수
+    private static final int MAX_BLOCK_TRANSACTIONS = 100_000;
+    // 누락 트랜잭션을 기다리는 블록 수와 대기 시간
+    private static final int MAX_PARTIAL_BLOCKS = 16;
+    private static final long PARTIAL_TIMEOUT_MS = 10_000;
+
+    public static class PrefilledTransaction {
+        public int index;
+        public Transaction tx;
+
+        public PrefilledTransaction(int index, Transaction tx) {
+            this.index = index;
+            this.tx = tx;
+        }
+    }
+
+    public static class CompactBlock {
+        public BlockHeader header;
+        public long salt;
+        // prefilled를 제외한 트랜잭션의 short ID (블록 안 순서)
+        public List<Long> shortIds;
+        // 받는 쪽 mempool에 없을 것이 확실한 트랜잭션 (coinbase)
+        public List<PrefilledTransaction> prefilled;
+
+        public CompactBlock(BlockHeader header, long salt, List<Long> shortIds, List<PrefilledTransaction> prefilled) {
+            this.header = header;
+            this.salt = salt;
+            this.shortIds = shortIds;
+            this.prefilled = prefilled;
+        }
+    }
+
+    public static class GetBlockTransactions {
+        public String blockHash;
+        public List<Integer> indexes;
+
+        public GetBlockTransactions(String blockHash, List<Integer> indexes) {
+            this.blockHash = blockHash;
+            this.indexes = indexes;
+        }
+    }
+
+    public static class BlockTransactions {
+        public String blockHash;
+        public List<Transaction> transactions;
+
+        public BlockTransactions(String blockHash, List<Transaction> transactions) {
+            this.blockHash = blockHash;
+            this.transactions = transactions;
+        }
+    }
+
+    private static class PartialBlock {
+        private final Peer peer;
+        private final BlockHeader header;
+        private final Transaction[] slots;
+        private final List<Integer> missing;
+        private final long createdAt = System.currentTimeMillis();
+
+        PartialBlock(Peer peer, BlockHeader header, Transaction[] slots, List<Integer> missing) {
+            this.peer = peer;
+            this.header = header;
+            this.slots = slots;
+            this.missing = missing;
+        }
+    }
+
+    private final Blockchain blockchain;
+    private final Mempool mempool;
+    private final BlockValidator blockValidator;
+    private final ChainSync chainSync;
+    private final Gossip gossip;
+    private final Gson gson;
+
+    // 블록 hash -> 누락 트랜잭션을 기다리는 블록
+    private final Map<String, PartialBlock> partialBlocks = new HashMap<>();
+
+    private final Metrics.Counter compactReceived;
+    private final Metrics.Counter compactReconstructed;
+    private final Metrics.Counter missingTransactions;
+    private final Metrics.Counter fullBlockFallbacks;
+
+    public BlockRelay(Blockchain blockchain, Mempool mempool, BlockValidator blockValidator, ChainSync chainSync,
+                      Gossip gossip, Gson gson, Metrics metrics) {
+        this.blockchain = blockchain;
+        this.mempool = mempool;
+        this.blockValidator = blockValidator;
+        this.chainSync = chainSync;
+        this.gossip = gossip;
+        this.gson = gson;
+        this.compactReceived = metrics.counter("compact_blocks_received_total");
+        this.compactReconstructed = metrics.counter("compact_blocks_reconstructed_total");
+        this.missingTransactions = metrics.counter("compact_block_missing_txs_total");
+        this.fullBlockFallbacks = metrics.counter("compact_block_fallbacks_total");
+    }
+
+    /**
+     * tree에 추가된 블록을 originator를 제외한 peer에게 compact block으로 보낸다.
+     * @param full 블록 전체 메시지. 받은 메시지를 relay 하는 경우 인코딩을 재사용한다. null이면 요청받을 때 만든다
+     */
+    public void announce(Block block, MessageWrapper full, Peer originator) {
+        CompactBlock compact = compact(block, ThreadLocalRandom.current().nextLong());
+        gossip.pushBlock(block.getHash(), full, new MessageWrapper(MessageType.CMPCTBLOCK, gson.toJson(compact)), originator);
+    }
+
+    /** peer가 보낸 블록 전체를 검증 pipeline에 넣고, 추가되면 다른 peer에게 알린다 */
+    public void submit(Peer peer, Block block, MessageWrapper full) throws InterruptedException {
+        gossip.received(peer, block.getHash());
+        if (gossip.isSeen(block.getHash())) { return; }
+
+        // 검증은 pipeline에서 하고, 결과는 commit thread에서 받는다
+        blockValidator.submit(block, accepted -> {
+            if (accepted) {
+                Log.info("BlockRelay: Block #" + block.getHeader().getNumber() + " is valid and added to chain. Announcing...");
+                announce(block, full, peer);
+            } else if (!blockchain.contains(block.getHeader().getParentHash())) {
+                // 부모를 모르면 그 사이 블록을 놓친 것이므로 헤더부터 다시 동기화한다
+                chainSync.requestHeaders(peer);
+            } else {
+                Log.debug("BlockRelay: Received invalid block or old block. Ignoring.");
+            }
+        });
+    }
+
+    public void handleCompactBlock(Peer peer, MessageWrapper wrapper) throws InterruptedException {
+        CompactBlock compact = gson.fromJson(wrapper.jsonData, CompactBlock.class);
+        if (compact == null || compact.shortIds == null || compact.prefilled == null || compact.header == null) {
+            Log.limited(Log.Level.WARN, "invalid-cmpct", () -> "BlockRelay: invalid compact block from " + peer);
+            peer.misbehaving(Peer.MALFORMED_SCORE, "invalid compact block");
+            return;
+        }
+        if (!BlockValidator.checkProofOfWork(compact.header)) {
+            Log.limited(Log.Level.WARN, "invalid-cmpct", () -> "BlockRelay: invalid compact block from " + peer);
+            peer.misbehaving(Peer.BAN_SCORE, "compact block without valid PoW");
+            return;
+        }
+        compactReceived.inc();
+        String hash = compact.header.calculateHash();
+        gossip.received(peer, hash);
+        if (gossip.isSeen(hash) || blockchain.contains(hash)) { return; }
+        if (!blockchain.contains(compact.header.getParentHash())) {
+            chainSync.requestHeaders(peer);
+            return;
+        }
+
+        Transaction[] slots = placePrefilled(compact);
+        if (slots == null) {
+            Log.limited(Log.Level.WARN, "invalid-cmpct", () -> "BlockRelay: malformed compact block from " + peer);
+            peer.misbehaving(Peer.MALFORMED_SCORE, "malformed compact block");
+            return;
+        }
+        List<Integer> missing = fillFromMempool(compact, hash, slots);
+        if (missing == null) {
+            requestFullBlock(peer, hash);
+            return;
+        }
+        if (missing.isEmpty()) {
+            compactReconstructed.inc();
+            complete(peer, hash, compact.header, slots);
+            return;
+        }
+
+        missingTransactions.add(missing.size());
+        synchronized (partialBlocks) {
+            expirePartialBlocks();
+            if (partialBlocks.size() >= MAX_PARTIAL_BLOCKS) {
+                requestFullBlock(peer, hash);
+                return;
+            }
+            partialBlocks.put(hash, new PartialBlock(peer, compact.header, slots, missing));
+        }
+        Log.debug(() -> "BlockRelay: requesting " + missing.size() + " of " + slots.length + " txs for block #"
+                + compact.header.getNumber() + " from " + peer);
+        peer.send(new MessageWrapper(MessageType.GETBLOCKTXN, gson.toJson(new GetBlockTransactions(hash, missing))));
+    }
+
+    public void handleGetBlockTransactions(Peer peer, MessageWrapper wrapper) {
+        GetBlockTransactions request = gson.fromJson(wrapper.jsonData, GetBlockTransactions.class);
+        if (request == null || request.blockHash == null || request.indexes == null) { return; }
+        Block block = blockchain.getBlockByHash(request.blockHash);
+        if (block == null) { return; }
+        List<Transaction> txs = block.getTransactions();
+        List<Transaction> found = new ArrayList<>(request.indexes.size());
+        for (Integer index : request.indexes) {
+            if (index == null || index < 0 || index >= txs.size()) {
+                Log.limited(Log.Level.WARN, "invalid-getblocktxn", () -> "BlockRelay: invalid GETBLOCKTXN from " + peer);
+                peer.misbehaving(Peer.MALFORMED_SCORE, "invalid GETBLOCKTXN");
+                return;
+            }
+            found.add(txs.get(index));
+        }
+        peer.send(new MessageWrapper(MessageType.BLOCKTXN, gson.toJson(new BlockTransactions(request.blockHash, found))));
+    }
+
+    public void handleBlockTransactions(Peer peer, MessageWrapper wrapper) throws InterruptedException {
+        BlockTransactions response = gson.fromJson(wrapper.jsonData, BlockTransactions.class);
+        if (response == null || response.blockHash == null || response.transactions == null) { return; }
+        PartialBlock partial;
+        synchronized (partialBlocks) {
+            partial = partialBlocks.get(response.blockHash);
+            if (partial == null || partial.peer != peer) { return; }
+            partialBlocks.remove(response.blockHash);
+        }
+        if (response.transactions.size() != partial.missing.size()) {
+            requestFullBlock(peer, response.blockHash);
+            return;
+        }
+        for (int i = 0; i < partial.missing.size(); i++) {
+            partial.slots[partial.missing.get(i)] = response.transactions.get(i);
+        }
+        complete(peer, response.blockHash, partial.header, partial.slots);
+    }
+
+    public void onPeerDisconnected(Peer peer) {
+        synchronized (partialBlocks) {
+            partialBlocks.values().removeIf(partial -> partial.peer == peer);
+        }
+    }
+
+    /** coinbase는 그대로 넣고 나머지 트랜잭션은 short ID로 바꾼 compact block */
+    static CompactBlock compact(Block block, long salt) {
+        HashFunction sipHash = shortIdFunction(block.getHash(), salt);
+        List<Long> shortIds = new ArrayList<>();
+        List<PrefilledTransaction> prefilled = new ArrayList<>();
+        List<Transaction> txs = block.getTransactions();
+        for (int i = 0; i < txs.size(); i++) {
+            Transaction tx = txs.get(i);
+            if (tx.isCoinbase()) {
+                prefilled.add(new PrefilledTransaction(i, tx));
+            } else {
+                shortIds.add(shortId(sipHash, tx.getTransactionID()));
+            }
+        }
+        return new CompactBlock(block.getHeader(), salt, shortIds, prefilled);
+    }
+
+    /** SipHash-2-4 key = SHA-256(블록 hash || salt)의 앞 16바이트 */
+    static HashFunction shortIdFunction(String blockHash, long salt) {
+        ByteBuffer input = ByteBuffer.allocate(CryptoUtil.HASH_SIZE + Long.BYTES).order(ByteOrder.LITTLE_ENDIAN);
+        input.put(CryptoUtil.decodeHash(blockHash)).putLong(salt);
+        ByteBuffer key = ByteBuffer.wrap(CryptoUtil.sha256(input.array())).order(ByteOrder.LITTLE_ENDIAN);
+        return Hashing.sipHash24(key.getLong(), key.getLong());
+    }
+
+    static long shortId(HashFunction sipHash, String transactionID) {
+        return sipHash.hashBytes(CryptoUtil.decodeHash(transactionID)).asLong() & SHORT_ID_MASK;
+    }
+
+    /** @return prefilled 트랜잭션만 채운 슬롯 배열. index가 범위를 벗어나거나 겹치면 null */
+    private static Transaction[] placePrefilled(CompactBlock compact) {
+        int total = compact.shortIds.size() + compact.prefilled.size();
+        if (total == 0 || total > MAX_BLOCK_TRANSACTIONS) { return null; }
+        Transaction[] slots = new Transaction[total];
+        for (PrefilledTransaction p : compact.prefilled) {
+            if (p == null || p.tx == null || p.index < 0 || p.index >= total || slots[p.index] != null) { return null; }
+            slots[p.index] = p.tx;
+        }
+        return slots;
+    }
+
+    /**
+     * 빈 슬롯을 mempool의 트랜잭션으로 채운다.
+     * short ID가 mempool 안에서 겹치는 트랜잭션은 어느 쪽인지 알 수 없으므로 누락으로 처리한다.
+     * @return 채우지 못한 슬롯 index. 블록 안에서 short ID가 겹치면 null
+     */
+    private List<Integer> fillFromMempool(CompactBlock compact, String blockHash, Transaction[] slots) {
+        HashFunction sipHash = shortIdFunction(blockHash, compact.salt);
+        Map<Long, Integer> slotById = new HashMap<>(compact.shortIds.size() * 2);
+        Iterator<Long> ids = compact.shortIds.iterator();
+        for (int i = 0; i < slots.length; i++) {
+            if (slots[i] != null) { continue; }
+            Long id = ids.next();
+            if (id == null || slotById.put(id, i) != null) { return null; }
+        }
+
+        boolean[] ambiguous = new boolean[slots.length];
+        for (Transaction tx : mempool.getTransactions()) {
+            Integer slot = slotById.get(shortId(sipHash, tx.getTransactionID()));
+            if (slot == null) { continue; }
+            if (slots[slot] != null) {
+                ambiguous[slot] = true;
+            } else {
+                slots[slot] = tx;
+            }
+        }
+
+        List<Integer> missing = new ArrayList<>();
+        for (int slot : slotById.values()) {
+            if (ambiguous[slot]) { slots[slot] = null; }
+            if (slots[slot] == null) { missing.add(slot); }
+        }
+        missing.sort(null);
+        return missing;
+    }
+
+    private void complete(Peer peer, String hash, BlockHeader header, Transaction[] slots) throws InterruptedException {
+        Block block = new Block(header, new ArrayList<>(Arrays.asList(slots)));
+        boolean matches;
+        try {
+            matches = BlockValidator.checkMerkleRoot(block);
+        } catch (RuntimeException e) {
+            // peer가 보낸 트랜잭션의 ID 형식이 잘못되었다
+            matches = false;
+        }
+        if (!matches) {
+            // short ID 충돌로 다른 트랜잭션이 들어갔다
+            requestFullBlock(peer, hash);
+            return;
+        }
+        submit(peer, block, null);
+    }
+
+    private void requestFullBlock(Peer peer, String hash) {
+        fullBlockFallbacks.inc();
+        peer.send(new MessageWrapper(MessageType.GETDATA, gson.toJson(new Gossip.Inventory(MessageType.BLOCK, List.of(hash)))));
+    }
+
+    private void expirePartialBlocks() {
+        long now = System.currentTimeMillis();
+        partialBlocks.values().removeIf(partial -> now - partial.createdAt >= PARTIAL_TIMEOUT_MS || partial.peer.isClosed());
+    }
+}
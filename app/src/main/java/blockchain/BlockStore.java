@@ -0,0 +1,385 @@
+package blockchain;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.math.BigInteger;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Base64;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * 블록을 디스크에 저장하는 append-only 저장소.
+ *
+ * blocks-NNNNN.dat : 직렬화된 블록을 [length][bytes] 형태로 이어 붙인 segment 파일.
+ *                    bytes는 [CODEC_FORMAT][BinaryCodec 블록]
+ * headers.dat      : height 순서의 BlockHeader.toBytes() 레코드
+ * index.dat        : height 순서의 고정 길이 레코드 [segment][offset][length][hash][chainWork]
+ *
+ * 읽기는 segment를 memory-map 해서 처리하고, 재시작 시에는 index 파일 크기만으로
+ * 블록 수를 알 수 있으므로 체인 전체를 다시 읽지 않는다.
+ *
+ * 헤더는 항상 모두 남기지만 본문은 없을 수 있다. prune은 오래된 segment 파일을 통째로 지우고,
+ * snapshot에서 시작한 저장소는 checkpoint 이전 블록을 헤더로만(segment = NO_BODY) 가진다.
+ */
+public class BlockStore implements Closeable {
+    private static final long SEGMENT_SIZE = 64L * 1024 * 1024;
+    private static final int WORK_SIZE = 32;
+    private static final int HASH_OFFSET = Integer.BYTES + Long.BYTES + Integer.BYTES;
+    private static final int INDEX_RECORD_SIZE = HASH_OFFSET + CryptoUtil.HASH_SIZE + WORK_SIZE;
+    private static final int NO_BODY = -1;
+    private static final byte CODEC_FORMAT = 1;
+
+    private final Path dir;
+    private final FileChannel index;
+    private final FileChannel headers;
+    private final List<MappedByteBuffer> mappedSegments = new ArrayList<>();
+
+    // hash로 main chain 블록을 찾기 위한 index. 처음 필요할 때 index 파일에서 만든다
+    private Map<String, Long> heightByHash;
+
+    private final long segmentSize;
+    private FileChannel activeSegment;
+    private int activeSegmentNumber;
+    // 이보다 번호가 작은 segment는 prune 되었다
+    private int firstSegment;
+    private long firstBodyHeight;
+    private long size;
+
+    public BlockStore(Path dir) throws IOException {
+        this(dir, SEGMENT_SIZE);
+    }
+
+    BlockStore(Path dir, long segmentSize) throws IOException {
+        this.dir = dir;
+        this.segmentSize = segmentSize;
+        Files.createDirectories(dir);
+        this.index = FileChannel.open(dir.resolve("index.dat"),
+                StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+        this.headers = FileChannel.open(dir.resolve("headers.dat"),
+                StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+        recover();
+    }
+
+    /** 마지막 쓰기가 중간에 끊긴 경우 index, header, segment의 꼬리를 잘라낸다. */
+    private void recover() throws IOException {
+        size = index.size() / INDEX_RECORD_SIZE;
+        // header를 index보다 먼저 쓰므로 index가 더 길다면 마지막 쓰기가 끊긴 것이다
+        size = Math.min(size, headers.size() / BlockHeader.SIZE);
+        while (size > 0 && !isBodyComplete(size - 1)) {
+            size--;
+        }
+        index.truncate(size * INDEX_RECORD_SIZE);
+        openActiveSegment();
+        headers.truncate(size * BlockHeader.SIZE);
+
+        firstSegment = 0;
+        while (firstSegment < activeSegmentNumber && !Files.exists(segmentPath(firstSegment))) {
+            firstSegment++;
+        }
+        updateFirstBodyHeight();
+    }
+
+    private boolean isBodyComplete(long height) throws IOException {
+        ByteBuffer record = readIndexRecord(height);
+        int segment = record.getInt();
+        if (segment == NO_BODY) { return true; }
+        Path segmentPath = segmentPath(segment);
+        return Files.exists(segmentPath) && Files.size(segmentPath) >= record.getLong() + Integer.BYTES + record.getInt();
+    }
+
+    /** 마지막으로 본문을 쓴 segment를 열고 그 본문 뒤를 잘라낸다. */
+    private void openActiveSegment() throws IOException {
+        int segment = 0;
+        long end = 0;
+        for (long height = size - 1; height >= 0; height--) {
+            ByteBuffer record = readIndexRecord(height);
+            int s = record.getInt();
+            if (s != NO_BODY) {
+                segment = s;
+                end = record.getLong() + Integer.BYTES + record.getInt();
+                break;
+            }
+        }
+        if (activeSegment != null) {
+            activeSegment.close();
+        }
+        activeSegmentNumber = segment;
+        activeSegment = openSegment(segment);
+        activeSegment.truncate(end);
+    }
+
+    public synchronized long size() { return size; }
+
+    /**
+     * @param chainWork genesis부터 이 블록까지의 누적 작업량
+     */
+    public synchronized long append(Block block, BigInteger chainWork) throws IOException {
+        byte[] data = encode(block);
+        long offset = activeSegment.size();
+        if (offset > 0 && offset + Integer.BYTES + data.length > segmentSize) {
+            activeSegment.force(true);
+            activeSegment.close();
+            activeSegmentNumber++;
+            activeSegment = openSegment(activeSegmentNumber);
+            activeSegment.truncate(0);
+            offset = 0;
+        }
+
+        ByteBuffer record = ByteBuffer.allocate(Integer.BYTES + data.length);
+        record.putInt(data.length).put(data).flip();
+        writeFully(activeSegment, record, offset);
+
+        if (firstBodyHeight >= size) {
+            firstBodyHeight = size;
+        }
+        return appendIndex(block.getHeader(), block.getHash(), chainWork, activeSegmentNumber, offset, data.length);
+    }
+
+    /** 본문 없이 헤더만 추가한다. snapshot에서 checkpoint 이전 체인을 만들 때 사용 */
+    public synchronized long appendHeader(BlockHeader header, BigInteger chainWork) throws IOException {
+        return appendIndex(header, header.calculateHash(), chainWork, NO_BODY, 0, 0);
+    }
+
+    private long appendIndex(BlockHeader header, String hash, BigInteger chainWork, int segment, long offset, int length)
+            throws IOException {
+        writeHeader(header, size);
+
+        ByteBuffer indexRecord = ByteBuffer.allocate(INDEX_RECORD_SIZE);
+        indexRecord.putInt(segment).putLong(offset).putInt(length);
+        indexRecord.put(CryptoUtil.decodeHash(hash));
+        indexRecord.put(toFixedBytes(chainWork)).flip();
+        writeFully(index, indexRecord, size * INDEX_RECORD_SIZE);
+
+        if (heightByHash != null) {
+            heightByHash.put(hash, size);
+        }
+        return size++;
+    }
+
+    private void writeHeader(BlockHeader header, long height) throws IOException {
+        writeFully(headers, ByteBuffer.wrap(header.toBytes()), height * BlockHeader.SIZE);
+    }
+
+    /** newSize 이후의 블록을 모두 지운다. fork 전환 시 버려지는 main chain 블록을 되돌리는 데 사용 */
+    public synchronized void truncate(long newSize) throws IOException {
+        if (newSize >= size) { return; }
+        if (newSize < 1) {
+            throw new IllegalArgumentException("Cannot truncate genesis block");
+        }
+        if (heightByHash != null) {
+            for (long height = newSize; height < size; height++) {
+                heightByHash.remove(getHash(height));
+            }
+        }
+        int previousActive = activeSegmentNumber;
+        size = newSize;
+        index.truncate(newSize * INDEX_RECORD_SIZE);
+        headers.truncate(newSize * BlockHeader.SIZE);
+        openActiveSegment();
+        for (int s = activeSegmentNumber + 1; s <= previousActive; s++) {
+            Files.deleteIfExists(segmentPath(s));
+        }
+        while (mappedSegments.size() > activeSegmentNumber) {
+            mappedSegments.remove(mappedSegments.size() - 1);
+        }
+        updateFirstBodyHeight();
+    }
+
+    /**
+     * keepFrom보다 앞의 블록 본문만 들어 있는 segment 파일을 지운다. 헤더와 index는 남는다.
+     * segment 단위로 지우므로 실제로는 keepFrom보다 조금 앞의 본문까지 남을 수 있다.
+     * @return 지운 segment 수
+     */
+    public synchronized int prune(long keepFrom) throws IOException {
+        if (keepFrom <= 0 || keepFrom >= size) { return 0; }
+        int segment = readIndexRecord(keepFrom).getInt();
+        int pruned = 0;
+        while (firstSegment < segment && firstSegment < activeSegmentNumber) {
+            Files.deleteIfExists(segmentPath(firstSegment));
+            if (firstSegment < mappedSegments.size()) {
+                mappedSegments.set(firstSegment, null);
+            }
+            firstSegment++;
+            pruned++;
+        }
+        if (pruned > 0) {
+            updateFirstBodyHeight();
+        }
+        return pruned;
+    }
+
+    /** 본문을 읽을 수 있는 가장 낮은 height. 그 아래는 헤더만 있다 */
+    public synchronized long getFirstBodyHeight() { return firstBodyHeight; }
+
+    public synchronized boolean hasBody(long height) {
+        return height >= firstBodyHeight && height < size;
+    }
+
+    /** segment 번호는 height 순으로 증가하므로(NO_BODY = -1 포함) 이진 탐색으로 찾는다 */
+    private void updateFirstBodyHeight() throws IOException {
+        long low = 0;
+        long high = size;
+        while (low < high) {
+            long mid = (low + high) >>> 1;
+            int segment = readIndexRecord(mid).getInt();
+            if (segment != NO_BODY && segment >= firstSegment) {
+                high = mid;
+            } else {
+                low = mid + 1;
+            }
+        }
+        firstBodyHeight = low;
+    }
+
+    /** @return 본문이 prune 되었거나 없으면 null */
+    public synchronized Block read(long height) throws IOException {
+        checkHeight(height);
+        if (height < firstBodyHeight) { return null; }
+        ByteBuffer record = readIndexRecord(height);
+        int segment = record.getInt();
+        long offset = record.getLong();
+        int length = record.getInt();
+
+        ByteBuffer mapped = mapSegment(segment, offset + Integer.BYTES + length).duplicate();
+        mapped.position((int) offset + Integer.BYTES);
+        byte[] data = new byte[length];
+        mapped.get(data);
+        return decode(data);
+    }
+
+    static byte[] encode(Block block) {
+        byte[] encoded = BinaryCodec.encodeBlock(block);
+        byte[] data = new byte[1 + encoded.length];
+        data[0] = CODEC_FORMAT;
+        System.arraycopy(encoded, 0, data, 1, encoded.length);
+        return data;
+    }
+
+    /** encode의 역변환. 트랜잭션은 처음 접근할 때 디코딩된다 */
+    static Block decode(byte[] data) {
+        if (data.length == 0 || data[0] != CODEC_FORMAT) {
+            throw new IllegalArgumentException("Unknown block format " + (data.length == 0 ? "(empty)" : data[0]));
+        }
+        return BinaryCodec.decodeBlock(ByteBuffer.wrap(data, 1, data.length - 1));
+    }
+
+    public synchronized BlockHeader readHeader(long height) throws IOException {
+        checkHeight(height);
+        ByteBuffer record = ByteBuffer.allocate(BlockHeader.SIZE);
+        long position = height * BlockHeader.SIZE;
+        while (record.hasRemaining()) {
+            if (headers.read(record, position + record.position()) < 0) {
+                throw new IOException("Unexpected end of headers at height " + height);
+            }
+        }
+        return BlockHeader.fromBytes(record.flip());
+    }
+
+    public synchronized String getHash(long height) throws IOException {
+        checkHeight(height);
+        ByteBuffer record = readIndexRecord(height);
+        byte[] hash = new byte[CryptoUtil.HASH_SIZE];
+        record.position(HASH_OFFSET);
+        record.get(hash);
+        return Base64.getEncoder().encodeToString(hash);
+    }
+
+    public synchronized BigInteger getChainWork(long height) throws IOException {
+        checkHeight(height);
+        ByteBuffer record = readIndexRecord(height);
+        byte[] work = new byte[WORK_SIZE];
+        record.position(HASH_OFFSET + CryptoUtil.HASH_SIZE);
+        record.get(work);
+        return new BigInteger(1, work);
+    }
+
+    /** @return main chain에 없는 hash면 -1 */
+    public synchronized long findHeight(String hash) throws IOException {
+        if (heightByHash == null) {
+            heightByHash = new HashMap<>();
+            for (long height = 0; height < size; height++) {
+                heightByHash.put(getHash(height), height);
+            }
+        }
+        return heightByHash.getOrDefault(hash, -1L);
+    }
+
+    public synchronized void flush() throws IOException {
+        activeSegment.force(true);
+        headers.force(true);
+        index.force(true);
+    }
+
+    @Override
+    public synchronized void close() throws IOException {
+        flush();
+        activeSegment.close();
+        headers.close();
+        index.close();
+        mappedSegments.clear();
+    }
+
+    private void checkHeight(long height) {
+        if (height < 0 || height >= size) {
+            throw new IndexOutOfBoundsException("No block at height " + height);
+        }
+    }
+
+    private ByteBuffer readIndexRecord(long height) throws IOException {
+        ByteBuffer record = ByteBuffer.allocate(INDEX_RECORD_SIZE);
+        long position = height * INDEX_RECORD_SIZE;
+        while (record.hasRemaining()) {
+            if (index.read(record, position + record.position()) < 0) {
+                throw new IOException("Unexpected end of index at height " + height);
+            }
+        }
+        record.flip();
+        return record;
+    }
+
+    /** segment 전체를 read-only로 map 한다. 현재 map 범위보다 뒤를 읽으면 다시 map 한다. */
+    private MappedByteBuffer mapSegment(int segment, long requiredSize) throws IOException {
+        while (mappedSegments.size() <= segment) {
+            mappedSegments.add(null);
+        }
+        MappedByteBuffer mapped = mappedSegments.get(segment);
+        if (mapped == null || mapped.capacity() < requiredSize) {
+            try (FileChannel channel = FileChannel.open(segmentPath(segment), StandardOpenOption.READ)) {
+                mapped = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+            }
+            mappedSegments.set(segment, mapped);
+        }
+        return mapped;
+    }
+
+    private FileChannel openSegment(int segment) throws IOException {
+        return FileChannel.open(segmentPath(segment),
+                StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+    }
+
+    private Path segmentPath(int segment) {
+        return dir.resolve(String.format("blocks-%05d.dat", segment));
+    }
+
+    private static byte[] toFixedBytes(BigInteger value) {
+        byte[] raw = value.toByteArray();
+        byte[] fixed = new byte[WORK_SIZE];
+        int length = Math.min(raw.length, WORK_SIZE);
+        System.arraycopy(raw, raw.length - length, fixed, WORK_SIZE - length, length);
+        return fixed;
+    }
+
+    private static void writeFully(FileChannel channel, ByteBuffer buffer, long position) throws IOException {
+        while (buffer.hasRemaining()) {
+            position += channel.write(buffer, position);
+        }
+    }
+}
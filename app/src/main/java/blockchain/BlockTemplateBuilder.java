@@ -0,0 +1,298 @@
+package blockchain;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Deque;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.Set;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.function.Consumer;
+
+/**
+ * 채굴할 블록 template을 항상 준비해 두는 서비스.
+ *
+ * tip이 바뀌면 mempool 전체를 우선순위 순서로 현재 상태의 snapshot에 적용해 template을 새로 만들고,
+ * 그 사이 mempool에 들어온 트랜잭션은 snapshot에 적용해 뒤에 붙인다. Merkle root는
+ * append와 coinbase leaf 교체만 다시 계산한다(O(log n)). 트랜잭션은 mempool에서 꺼내지 않으므로
+ * 채굴한 블록이 거부되어도 잃어버리지 않으며, 블록이 tree에 붙을 때 ChainListener가 mempool에서 지운다.
+ *
+ * 새 template은 listener에게 넘겨 Miner.update로 멈추지 않고 교체한다.
+ */
+public class BlockTemplateBuilder implements ChainListener {
+    public static final int DEFAULT_MAX_BLOCK_SIZE = 1_000_000;
+    // 트랜잭션이 없어도 timestamp를 갱신하는 주기
+    private static final long REFRESH_INTERVAL_MS = 1_000;
+    // nonce가 아직 이른 트랜잭션을 앞 트랜잭션이 들어올 때까지 보관하는 최대 수
+    private static final int MAX_DEFERRED = 10_000;
+    // 채굴한 헤더로 template을 찾을 수 있도록 최근 template을 보관하는 수
+    private static final int RECENT_TEMPLATES = 16;
+
+    /** 채굴 가능한 블록 후보. 불변 */
+    public static class Template {
+        private final BlockHeader header;
+        private final List<Transaction> transactions;
+        private final long fees;
+        private final int size;
+
+        Template(BlockHeader header, List<Transaction> transactions, long fees, int size) {
+            this.header = header;
+            this.transactions = transactions;
+            this.fees = fees;
+            this.size = size;
+        }
+
+        /** nonce가 0인 헤더. 채굴할 때는 복사해서 써야 한다 */
+        public BlockHeader getHeader() { return header; }
+        public List<Transaction> getTransactions() { return transactions; }
+        public long getFees() { return fees; }
+        public int getSize() { return size; }
+
+        /** 이 template으로 만든 헤더인지 (nonce 제외) */
+        boolean matches(BlockHeader solved) {
+            return header.getParentHash().equals(solved.getParentHash())
+                    && header.getTransactionsRoot().equals(solved.getTransactionsRoot())
+                    && header.getTimestamp() == solved.getTimestamp()
+                    && header.getBits() == solved.getBits();
+        }
+    }
+
+    private final Blockchain blockchain;
+    private final Mempool mempool;
+    private final String coinbaseAddress;
+    private final int maxBlockSize;
+    private final Consumer<Transaction> mempoolListener = this::onTransaction;
+
+    private final Queue<Transaction> incoming = new ConcurrentLinkedQueue<>();
+    private volatile boolean rebuildNeeded = true;
+    private volatile boolean running;
+    private Thread builder;
+    private volatile Template current;
+    private final Deque<Template> recent = new ArrayDeque<>();
+    private Consumer<Template> onUpdate = template -> {};
+
+    // 아래는 builder thread만 사용한다
+    private Block parent;
+    private long bits;
+    private long medianTimePast;
+    private StateDB.Snapshot snapshot;
+    private MerkleTree tree;
+    private final List<Transaction> transactions = new ArrayList<>();
+    private final Set<String> included = new HashSet<>();
+    private final Map<String, Transaction> deferred = new LinkedHashMap<>();
+    private long fees;
+    private int size;
+    private long lowestFee;
+    // 자리가 없어 넣지 못한 트랜잭션 중 template의 가장 낮은 수수료보다 높은 것이 있었다
+    private boolean betterAvailable;
+    private long lastPublished;
+    private long lastRebuild;
+
+    private final Metrics.Counter rebuilds;
+    private final Metrics.Counter updates;
+
+    public BlockTemplateBuilder(Blockchain blockchain, Mempool mempool, String coinbaseAddress, int maxBlockSize, Metrics metrics) {
+        if (maxBlockSize < 1) {
+            throw new IllegalArgumentException("maxBlockSize must be >= 1");
+        }
+        this.blockchain = blockchain;
+        this.mempool = mempool;
+        this.coinbaseAddress = coinbaseAddress;
+        this.maxBlockSize = maxBlockSize;
+        this.rebuilds = metrics.counter("template_rebuilds_total");
+        this.updates = metrics.counter("template_updates_total");
+        metrics.gauge("template_transactions", () -> current == null ? 0 : current.getTransactions().size());
+        metrics.gauge("template_bytes", () -> current == null ? 0 : current.getSize());
+        metrics.gauge("template_fees", () -> current == null ? 0 : current.getFees());
+    }
+
+    /** 새 template이 만들어질 때마다 builder thread에서 호출된다 */
+    public void setOnUpdate(Consumer<Template> onUpdate) { this.onUpdate = onUpdate; }
+
+    public synchronized void start() {
+        if (running) { return; }
+        running = true;
+        rebuildNeeded = true;
+        blockchain.addListener(this);
+        mempool.addListener(mempoolListener);
+        builder = new Thread(this::buildLoop, "block-template-builder");
+        builder.setDaemon(true);
+        builder.start();
+    }
+
+    public void stop() {
+        running = false;
+        mempool.removeListener(mempoolListener);
+        synchronized (this) {
+            notifyAll();
+        }
+    }
+
+    /** 현재 template. 첫 template이 만들어질 때까지 기다린다 */
+    public Template awaitTemplate() throws InterruptedException {
+        synchronized (this) {
+            while (current == null && running) {
+                wait();
+            }
+        }
+        return current;
+    }
+
+    /** 채굴된 헤더를 만든 template. 너무 오래되어 잊었다면 null */
+    public Template findTemplate(BlockHeader solved) {
+        synchronized (recent) {
+            for (Template template : recent) {
+                if (template.matches(solved)) { return template; }
+            }
+        }
+        return null;
+    }
+
+    public int getMaxBlockSize() { return maxBlockSize; }
+
+    @Override
+    public void onBlockConnected(Block block) { requestRebuild(); }
+
+    @Override
+    public void onBlockDisconnected(Block block) { requestRebuild(); }
+
+    /** tip이 바뀌지 않았어도 mempool 전체로 template을 다시 만든다 (채굴한 블록이 거부된 경우 등) */
+    public synchronized void requestRebuild() {
+        rebuildNeeded = true;
+        notifyAll();
+    }
+
+    private void onTransaction(Transaction tx) {
+        if (!running) { return; }
+        incoming.add(tx);
+        synchronized (this) {
+            notifyAll();
+        }
+    }
+
+    private void buildLoop() {
+        while (running) {
+            try {
+                synchronized (this) {
+                    long waitUntil = lastPublished + REFRESH_INTERVAL_MS;
+                    long now;
+                    while (running && !rebuildNeeded && incoming.isEmpty() && (now = System.currentTimeMillis()) < waitUntil) {
+                        wait(waitUntil - now);
+                    }
+                }
+            } catch (InterruptedException e) {
+                return;
+            }
+            if (!running) { return; }
+
+            try {
+                // 더 좋은 트랜잭션 때문에 다시 만드는 것은 REFRESH_INTERVAL_MS에 한 번만 한다
+                if (rebuildNeeded || (betterAvailable && System.currentTimeMillis() - lastRebuild >= REFRESH_INTERVAL_MS)) {
+                    rebuild();
+                } else {
+                    Transaction tx;
+                    while ((tx = incoming.poll()) != null) {
+                        add(tx);
+                    }
+                }
+                publish();
+            } catch (RuntimeException e) {
+                Log.limited(Log.Level.ERROR, "template-error", () -> "BlockTemplateBuilder: " + e.getMessage());
+                rebuildNeeded = true;
+            }
+        }
+    }
+
+    private void rebuild() {
+        rebuildNeeded = false;
+        betterAvailable = false;
+        lastRebuild = System.currentTimeMillis();
+        incoming.clear();
+        rebuilds.inc();
+
+        Blockchain.TemplateBase base = blockchain.getTemplateBase();
+        parent = base.parent;
+        bits = base.bits;
+        medianTimePast = base.medianTimePast;
+        snapshot = base.state;
+        tree = new MerkleTree();
+        transactions.clear();
+        included.clear();
+        deferred.clear();
+        fees = 0;
+        lowestFee = Long.MAX_VALUE;
+
+        Transaction coinbase = coinbase();
+        transactions.add(coinbase);
+        tree.append(coinbase);
+        size = coinbase.estimateSize();
+
+        mempool.forEachByPriority(tx -> {
+            add(tx);
+            return size < maxBlockSize;
+        });
+        betterAvailable = false;
+    }
+
+    /** 트랜잭션 하나를 template 뒤에 붙인다. 앞 nonce를 기다리던 트랜잭션도 이어서 붙인다 */
+    private void add(Transaction tx) {
+        if (!append(tx)) { return; }
+        boolean progress = true;
+        while (progress && !deferred.isEmpty()) {
+            progress = deferred.values().removeIf(this::append);
+        }
+    }
+
+    private boolean append(Transaction tx) {
+        if (tx.isCoinbase() || included.contains(tx.getTransactionID())) { return false; }
+        int txSize = tx.estimateSize();
+        if (size + txSize > maxBlockSize) {
+            if (tx.getFee() > lowestFee) { betterAvailable = true; }
+            return false;
+        }
+        if (!snapshot.apply(tx)) {
+            if (tx.getNonce() > snapshot.getAccount(tx.getSenderPublicKey()).getNonce() && deferred.size() < MAX_DEFERRED) {
+                deferred.putIfAbsent(tx.getTransactionID(), tx);
+            }
+            return false;
+        }
+        transactions.add(tx);
+        included.add(tx.getTransactionID());
+        tree.append(tx);
+        fees += tx.getFee();
+        size += txSize;
+        lowestFee = Math.min(lowestFee, tx.getFee());
+        return true;
+    }
+
+    private Transaction coinbase() {
+        return Transaction.coinbase(coinbaseAddress, StateDB.BLOCK_REWARD + fees, parent.getHeader().getNumber() + 1);
+    }
+
+    private void publish() {
+        // 수수료 합이 바뀌었을 수 있으므로 coinbase를 다시 만들고 leaf 하나만 바꾼다
+        Transaction coinbase = coinbase();
+        transactions.set(0, coinbase);
+        tree.set(0, coinbase);
+
+        long timestamp = Math.max(System.currentTimeMillis(), medianTimePast + 1);
+        BlockHeader header = new BlockHeader(parent.getHash(), tree.getRootString(), timestamp,
+                parent.getHeader().getNumber() + 1, bits, 0);
+        Template template = new Template(header, Collections.unmodifiableList(new ArrayList<>(transactions)), fees, size);
+        synchronized (recent) {
+            recent.addFirst(template);
+            if (recent.size() > RECENT_TEMPLATES) { recent.removeLast(); }
+        }
+        synchronized (this) {
+            current = template;
+            lastPublished = System.currentTimeMillis();
+            notifyAll();
+        }
+        updates.inc();
+        onUpdate.accept(template);
+    }
+}
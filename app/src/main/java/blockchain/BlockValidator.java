@@ -0,0 +1,188 @@
+package blockchain;
+
+import java.util.ArrayList;
+import java.util.Base64;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Consumer;
+import java.util.function.Predicate;
+
+/**
+ * 네트워크에서 받은 블록을 단계별로 검증하는 pipeline.
+ *
+ * 1. header : hash와 PoW. submit을 호출한 thread에서 바로 검사한다.
+ * 2. body   : 트랜잭션 ID/서명과 Merkle root. worker pool에서 트랜잭션을 나눠 병렬로 검사한다.
+ * 3. commit : 하나의 commit thread가 받은 순서대로 Blockchain에 붙인다 (부모, 난이도, 계정 상태).
+ *
+ * commit thread가 앞 블록을 붙이는 동안 뒤 블록들은 body 단계를 진행하므로
+ * 여러 블록이 서로 다른 단계에 동시에 있을 수 있다.
+ */
+public class BlockValidator {
+    public static final int MAX_PENDING_BLOCKS = 64;
+    private static final int MIN_CHUNK_SIZE = 16;
+
+    private final Blockchain blockchain;
+    private final TransactionVerifier verifier;
+    private final ExecutorService workers;
+    private final int workerCount;
+    private final BlockingQueue<Pending> pending = new LinkedBlockingQueue<>(MAX_PENDING_BLOCKS);
+    private final Thread committer;
+    private volatile boolean running = true;
+
+    private final Metrics.Histogram bodyLatency;
+    private final Metrics.Histogram commitLatency;
+    private final Metrics.Counter rejected;
+
+    private static class Pending {
+        private final Block block;
+        private final CompletableFuture<Boolean> body;
+        private final Consumer<Boolean> onDone;
+
+        Pending(Block block, CompletableFuture<Boolean> body, Consumer<Boolean> onDone) {
+            this.block = block;
+            this.body = body;
+            this.onDone = onDone;
+        }
+    }
+
+    public BlockValidator(Blockchain blockchain, TransactionVerifier verifier, int workerCount, Metrics metrics) {
+        this.blockchain = blockchain;
+        this.verifier = verifier;
+        this.workerCount = workerCount;
+        AtomicInteger threadNumber = new AtomicInteger();
+        this.workers = Executors.newFixedThreadPool(workerCount, r -> {
+            Thread t = new Thread(r, "block-validator-" + threadNumber.getAndIncrement());
+            t.setDaemon(true);
+            return t;
+        });
+        this.bodyLatency = metrics.histogram("block_body_check_seconds");
+        this.commitLatency = metrics.histogram("block_commit_seconds");
+        this.rejected = metrics.counter("block_pipeline_rejected_total");
+        metrics.gauge("block_pipeline_pending", pending::size);
+
+        this.committer = new Thread(this::commitLoop, "block-committer");
+        this.committer.setDaemon(true);
+        this.committer.start();
+    }
+
+    /**
+     * 블록을 pipeline에 넣는다. pipeline이 가득 차 있으면 자리가 날 때까지 기다린다.
+     * onDone은 블록이 tree에 추가되었는지와 함께 한 번 호출된다.
+     * header 검사에서 떨어지면 이 thread에서, 그 외에는 commit thread에서 호출된다.
+     */
+    public void submit(Block block, Consumer<Boolean> onDone) throws InterruptedException {
+        if (!checkHeader(block)) {
+            rejected.inc();
+            onDone.accept(false);
+            return;
+        }
+        long start = System.nanoTime();
+        CompletableFuture<Boolean> body = checkBodyAsync(block);
+        body.thenRun(() -> bodyLatency.recordSince(start));
+        pending.put(new Pending(block, body, onDone));
+    }
+
+    public int getPendingCount() { return pending.size(); }
+
+    public void shutdown() {
+        running = false;
+        committer.interrupt();
+        workers.shutdown();
+    }
+
+    /** 블록 hash가 헤더와 일치하고 헤더가 자신의 target을 만족하는지 */
+    public static boolean checkHeader(Block block) {
+        if (block == null || block.getTransactions() == null || !checkProofOfWork(block.getHeader())) { return false; }
+        return block.getHash() != null
+                && block.getHash().equals(Base64.getEncoder().encodeToString(block.getHeader().calculateHashBytes()));
+    }
+
+    /** 헤더 형식과 PoW만 본다. 본문이 없는 헤더(compact block 등)를 먼저 걸러낼 때 쓴다 */
+    public static boolean checkProofOfWork(BlockHeader header) {
+        if (header == null || !Difficulty.isValidBits(header.getBits())
+                || header.getParentHash() == null || header.getTransactionsRoot() == null) {
+            return false;
+        }
+        return CryptoUtil.meetsTarget(header.calculateHashBytes(), Difficulty.toTargetBytes(header.getBits()));
+    }
+
+    public static boolean checkMerkleRoot(Block block) {
+        return block.getHeader().getTransactionsRoot().equals(MerkleTree.getMerkleRoot(block.getTransactions()));
+    }
+
+    /**
+     * 트랜잭션 하나의 형식과 서명. coinbase는 서명 대신 서명이 없어야 하며,
+     * 모든 트랜잭션은 ID가 내용의 hash와 같아야 Merkle root가 내용을 보증한다.
+     */
+    public static boolean checkTransaction(Transaction tx, Predicate<Transaction> signatureCheck) {
+        if (tx == null || !tx.hasValidID()) { return false; }
+        if (tx.isCoinbase()) { return tx.getSignature() == null; }
+        return signatureCheck.test(tx);
+    }
+
+    /** pipeline 없이 현재 thread에서 header와 body를 모두 검사한다. */
+    public static boolean checkBlock(Block block, Predicate<Transaction> signatureCheck) {
+        if (!checkHeader(block)) { return false; }
+        for (Transaction tx : block.getTransactions()) {
+            if (!checkTransaction(tx, signatureCheck)) { return false; }
+        }
+        return checkMerkleRoot(block);
+    }
+
+    private CompletableFuture<Boolean> checkBodyAsync(Block block) {
+        List<Transaction> txs = block.getTransactions();
+        List<CompletableFuture<Boolean>> parts = new ArrayList<>();
+        parts.add(CompletableFuture.supplyAsync(() -> checkMerkleRoot(block), workers));
+
+        int chunkSize = Math.max(MIN_CHUNK_SIZE, (txs.size() + workerCount - 1) / workerCount);
+        for (int from = 0; from < txs.size(); from += chunkSize) {
+            List<Transaction> chunk = txs.subList(from, Math.min(from + chunkSize, txs.size()));
+            parts.add(CompletableFuture.supplyAsync(() -> {
+                for (Transaction tx : chunk) {
+                    if (!checkTransaction(tx, verifier::verify)) { return false; }
+                }
+                return true;
+            }, workers));
+        }
+        return CompletableFuture.allOf(parts.toArray(new CompletableFuture<?>[0]))
+                .thenApply(ignored -> parts.stream().allMatch(CompletableFuture::join));
+    }
+
+    private void commitLoop() {
+        while (running) {
+            Pending next;
+            try {
+                next = pending.take();
+            } catch (InterruptedException e) {
+                return;
+            }
+            boolean accepted = false;
+            try {
+                if (next.body.get()) {
+                    long start = System.nanoTime();
+                    accepted = blockchain.addCheckedBlock(next.block);
+                    commitLatency.recordSince(start);
+                } else {
+                    rejected.inc();
+                    Log.limited(Log.Level.WARN, "block-body-invalid", () -> "BlockValidator: block #"
+                            + next.block.getHeader().getNumber() + " has an invalid transaction or Merkle root.");
+                }
+            } catch (InterruptedException e) {
+                return;
+            } catch (ExecutionException | RuntimeException e) {
+                Log.limited(Log.Level.ERROR, "block-commit-error", () -> "BlockValidator: " + e.getMessage());
+            }
+            try {
+                next.onDone.accept(accepted);
+            } catch (RuntimeException e) {
+                Log.limited(Log.Level.ERROR, "block-callback-error", () -> "Error handling validated block: " + e.getMessage());
+            }
+        }
+    }
+}
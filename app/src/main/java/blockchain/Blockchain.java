@@ -1,79 +1,880 @@
 package blockchain;
 
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.UncheckedIOException;
+import java.math.BigInteger;
+import java.nio.file.Path;
+import java.util.ArrayDeque;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
 import java.util.concurrent.CopyOnWriteArrayList;
 
+/**
+ * hash로 색인된 block tree. 각 블록의 누적 작업량(chain work)을 기록하고
+ * 가장 작업량이 큰 branch를 main chain으로 선택한다. main chain은 BlockStore에 저장된다.
+ *
+ * 메모리에는 tip으로부터 RECENT_BLOCK_WINDOW 안의 블록(main chain과 경쟁 branch)만 유지한다.
+ * window 경계에서 parent 연결을 끊으므로 그보다 오래된 node와 본문은 heap에 남지 않는다.
+ * fork 지점이 tip에서 MAX_REORG_DEPTH 보다 깊은 branch로는 전환하지 않는다 (StateDB의 undo 깊이).
+ *
+ * pruneWindow가 0보다 크면 tip에서 그보다 오래된 블록 본문은 디스크에서 지우고 헤더만 남긴다.
+ * 본문이 없는 height는 getBlock이 null을 돌려주며, getFirstFullBlock부터 본문을 제공할 수 있다.
+ *
+ * main chain 트랜잭션은 TxIndex로 ID와 주소에서 찾을 수 있다 (findTransaction, getAddressTransactions).
+ */
 public class Blockchain {
-    private List<Block> chain;
+    // heap에 유지하는 최근 블록 수. 그보다 오래된 블록은 BlockStore에서 읽는다.
+    public static final int RECENT_BLOCK_WINDOW = 256;
+    public static final int MAX_REORG_DEPTH = RECENT_BLOCK_WINDOW;
+    public static final int MAX_ORPHANS = 1000;
 
-    // 난이도 (PoW) - 4개의 0으로 시작하는 해시 찾기
-    public static final int DIFFICULTY = 4;
-    private String difficultyTarget;
+    private BlockStore store;
+    private StateDB state;
+    private TxIndex txIndex;
+    // close 이후에 도착한 블록은 저장하지 않는다
+    private boolean closed;
+    private final int pruneWindow;
+    private Deque<Block> recentBlocks;
+    private volatile Block lastBlock;
 
-    public Blockchain() {
-        this.chain = new CopyOnWriteArrayList<>();
-        this.difficultyTarget = "0".repeat(DIFFICULTY);
-        createGenesisBlock();
+    private Map<String, BlockNode> index;
+    private TreeMap<Long, List<BlockNode>> nodesByHeight;
+    private BlockNode tip;
+    // main chain 블록을 떼어 낼 때마다 증가한다. lock 밖에서 읽은 블록이 그 사이 바뀌지 않았는지 확인한다
+    private long disconnects;
+
+    // 부모가 아직 도착하지 않은 블록. hash -> block, 오래된 것부터 버린다
+    private LinkedHashMap<String, Block> orphans;
+    private Map<String, List<Block>> orphansByParent;
+
+    private List<ChainListener> listeners = new CopyOnWriteArrayList<>();
+
+    private final Metrics.Histogram validateLatency;
+    private final Metrics.Counter blocksConnected;
+    private final Metrics.Counter blocksRejected;
+    private final Metrics.Counter reorgs;
+
+    // 블록 timestamp는 직전 MEDIAN_TIME_SPAN 개 블록 timestamp의 중앙값보다 커야 하고
+    // 현재 시각보다 MAX_FUTURE_BLOCK_TIME_MS 이상 앞설 수 없다
+    public static final int MEDIAN_TIME_SPAN = 11;
+    public static final long MAX_FUTURE_BLOCK_TIME_MS = 2 * 60_000;
+
+    private static class BlockNode {
+        private final String hash;
+        private final BlockHeader header;
+        // window 경계의 node는 null. 그보다 오래된 조상은 BlockStore에서 읽는다
+        private BlockNode parent;
+        private final long height;
+        private final BigInteger chainWork;
+        private Block block;
+
+        BlockNode(Block block, BlockNode parent, BigInteger chainWork) {
+            this.hash = block.getHash();
+            this.header = block.getHeader();
+            this.parent = parent;
+            this.height = block.getHeader().getNumber();
+            this.chainWork = chainWork;
+            this.block = block;
+        }
+    }
+
+    public Blockchain(Path dataDir) {
+        this(dataDir, new Metrics());
+    }
+
+    public Blockchain(Path dataDir, Metrics metrics) {
+        this(dataDir, metrics, 0);
     }
 
-    private void createGenesisBlock() {
+    /**
+     * @param pruneWindow 본문을 남길 최근 블록 수. 0이면 모두 남긴다.
+     *                    reorganization에 본문이 필요하므로 RECENT_BLOCK_WINDOW 이상이어야 한다
+     */
+    public Blockchain(Path dataDir, Metrics metrics, int pruneWindow) {
+        if (pruneWindow < 0 || (pruneWindow > 0 && pruneWindow < RECENT_BLOCK_WINDOW)) {
+            throw new IllegalArgumentException("pruneWindow must be 0 or >= " + RECENT_BLOCK_WINDOW);
+        }
+        this.pruneWindow = pruneWindow;
+        this.validateLatency = metrics.histogram("block_validate_seconds");
+        this.blocksConnected = metrics.counter("blocks_connected_total");
+        this.blocksRejected = metrics.counter("blocks_rejected_total");
+        this.reorgs = metrics.counter("chain_reorgs_total");
+        metrics.gauge("chain_height", () -> store.size() - 1);
+        metrics.gauge("chain_orphans", this::getOrphanCount);
+        metrics.gauge("chain_first_full_block", this::getFirstFullBlock);
+        metrics.gauge("txindex_transactions", () -> txIndex == null ? 0 : txIndex.getTransactionCount());
+        metrics.gauge("txindex_addresses", () -> txIndex == null ? 0 : txIndex.getAddressCount());
+        this.recentBlocks = new ArrayDeque<>();
+        this.index = new HashMap<>();
+        this.nodesByHeight = new TreeMap<>();
+        this.orphans = new LinkedHashMap<>();
+        this.orphansByParent = new HashMap<>();
+        try {
+            this.store = new BlockStore(dataDir);
+            this.state = new StateDB(dataDir);
+            if (store.size() == 0) {
+                state.reset();
+                createGenesisBlock();
+            } else {
+                loadRecentBlocks();
+                syncState();
+            }
+            this.txIndex = new TxIndex(dataDir);
+            txIndex.sync(store);
+        } catch (IOException e) {
+            throw new UncheckedIOException("Open block store failed.", e);
+        }
+    }
+
+    static Block genesisBlock() {
         long genesisTimestamp = 1678886400000L;
 
-        BlockHeader genesisHeader = new BlockHeader("0", CryptoUtil.hashSHA256(""), genesisTimestamp, 0, DIFFICULTY, 0);
-        Block genesisBlock = new Block(genesisHeader, new ArrayList<>());
-        this.chain.add(genesisBlock);
+        BlockHeader genesisHeader = new BlockHeader(CryptoUtil.ZERO_HASH, CryptoUtil.hashSHA256(""), genesisTimestamp, 0, Difficulty.INITIAL_BITS, 0);
+        return new Block(genesisHeader, new ArrayList<>());
+    }
+
+    private void createGenesisBlock() throws IOException {
+        Block genesisBlock = genesisBlock();
+        BlockNode genesis = new BlockNode(genesisBlock, null, blockWork(genesisBlock.getHeader()));
+        addNode(genesis);
+        store.append(genesisBlock, genesis.chainWork);
+        StateDB.Snapshot snapshot = state.snapshot();
+        snapshot.applyBlock(genesisBlock);
+        snapshot.commit();
+        pushRecent(genesisBlock);
+        tip = genesis;
+        lastBlock = genesisBlock;
     }
 
+    private void loadRecentBlocks() throws IOException {
+        long size = store.size();
+        BlockNode parent = null;
+        long from = Math.max(store.getFirstBodyHeight(), size - RECENT_BLOCK_WINDOW);
+        for (long height = from; height < size; height++) {
+            Block block = store.read(height);
+            parent = new BlockNode(block, parent, store.getChainWork(height));
+            addNode(parent);
+            pushRecent(block);
+        }
+        tip = parent;
+        lastBlock = tip.block;
+    }
+
+    /**
+     * 마지막 종료가 상태 저장과 블록 저장 사이에서 끊겼다면 상태를 main chain tip까지 맞춘다.
+     * 상태를 먼저 저장하므로 상태의 tip이 main chain에 없으면 undo 정보로 main chain 위까지 되돌리고,
+     * 그래도 맞지 않으면 genesis부터 다시 적용한다.
+     */
+    private void syncState() throws IOException {
+        long size = store.size();
+        if (state.getHeight() == size - 1 && state.getTipHash().equals(store.getHash(size - 1))) {
+            return;
+        }
+        StateDB.Snapshot snapshot = state.snapshot();
+        while (snapshot.getHeight() >= 0 && !isStoredTip(snapshot.getHeight(), snapshot.getTipHash())) {
+            if (!snapshot.revertTip()) { break; }
+        }
+        if (snapshot.getHeight() < 0 || !isStoredTip(snapshot.getHeight(), snapshot.getTipHash())) {
+            state.reset();
+            snapshot = state.snapshot();
+        } else if (snapshot.getHeight() < state.getHeight() || !snapshot.getTipHash().equals(state.getTipHash())) {
+            Log.info("Reverting account state from #" + state.getHeight() + " to stored block #" + snapshot.getHeight());
+        }
+        long from = snapshot.getHeight() + 1;
+        if (from < store.getFirstBodyHeight()) {
+            throw new IOException("Account state needs block #" + from + " but blocks before #"
+                    + store.getFirstBodyHeight() + " are pruned. Import a snapshot instead.");
+        }
+        if (from < size) {
+            Log.info("Rebuilding account state from block #" + from + " to #" + (size - 1));
+        }
+        for (long height = from; height < size; height++) {
+            if (!snapshot.applyBlock(store.read(height))) {
+                throw new IOException("Stored block #" + height + " does not apply to account state.");
+            }
+        }
+        snapshot.commit();
+    }
+
+    private boolean isStoredTip(long height, String hash) throws IOException {
+        return height < store.size() && hash.equals(store.getHash(height));
+    }
+
+    public void addListener(ChainListener listener) { listeners.add(listener); }
+
     public Block getLastBlock() {
-        return chain.get(chain.size() - 1);
+        return lastBlock;
     }
 
+    /** main chain의 height 번째 블록. 본문이 prune 되었으면 null */
+    public synchronized Block getBlock(long height) {
+        Block recent = recentBlock(height);
+        if (recent != null) {
+            return recent;
+        }
+        try {
+            return store.read(height);
+        } catch (IOException e) {
+            throw new UncheckedIOException("Read block #" + height + " failed.", e);
+        }
+    }
+
+    /** 메모리에 남아 있는 최근 main chain 블록. 없으면 null */
+    private synchronized Block recentBlock(long height) {
+        long size = store.size();
+        if (height >= size - recentBlocks.size() && height < size) {
+            int offset = (int) (height - (size - recentBlocks.size()));
+            for (Block block : recentBlocks) {
+                if (offset-- == 0) { return block; }
+            }
+        }
+        return null;
+    }
+
+    /** main chain 또는 메모리에 있는 경쟁 branch에서 hash로 블록을 찾는다. 없거나 prune 되었으면 null */
+    public synchronized Block getBlockByHash(String hash) {
+        BlockNode node = index.get(hash);
+        if (node != null && node.block != null) {
+            return node.block;
+        }
+        try {
+            long height = store.findHeight(hash);
+            return height < 0 ? null : store.read(height);
+        } catch (IOException e) {
+            throw new UncheckedIOException("Read block " + hash + " failed.", e);
+        }
+    }
+
+    /** @return main chain에 있는 블록의 height. 없으면 -1 */
+    public synchronized long findHeight(String hash) {
+        try {
+            return store.findHeight(hash);
+        } catch (IOException e) {
+            throw new UncheckedIOException("Find block " + hash + " failed.", e);
+        }
+    }
+
+    /** main chain에서 transaction ID로 트랜잭션을 찾는다. index에 없으면 null */
+    public TxIndex.Entry findTransaction(String transactionId) {
+        while (true) {
+            long location;
+            long tipHeight;
+            long version;
+            synchronized (this) {
+                location = txIndex.find(transactionId);
+                tipHeight = tip.height;
+                version = disconnects;
+            }
+            if (location < 0) { return null; }
+            List<TxIndex.Entry> entries = readEntries(new long[] {location}, 1, tipHeight, version);
+            if (entries != null) { return entries.get(0); }
+        }
+    }
+
+    /**
+     * address가 보내거나 받은 main chain 트랜잭션을 최신 것부터 limit개 돌려준다.
+     * 다음 page는 이전 page의 nextCursor를 cursor로 넘겨 받는다. 그 사이 새 블록이 붙어도 page가 밀리지 않는다.
+     * @param cursor 처음 page는 0
+     */
+    public TxIndex.Page getAddressTransactions(String address, long cursor, int limit) {
+        if (limit < 1 || limit > TxIndex.MAX_PAGE_SIZE) {
+            throw new IllegalArgumentException("limit must be between 1 and " + TxIndex.MAX_PAGE_SIZE);
+        }
+        if (cursor < 0) {
+            throw new IllegalArgumentException("Invalid cursor " + cursor);
+        }
+        while (true) {
+            TxIndex.Page page = new TxIndex.Page();
+            long[] locations;
+            long tipHeight;
+            long version;
+            synchronized (this) {
+                locations = txIndex.findByAddress(address, cursor == 0 ? Long.MAX_VALUE : cursor, limit + 1);
+                page.total = txIndex.countByAddress(address);
+                tipHeight = tip.height;
+                version = disconnects;
+            }
+            page.transactions = readEntries(locations, Math.min(limit, locations.length), tipHeight, version);
+            if (page.transactions == null) { continue; }
+            // 다음 page는 이번 page의 마지막 위치보다 앞의 것부터
+            page.nextCursor = locations.length > limit ? locations[limit - 1] : 0;
+            return page;
+        }
+    }
+
+    /**
+     * locations의 앞 count개를 읽는다. locations는 위치 순이므로 같은 블록의 트랜잭션이 이어져 있고,
+     * 블록마다 한 번만 읽는다. 최근 블록은 메모리에서 가져오고 나머지는 chain lock 밖에서 저장소에서 읽는다.
+     * @return 읽는 동안 main chain 블록이 떼어졌으면 null. 호출한 쪽에서 index를 다시 찾는다
+     */
+    private List<TxIndex.Entry> readEntries(long[] locations, int count, long tipHeight, long version) {
+        List<TxIndex.Entry> entries = new ArrayList<>(count);
+        long blockHeight = -1;
+        String blockHash = null;
+        Block block = null;
+        for (int i = 0; i < count; i++) {
+            TxIndex.Entry entry = new TxIndex.Entry();
+            entry.height = TxIndex.height(locations[i]);
+            entry.position = TxIndex.position(locations[i]);
+            entry.confirmations = tipHeight - entry.height + 1;
+            if (entry.height != blockHeight) {
+                try {
+                    blockHash = store.getHash(entry.height);
+                    block = recentBlock(entry.height);
+                    if (block == null) {
+                        block = store.read(entry.height);
+                    }
+                } catch (IndexOutOfBoundsException e) {
+                    // 그 사이 저장소가 잘렸다
+                    return null;
+                } catch (IOException e) {
+                    throw new UncheckedIOException("Read block #" + entry.height + " failed.", e);
+                }
+                blockHeight = entry.height;
+            }
+            entry.blockHash = blockHash;
+            if (block != null && entry.position < block.getTransactions().size()) {
+                entry.transaction = block.getTransactions().get(entry.position);
+            }
+            entries.add(entry);
+        }
+        synchronized (this) {
+            return disconnects == version ? entries : null;
+        }
+    }
+
+    public synchronized boolean contains(String hash) {
+        if (index.containsKey(hash)) { return true; }
+        try {
+            return store.findHeight(hash) >= 0;
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    /**
+     * 동기화 요청에 쓰는 block locator. tip부터 처음 10개는 연속으로, 그 다음부터는
+     * 간격을 두 배씩 늘려 가며 main chain hash를 모으고 마지막에 genesis를 넣는다.
+     */
+    public synchronized List<String> getLocator() {
+        List<String> locator = new ArrayList<>();
+        long step = 1;
+        try {
+            for (long height = store.size() - 1; height > 0; height -= step) {
+                locator.add(store.getHash(height));
+                if (locator.size() >= 10) { step *= 2; }
+            }
+            locator.add(store.getHash(0));
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        return locator;
+    }
+
+    /**
+     * locator에서 처음으로 main chain에 있는 hash 다음부터 최대 max 개의 헤더를 돌려준다.
+     * 공통 블록을 찾지 못하면 genesis 다음부터 보낸다.
+     */
+    public synchronized List<BlockHeader> getHeadersAfter(List<String> locator, int max) {
+        List<BlockHeader> headers = new ArrayList<>();
+        try {
+            long start = 0;
+            for (String hash : locator) {
+                long height = store.findHeight(hash);
+                if (height >= 0) {
+                    start = height;
+                    break;
+                }
+            }
+            for (long height = start + 1; height < store.size() && headers.size() < max; height++) {
+                headers.add(store.readHeader(height));
+            }
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        return headers;
+    }
+
+    /**
+     * 블록 본문 없이 헤더만으로 할 수 있는 검사 (target 범위, PoW).
+     * target이 retarget 규칙과 맞는지는 부모가 tree에 있어야 알 수 있으므로 블록을 붙일 때 검사한다.
+     */
+    public boolean isValidHeader(BlockHeader header) {
+        return isValidProofOfWork(header);
+    }
+
+    /** tip 다음 블록이 가져야 할 compact target */
+    public synchronized long getNextBits() {
+        return nextBits(tip);
+    }
+
+    /** tip 다음 블록의 timestamp는 이 값보다 커야 한다 */
+    public synchronized long getMedianTimePast() {
+        return medianTimePast(tip);
+    }
+
+    /** tip 위에 block template을 만드는 데 필요한 값. 모두 같은 tip에서 읽는다 */
+    public static class TemplateBase {
+        public Block parent;
+        public long bits;
+        public long medianTimePast;
+        public StateDB.Snapshot state;
+    }
+
+    /** 각각 따로 읽으면 그 사이 tip이 바뀌어 서로 다른 tip의 값이 섞일 수 있으므로 한 번에 읽는다 */
+    public synchronized TemplateBase getTemplateBase() {
+        TemplateBase base = new TemplateBase();
+        base.parent = tip.block;
+        base.bits = nextBits(tip);
+        base.medianTimePast = medianTimePast(tip);
+        base.state = state.snapshot();
+        return base;
+    }
+
+    /**
+     * 블록을 block tree에 추가한다. 부모가 없으면 orphan pool에 보관했다가 부모가 도착하면 다시 처리한다.
+     * 새 블록 쪽 branch의 누적 작업량이 더 크면 main chain을 그 branch로 전환한다.
+     * header, Merkle root, 트랜잭션 서명을 이 thread에서 차례로 검사하므로 peer에게 받은 블록은
+     * 병렬로 검사하는 BlockValidator를 거치는 편이 빠르다.
+     * @return 블록이 유효해서 tree에 추가되었으면 true (main chain이 아닌 branch일 수도 있다)
+     */
     public boolean addBlock(Block newBlock) {
-        Block previousBlock = getLastBlock();
+        if (!BlockValidator.checkBlock(newBlock, Blockchain::verifySignature)) {
+            invalid("Invalid header, transaction or Merkle root");
+            return false;
+        }
+        return addCheckedBlock(newBlock);
+    }
+
+    /**
+     * BlockValidator.checkBlock에 해당하는 검사(header, body)를 이미 통과한 블록을 추가한다.
+     * 여기서는 부모, 난이도, timestamp, 계정 상태처럼 tree가 있어야 하는 검사만 한다.
+     */
+    synchronized boolean addCheckedBlock(Block newBlock) {
+        if (closed) {
+            return false;
+        }
+        if (index.containsKey(newBlock.getHash()) || orphans.containsKey(newBlock.getHash())) {
+            return false;
+        }
+        BlockNode parent = index.get(newBlock.getHeader().getParentHash());
+        if (parent == null) {
+            addOrphan(newBlock);
+            return false;
+        }
+        if (!connect(newBlock, parent)) {
+            return false;
+        }
+
+        // 이 블록을 기다리던 orphan들을 이어 붙인다
+        Deque<Block> ready = new ArrayDeque<>();
+        ready.add(newBlock);
+        while (!ready.isEmpty()) {
+            List<Block> children = orphansByParent.remove(ready.poll().getHash());
+            if (children == null) { continue; }
+            for (Block child : children) {
+                orphans.remove(child.getHash());
+                BlockNode childParent = index.get(child.getHeader().getParentHash());
+                if (childParent != null && connect(child, childParent)) {
+                    ready.add(child);
+                }
+            }
+        }
+        return true;
+    }
+
+    private boolean connect(Block block, BlockNode parent) {
+        long start = System.nanoTime();
+        boolean valid = isValidBlock(block, parent);
+        validateLatency.recordSince(start);
+        if (!valid) {
+            blocksRejected.inc();
+            return false;
+        }
+        BlockNode node = new BlockNode(block, parent, parent.chainWork.add(blockWork(block.getHeader())));
+        addNode(node);
+
+        if (node.chainWork.compareTo(tip.chainWork) > 0) {
+            try {
+                return reorganize(node);
+            } catch (IOException e) {
+                Log.error("Block store write failed: " + e.getMessage());
+                return false;
+            }
+        }
+        return true;
+    }
 
-        if (isValidBlock(newBlock, previousBlock)) {
-            chain.add(newBlock);
+    /**
+     * main chain을 newTip으로 끝나는 branch로 바꾼다. parent가 tip이면 블록 하나를 붙이는 것과 같다.
+     * 계정 상태는 snapshot에서 먼저 전환해 보고, branch에 적용할 수 없는 블록이 있으면
+     * 그 블록부터 branch 끝까지 tree에서 제거하고 main chain은 그대로 둔다.
+     * @return newTip이 main chain이 되었으면 true
+     */
+    private boolean reorganize(BlockNode newTip) throws IOException {
+        List<BlockNode> connected = new ArrayList<>();
+        BlockNode fork = newTip;
+        BlockNode oldTip = tip;
+        BlockNode mainNode = oldTip;
+        while (fork != null && fork.height > mainNode.height) {
+            connected.add(fork);
+            fork = fork.parent;
+        }
+        while (fork != null && mainNode != null && fork != mainNode) {
+            connected.add(fork);
+            fork = fork.parent;
+            mainNode = mainNode.parent;
+        }
+        if (fork == null || mainNode == null || oldTip.height - fork.height > MAX_REORG_DEPTH) {
+            Log.warn("Block tree: fork point is deeper than " + MAX_REORG_DEPTH + " blocks. Ignoring branch.");
             return true;
         }
-        return false;
+        Collections.reverse(connected);
+
+        List<BlockNode> disconnectedNodes = new ArrayList<>();
+        List<Block> disconnected = new ArrayList<>();
+        for (BlockNode node = oldTip; node != fork; node = node.parent) {
+            disconnectedNodes.add(node);
+            disconnected.add(node.block != null ? node.block : store.read(node.height));
+        }
+
+        StateDB.Snapshot candidate = state.snapshot();
+        for (Block block : disconnected) {
+            if (!candidate.revertBlock(block)) {
+                Log.warn("Block tree: no undo data to disconnect block #" + block.getHeader().getNumber() + ". Ignoring branch.");
+                return true;
+            }
+        }
+        for (int i = 0; i < connected.size(); i++) {
+            if (!candidate.applyBlock(connected.get(i).block)) {
+                invalid("Transactions do not apply to account state");
+                removeNodes(connected.subList(i, connected.size()));
+                return false;
+            }
+        }
+
+        if (!disconnected.isEmpty()) {
+            reorgs.inc();
+            disconnects++;
+            Log.info("Block tree: reorganizing " + disconnected.size() + " block(s) at #" + fork.height
+                    + ", new tip #" + newTip.height);
+        }
+        // 상태를 먼저 한 레코드로 디스크에 내린다. 실패하면 아무것도 바뀌지 않았다.
+        // 이후 블록 저장이 실패하면 되돌리고, 그 사이에 종료되면 재시작 때 syncState가 상태를 저장소에 맞춘다
+        candidate.commit();
+        try {
+            for (Block block : disconnected) {
+                txIndex.disconnect(block);
+            }
+            store.truncate(fork.height + 1);
+            for (BlockNode node : connected) {
+                store.append(node.block, node.chainWork);
+                txIndex.connect(node.block);
+            }
+        } catch (IOException e) {
+            rollback(fork, disconnectedNodes, disconnected, connected);
+            throw e;
+        }
+        for (int i = 0; i < disconnected.size() && !recentBlocks.isEmpty(); i++) {
+            recentBlocks.removeLast();
+        }
+        for (BlockNode node : connected) {
+            pushRecent(node.block);
+        }
+        if (pruneWindow > 0) {
+            try {
+                store.prune(newTip.height + 1 - pruneWindow);
+            } catch (IOException e) {
+                // 지우지 못한 segment는 다음 prune에서 다시 지운다
+                Log.warn("Block store prune failed: " + e.getMessage());
+            }
+        }
+        tip = newTip;
+        lastBlock = newTip.block;
+        blocksConnected.add(connected.size());
+        pruneNodes();
+
+        for (Block block : disconnected) {
+            for (ChainListener listener : listeners) { listener.onBlockDisconnected(block); }
+        }
+        for (BlockNode node : connected) {
+            for (ChainListener listener : listeners) { listener.onBlockConnected(node.block); }
+        }
+        return true;
     }
 
-    private boolean isValidBlock(Block newBlock, Block previousBlock) {
-        if(!newBlock.getHeader().getParentHash().equals(previousBlock.getHash())) {
-            System.err.println("Block validation failed: ParentHash mismatch");
+    /**
+     * reorganize 중 블록 저장이 실패했을 때 저장소, tx index, 상태를 fork 전의 main chain으로 되돌린다.
+     * 되돌리기도 실패하면 디스크가 서로 맞지 않은 채로 남으며, 재시작 때 저장소 기준으로 다시 맞춘다.
+     * @param disconnectedNodes 떼어 내려던 main chain 블록. tip부터의 순서
+     */
+    private void rollback(BlockNode fork, List<BlockNode> disconnectedNodes, List<Block> disconnected, List<BlockNode> connected) {
+        try {
+            store.truncate(fork.height + 1);
+            for (int i = disconnected.size() - 1; i >= 0; i--) {
+                store.append(disconnected.get(i), disconnectedNodes.get(i).chainWork);
+            }
+            txIndex.sync(store);
+            StateDB.Snapshot snapshot = state.snapshot();
+            for (int i = connected.size() - 1; i >= 0; i--) {
+                if (!snapshot.revertBlock(connected.get(i).block)) {
+                    throw new IOException("no undo data for block #" + connected.get(i).height);
+                }
+            }
+            for (int i = disconnected.size() - 1; i >= 0; i--) {
+                if (!snapshot.applyBlock(disconnected.get(i))) {
+                    throw new IOException("block #" + disconnectedNodes.get(i).height + " does not apply");
+                }
+            }
+            snapshot.commit();
+        } catch (IOException e) {
+            Log.error("Block store rollback failed: " + e.getMessage() + ". Restart the node to repair the chain state.");
+        }
+    }
+
+    private boolean isValidBlock(Block newBlock, BlockNode parent) {
+        if(!newBlock.getHeader().getParentHash().equals(parent.hash)) {
+            invalid("ParentHash mismatch");
+            return false;
+        }
+        if(newBlock.getHeader().getNumber() != parent.height + 1) {
+            invalid("Block number incorrect");
             return false;
         }
-        if(newBlock.getHeader().getNumber() != previousBlock.getHeader().getNumber() + 1) {
-            System.err.println("Block validation failed: Block number incorrect");
+        if (newBlock.getHeader().getBits() != nextBits(parent)) {
+            invalid("Unexpected difficulty target");
             return false;
         }
-        if (!isValidProofOfWork(newBlock.getHeader())) {
-            System.err.println("Block validation failed: Invalid Proof of Work");
+        if (newBlock.getHeader().getTimestamp() <= medianTimePast(parent)) {
+            invalid("Timestamp is not after median time of recent blocks");
             return false;
         }
-        String expectedMerkleRoot = MerkleTree.getMerkleRoot(newBlock.getTransactions());
-        if (!newBlock.getHeader().getTransactionsRoot().equals(expectedMerkleRoot)) {
-            System.err.println("Block validation failed: Merkle Root mismatch");
+        if (newBlock.getHeader().getTimestamp() > System.currentTimeMillis() + MAX_FUTURE_BLOCK_TIME_MS) {
+            invalid("Timestamp too far in the future");
             return false;
         }
         return true;
     }
 
+    // peer가 잘못된 블록을 계속 보내도 로그가 넘치지 않게 한다
+    private static void invalid(String reason) {
+        Log.limited(Log.Level.WARN, "block-invalid", () -> "Block validation failed: " + reason);
+    }
+
+    /** 헤더 hash를 big-endian 정수로 보고 헤더에 적힌 target 이하인지 확인 */
     public boolean isValidProofOfWork(BlockHeader header) {
-        String hash = header.calculateHash();
-        return hash.startsWith(difficultyTarget);
+        return Difficulty.isValidBits(header.getBits())
+                && CryptoUtil.meetsTarget(header.calculateHashBytes(), Difficulty.toTargetBytes(header.getBits()));
     }
 
-    public String getDifficultyTarget() { return difficultyTarget; }
-    public long getDifficulty() { return DIFFICULTY; }
-    public int getChainSize() { return chain.size(); }
+    private static boolean verifySignature(Transaction tx) {
+        if (tx.getSenderPublicKey() == null || tx.getSignature() == null) { return false; }
+        try {
+            return CryptoUtil.verify(CryptoUtil.stringToPublicKey(tx.getSenderPublicKey()), tx.getDataToSignBytes(), tx.getSignature());
+        } catch (RuntimeException e) {
+            return false;
+        }
+    }
+
+    private static BigInteger blockWork(BlockHeader header) {
+        return Difficulty.work(header.getBits());
+    }
+
+    /**
+     * parent 다음 블록의 target. genesis는 timestamp가 고정이므로 window에서 뺀다.
+     * window는 parent까지의 최근 블록이며, 경쟁 branch라면 그 branch의 블록으로 계산한다.
+     */
+    private long nextBits(BlockNode parent) {
+        int blocks = (int) Math.min(Difficulty.RETARGET_WINDOW, parent.height - 1);
+        if (blocks <= 0) {
+            return Difficulty.INITIAL_BITS;
+        }
+        return nextBits(ancestorHeaders(parent, blocks + 1));
+    }
+
+    /**
+     * @param window parent부터 부모 방향으로 min(RETARGET_WINDOW, parent height - 1) + 1 개의 헤더
+     */
+    static long nextBits(List<BlockHeader> window) {
+        int blocks = window.size() - 1;
+        if (blocks <= 0) {
+            return Difficulty.INITIAL_BITS;
+        }
+        BigInteger targetSum = BigInteger.ZERO;
+        for (int i = 0; i < blocks; i++) {
+            targetSum = targetSum.add(Difficulty.decodeCompact(window.get(i).getBits()));
+        }
+        long timespan = window.get(0).getTimestamp() - window.get(blocks).getTimestamp();
+        return Difficulty.nextBits(targetSum, blocks, timespan);
+    }
+
+    private long medianTimePast(BlockNode parent) {
+        List<BlockHeader> window = ancestorHeaders(parent, MEDIAN_TIME_SPAN);
+        long[] timestamps = new long[window.size()];
+        for (int i = 0; i < timestamps.length; i++) {
+            timestamps[i] = window.get(i).getTimestamp();
+        }
+        Arrays.sort(timestamps);
+        return timestamps[timestamps.length / 2];
+    }
+
+    /**
+     * hash 블록부터 부모 방향으로 최대 count 개의 헤더. tree에 붙이기 전에 헤더의 난이도를 확인할 때 쓴다.
+     * @return tree나 main chain에 없는 hash면 null
+     */
+    public synchronized List<BlockHeader> getAncestorHeaders(String hash, int count) {
+        BlockNode node = index.get(hash);
+        if (node != null) {
+            return ancestorHeaders(node, count);
+        }
+        try {
+            long height = store.findHeight(hash);
+            if (height < 0) { return null; }
+            List<BlockHeader> headers = new ArrayList<>(count);
+            for (; headers.size() < count && height >= 0; height--) {
+                headers.add(store.readHeader(height));
+            }
+            return headers;
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    /** node부터 부모 방향으로 최대 count 개의 헤더. 메모리 window 밖은 main chain이므로 BlockStore에서 읽는다. */
+    private List<BlockHeader> ancestorHeaders(BlockNode node, int count) {
+        List<BlockHeader> headers = new ArrayList<>(count);
+        try {
+            for (long height = node.height; headers.size() < count && height >= 0; height--) {
+                if (node != null) {
+                    headers.add(node.header);
+                    node = node.parent;
+                } else {
+                    headers.add(store.readHeader(height));
+                }
+            }
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        return headers;
+    }
+
+    private void addOrphan(Block block) {
+        if (orphans.size() >= MAX_ORPHANS) {
+            Iterator<Block> oldest = orphans.values().iterator();
+            Block evicted = oldest.next();
+            oldest.remove();
+            List<Block> siblings = orphansByParent.get(evicted.getHeader().getParentHash());
+            if (siblings != null) {
+                siblings.remove(evicted);
+                if (siblings.isEmpty()) { orphansByParent.remove(evicted.getHeader().getParentHash()); }
+            }
+        }
+        orphans.put(block.getHash(), block);
+        orphansByParent.computeIfAbsent(block.getHeader().getParentHash(), k -> new ArrayList<>()).add(block);
+        Log.debug(() -> "Block tree: parent of block #" + block.getHeader().getNumber() + " unknown. Kept as orphan.");
+    }
+
+    private void removeNodes(List<BlockNode> nodes) {
+        for (BlockNode node : nodes) {
+            index.remove(node.hash);
+            List<BlockNode> atHeight = nodesByHeight.get(node.height);
+            if (atHeight != null) {
+                atHeight.remove(node);
+                if (atHeight.isEmpty()) { nodesByHeight.remove(node.height); }
+            }
+        }
+    }
+
+    private void addNode(BlockNode node) {
+        index.put(node.hash, node);
+        nodesByHeight.computeIfAbsent(node.height, h -> new ArrayList<>()).add(node);
+    }
+
+    /**
+     * window 밖으로 밀려난 node를 메모리에서 내린다. main chain 블록은 BlockStore에서 다시 찾을 수 있다.
+     * 남은 가장 낮은 node의 parent 연결을 끊어 내린 node가 tip에서 도달할 수 없게 한다.
+     */
+    private void pruneNodes() {
+        long minHeight = tip.height - RECENT_BLOCK_WINDOW;
+        boolean pruned = false;
+        while (!nodesByHeight.isEmpty() && nodesByHeight.firstKey() < minHeight) {
+            for (BlockNode node : nodesByHeight.pollFirstEntry().getValue()) {
+                index.remove(node.hash);
+                node.block = null;
+                node.parent = null;
+            }
+            pruned = true;
+        }
+        if (pruned && !nodesByHeight.isEmpty()) {
+            for (BlockNode node : nodesByHeight.firstEntry().getValue()) {
+                node.parent = null;
+            }
+        }
+    }
+
+    private void pushRecent(Block block) {
+        recentBlocks.addLast(block);
+        if (recentBlocks.size() > RECENT_BLOCK_WINDOW) {
+            recentBlocks.removeFirst();
+        }
+    }
+
+    /**
+     * 헤더 전체, 최근 블록, 계정 상태 checkpoint를 snapshot으로 쓴다. 쓰는 동안 새 블록은 기다린다.
+     * @see ChainSnapshot
+     */
+    public synchronized void exportSnapshot(OutputStream out) throws IOException {
+        ChainSnapshot.write(store, state, out);
+    }
+
+    /** 빈 dataDir에 snapshot을 검증하며 풀어 놓는다. 그 다음 Blockchain을 열면 snapshot의 tip부터 이어 간다 */
+    public static void importSnapshot(Path dataDir, InputStream in) throws IOException {
+        ChainSnapshot.read(dataDir, in);
+    }
+
+    public synchronized void close() {
+        if (closed) { return; }
+        closed = true;
+        try {
+            store.close();
+            state.close();
+            txIndex.close();
+        } catch (IOException e) {
+            Log.error("Block store close failed: " + e.getMessage());
+        }
+    }
+
+    /** main chain tip 기준의 계정 상태 */
+    public StateDB getState() { return state; }
+
+    /** tip 블록의 난이도 (Difficulty.relativeDifficulty) */
+    public synchronized double getDifficulty() { return Difficulty.relativeDifficulty(tip.header.getBits()); }
+    public int getChainSize() { return (int) store.size(); }
+    /** 본문을 가진 가장 낮은 height. 그보다 낮은 블록은 헤더만 있다 */
+    public long getFirstFullBlock() { return store.getFirstBodyHeight(); }
+    public synchronized BigInteger getChainWork() { return tip.chainWork; }
+    public synchronized int getOrphanCount() { return orphans.size(); }
 
     @Override
     public String toString() {
-        StringBuilder sb = new StringBuilder("--- Blockchain (Size: " + chain.size() + ") ---\n");
-        for (Block block : chain) {
-            sb.append(block.toString()).append("\n");
+        int size = getChainSize();
+        StringBuilder sb = new StringBuilder("--- Blockchain (Size: " + size + ") ---\n");
+        long first = getFirstFullBlock();
+        if (first > 0) {
+            sb.append("(blocks #0 - #").append(first - 1).append(" pruned)\n");
+        }
+        for (long height = first; height < size; height++) {
+            sb.append(getBlock(height).toString()).append("\n");
         }
         sb.append("----------------------------");
         return sb.toString();
@@ -0,0 +1,10 @@
+package blockchain;
+
+/**
+ * main chain 변경 알림. fork 전환 시에는 버려지는 블록의 disconnected가 tip부터 차례로,
+ * 그 다음 새 branch 블록의 connected가 오래된 것부터 차례로 호출된다.
+ */
+public interface ChainListener {
+    void onBlockConnected(Block block);
+    void onBlockDisconnected(Block block);
+}
@@ -0,0 +1,208 @@
+package blockchain;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.math.BigInteger;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Deque;
+import java.util.List;
+import java.util.stream.Stream;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * 새 노드가 genesis부터 모든 블록을 받아 재실행하지 않고 시작할 수 있게 하는 chain snapshot.
+ *
+ * gzip으로 압축한 하나의 stream이며 순서는 다음과 같다.
+ *   [magic][version]
+ *   [header count]{BlockHeader.toBytes()}       : 본문 없이 헤더만 넘기는 앞부분
+ *   [block count]{[length][block]}              : tip까지의 최근 블록 (BlockStore 형식)
+ *   StateDB checkpoint                          : tip 기준 계정 상태와 undo 정보, stream 끝까지
+ *
+ * 가져올 때 헤더 연결, PoW, target, timestamp와 블록 hash, Merkle root를 모두 다시 검사하고
+ * chain work는 직접 계산한다. 계정 상태 자체는 tip 헤더에 묶여 있지 않으므로
+ * snapshot을 만든 노드를 신뢰해야 한다.
+ */
+public class ChainSnapshot {
+    private static final int MAGIC = 0x42435350; // "BCSP"
+    // 1: 블록을 JSON으로 쓰던 형식. 가져오기만 지원한다
+    private static final int VERSION = 2;
+    // JSON 블록 하나의 최대 크기. 잘못된 길이로 큰 배열을 만들지 않도록 한다
+    private static final int MAX_BLOCK_BYTES = 64 * 1024 * 1024;
+    // 검사에 필요한 최근 헤더 수 (retarget window와 median time span)
+    private static final int HEADER_HISTORY = Math.max(Difficulty.RETARGET_WINDOW + 1, Blockchain.MEDIAN_TIME_SPAN);
+
+    private ChainSnapshot() {}
+
+    static void write(BlockStore store, StateDB state, OutputStream out) throws IOException {
+        long size = store.size();
+        if (state.getHeight() != size - 1) {
+            throw new IOException("Account state is at #" + state.getHeight() + " but chain tip is #" + (size - 1));
+        }
+        long bodies = Math.min(Blockchain.RECENT_BLOCK_WINDOW, size - store.getFirstBodyHeight());
+        long headersOnly = size - bodies;
+
+        GZIPOutputStream gzip = new GZIPOutputStream(out, 64 * 1024);
+        DataOutputStream data = new DataOutputStream(new BufferedOutputStream(gzip, 64 * 1024));
+        data.writeInt(MAGIC);
+        data.writeInt(VERSION);
+        data.writeLong(headersOnly);
+        for (long height = 0; height < headersOnly; height++) {
+            data.write(store.readHeader(height).toBytes());
+        }
+        data.writeLong(bodies);
+        for (long height = headersOnly; height < size; height++) {
+            byte[] block = BlockStore.encode(store.read(height));
+            data.writeInt(block.length);
+            data.write(block);
+        }
+        state.exportCheckpoint(data);
+        data.flush();
+        gzip.finish();
+        Log.info("ChainSnapshot: exported tip #" + (size - 1) + " with " + bodies + " full blocks");
+    }
+
+    static void read(Path dataDir, InputStream in) throws IOException {
+        if (Files.isDirectory(dataDir)) {
+            try (Stream<Path> entries = Files.list(dataDir)) {
+                if (entries.findAny().isPresent()) {
+                    throw new IOException("Snapshot can only be imported into an empty directory: " + dataDir);
+                }
+            }
+        }
+
+        DataInputStream data = new DataInputStream(new BufferedInputStream(new GZIPInputStream(in, 64 * 1024), 64 * 1024));
+        if (data.readInt() != MAGIC) {
+            throw new IOException("Not a chain snapshot");
+        }
+        int version = data.readInt();
+        if (version != 1 && version != VERSION) {
+            throw new IOException("Unsupported snapshot version " + version);
+        }
+        try (BlockStore store = new BlockStore(dataDir)) {
+            Verifier verifier = new Verifier();
+            long headersOnly = data.readLong();
+            if (headersOnly < 0) { throw new IOException("Invalid header count " + headersOnly); }
+            byte[] record = new byte[BlockHeader.SIZE];
+            for (long height = 0; height < headersOnly; height++) {
+                data.readFully(record);
+                BlockHeader header = BlockHeader.fromBytes(ByteBuffer.wrap(record));
+                store.appendHeader(header, verifier.next(header, header.calculateHash()));
+            }
+
+            long bodies = data.readLong();
+            if (bodies < 1 || bodies > Blockchain.RECENT_BLOCK_WINDOW) {
+                throw new IOException("Invalid block count " + bodies);
+            }
+            for (long i = 0; i < bodies; i++) {
+                int length = data.readInt();
+                if (length <= 0 || length > MAX_BLOCK_BYTES) { throw new IOException("Invalid block length " + length); }
+                byte[] bytes = new byte[length];
+                data.readFully(bytes);
+                Block block = parseBlock(bytes);
+                if (!BlockValidator.checkMerkleRoot(block)) {
+                    throw new IOException("Transactions of block #" + block.getHeader().getNumber() + " do not match its header");
+                }
+                store.append(block, verifier.next(block.getHeader(), block.getHash()));
+            }
+            store.flush();
+
+            StateDB.importCheckpoint(dataDir, data);
+            try (StateDB state = new StateDB(dataDir)) {
+                if (state.getHeight() != store.size() - 1 || !state.getTipHash().equals(store.getHash(store.size() - 1))) {
+                    throw new IOException("Account state #" + state.getHeight() + " does not match snapshot tip #" + (store.size() - 1));
+                }
+            } catch (RuntimeException e) {
+                throw new IOException("Corrupt account state in snapshot", e);
+            }
+            Log.info("ChainSnapshot: imported tip #" + (store.size() - 1) + " with " + bodies + " full blocks");
+        } catch (IOException | RuntimeException e) {
+            // 반쯤 풀린 저장소로 노드가 시작하지 않도록 지운다
+            deleteContents(dataDir);
+            throw e instanceof IOException io ? io : new IOException("Invalid snapshot", e);
+        }
+    }
+
+    private static Block parseBlock(byte[] bytes) throws IOException {
+        Block block;
+        try {
+            block = BlockStore.decode(bytes);
+        } catch (IllegalArgumentException | BufferUnderflowException e) {
+            throw new IOException("Malformed block in snapshot", e);
+        }
+        // PoW는 Verifier가 헤더 순서대로 검사한다 (genesis 제외)
+        if (block == null || block.getHeader() == null || block.getTransactions() == null
+                || !block.getHeader().calculateHash().equals(block.getHash())) {
+            throw new IOException("Invalid block in snapshot");
+        }
+        return block;
+    }
+
+    private static void deleteContents(Path dir) throws IOException {
+        if (!Files.isDirectory(dir)) { return; }
+        try (Stream<Path> entries = Files.list(dir)) {
+            for (Path entry : (Iterable<Path>) entries::iterator) {
+                Files.deleteIfExists(entry);
+            }
+        }
+    }
+
+    /** 헤더를 순서대로 받아 Blockchain과 같은 규칙으로 검사하고 누적 chain work를 돌려준다 */
+    private static class Verifier {
+        // 최근 헤더. 앞쪽이 가장 최근
+        private final Deque<BlockHeader> history = new ArrayDeque<>();
+        private String previousHash;
+        private BigInteger chainWork = BigInteger.ZERO;
+        private long height;
+
+        BigInteger next(BlockHeader header, String hash) throws IOException {
+            if (header.getNumber() != height) {
+                throw new IOException("Expected header #" + height + " but got #" + header.getNumber());
+            }
+            if (height == 0) {
+                if (!hash.equals(Blockchain.genesisBlock().getHash())) {
+                    throw new IOException("Snapshot is for a different genesis block");
+                }
+            } else {
+                if (!header.getParentHash().equals(previousHash)) {
+                    throw new IOException("Header #" + height + " does not link to its parent");
+                }
+                if (!BlockValidator.checkProofOfWork(header)) {
+                    throw new IOException("Invalid proof of work at #" + height);
+                }
+                int blocks = (int) Math.min(Difficulty.RETARGET_WINDOW, height - 2);
+                List<BlockHeader> window = new ArrayList<>(history).subList(0, Math.max(blocks, 0) + 1);
+                if (header.getBits() != Blockchain.nextBits(window)) {
+                    throw new IOException("Unexpected difficulty target at #" + height);
+                }
+                if (header.getTimestamp() <= medianTimePast()) {
+                    throw new IOException("Timestamp at #" + height + " is not after median time of recent blocks");
+                }
+            }
+            history.addFirst(header);
+            if (history.size() > HEADER_HISTORY) { history.removeLast(); }
+            previousHash = hash;
+            chainWork = chainWork.add(Difficulty.work(header.getBits()));
+            height++;
+            return chainWork;
+        }
+
+        private long medianTimePast() {
+            long[] timestamps = history.stream().limit(Blockchain.MEDIAN_TIME_SPAN)
+                    .mapToLong(BlockHeader::getTimestamp).toArray();
+            Arrays.sort(timestamps);
+            return timestamps[timestamps.length / 2];
+        }
+    }
+}
@@ -0,0 +1,424 @@
+package blockchain;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import com.google.gson.Gson;
+
+/**
+ * header-first 초기 블록 동기화.
+ *
+ * 1. peer에게 block locator로 GETHEADERS를 보내 최대 MAX_HEADERS 개씩 헤더를 받고,
+ *    연결 관계, PoW, retarget 규칙에 맞는 난이도를 한꺼번에 검사한 뒤 다운로드 대기열에 넣는다.
+ * 2. 블록 본문은 GETBLOCKS로 BLOCKS_PER_REQUEST 개씩 여러 peer에 나눠 요청한다.
+ * 3. 별도의 applier thread가 받은 블록을 순서대로 BlockValidator pipeline에 넣으므로
+ *    검증/적용과 나머지 다운로드가 동시에 진행된다.
+ *    검증에 실패한 본문은 보낸 peer를 처벌하고 그 블록만 다른 peer에게 다시 요청한다.
+ */
+public class ChainSync {
+    public static final int MAX_HEADERS = 2000;
+    public static final int BLOCKS_PER_REQUEST = 16;
+    // 아직 적용하지 않은 블록을 최대 이만큼만 앞서서 받는다
+    private static final int MAX_DOWNLOAD_AHEAD = 1024;
+    private static final int MAX_REQUESTS_PER_PEER = 4;
+    private static final long REQUEST_TIMEOUT_MS = 10_000;
+    // 서로 다른 peer에게 받은 본문이 이만큼 실패하면 헤더 체인 자체가 잘못된 것으로 보고 대기열을 비운다
+    private static final int MAX_BLOCK_FAILURES = 2;
+
+    public static class GetHeaders {
+        public List<String> locator;
+        public GetHeaders(List<String> locator) { this.locator = locator; }
+    }
+
+    public static class Headers {
+        public List<BlockHeader> headers;
+        public Headers(List<BlockHeader> headers) { this.headers = headers; }
+    }
+
+    public static class GetBlocks {
+        public List<String> hashes;
+        public GetBlocks(List<String> hashes) { this.hashes = hashes; }
+    }
+
+    public static class Blocks {
+        public List<Block> blocks;
+        public Blocks(List<Block> blocks) { this.blocks = blocks; }
+    }
+
+    private static class Request {
+        private final Peer peer;
+        private final List<String> hashes;
+        private final long sentAt;
+
+        Request(Peer peer, List<String> hashes) {
+            this.peer = peer;
+            this.hashes = hashes;
+            this.sentAt = System.currentTimeMillis();
+        }
+    }
+
+    private final Blockchain blockchain;
+    private final BlockValidator blockValidator;
+    private final Gson gson;
+
+    // 헤더는 받았지만 아직 적용하지 않은 블록 hash (height 순)
+    private final Deque<String> applyQueue = new ArrayDeque<>();
+    // 아직 요청하지 않은 블록 hash
+    private final Deque<String> toRequest = new ArrayDeque<>();
+    // applyQueue에 있는 블록의 헤더. 다음 헤더 묶음의 난이도 검사에도 쓴다
+    private final Map<String, BlockHeader> queuedHeaders = new HashMap<>();
+    private final Map<String, Block> downloaded = new HashMap<>();
+    // 받은 본문을 보낸 peer
+    private final Map<String, Peer> sources = new HashMap<>();
+    // 검증에 실패한 본문을 보낸 peer. 그 블록은 이 peer들에게 다시 요청하지 않는다
+    private final Map<String, Set<Peer>> failedPeers = new HashMap<>();
+    // reset 할 때마다 증가한다. reset 전에 pipeline에 넣은 블록의 결과는 무시한다
+    private long generation;
+    private final List<Request> inFlight = new ArrayList<>();
+    // peer가 보낸 헤더 중 가장 높은 height. 그 peer가 가진 블록 범위로 본다
+    private final Map<Peer, Long> peerHeights = new HashMap<>();
+    // peer가 본문을 가진 가장 낮은 height (HELLO). prune 된 블록은 그 peer에게 요청하지 않는다
+    private final Map<Peer, Long> peerFirstBlocks = new HashMap<>();
+
+    private volatile boolean running = true;
+    private final Thread applier;
+
+    public ChainSync(Blockchain blockchain, BlockValidator blockValidator, Gson gson) {
+        this.blockchain = blockchain;
+        this.blockValidator = blockValidator;
+        this.gson = gson;
+        this.applier = new Thread(this::applyLoop, "chain-sync-applier");
+        this.applier.setDaemon(true);
+        this.applier.start();
+    }
+
+    public void requestHeaders(Peer peer) {
+        requestHeaders(peer, blockchain.getLocator());
+    }
+
+    private void requestHeaders(Peer peer, List<String> locator) {
+        peer.send(new MessageWrapper(MessageWrapper.MessageType.GETHEADERS, gson.toJson(new GetHeaders(locator))));
+    }
+
+    public void handleGetHeaders(Peer peer, MessageWrapper wrapper) {
+        GetHeaders request = gson.fromJson(wrapper.jsonData, GetHeaders.class);
+        if (request == null || request.locator == null) { return; }
+        List<BlockHeader> headers = blockchain.getHeadersAfter(request.locator, MAX_HEADERS);
+        peer.send(new MessageWrapper(MessageWrapper.MessageType.HEADERS, gson.toJson(new Headers(headers))));
+    }
+
+    public void handleGetBlocks(Peer peer, MessageWrapper wrapper) {
+        GetBlocks request = gson.fromJson(wrapper.jsonData, GetBlocks.class);
+        if (request == null || request.hashes == null) { return; }
+        List<Block> blocks = new ArrayList<>();
+        for (String hash : request.hashes) {
+            if (blocks.size() >= BLOCKS_PER_REQUEST) { break; }
+            Block block = blockchain.getBlockByHash(hash);
+            if (block != null) { blocks.add(block); }
+        }
+        peer.send(new MessageWrapper(MessageWrapper.MessageType.BLOCKS, gson.toJson(new Blocks(blocks))));
+    }
+
+    public void handleHeaders(Peer peer, MessageWrapper wrapper) {
+        Headers response = gson.fromJson(wrapper.jsonData, Headers.class);
+        if (response == null || response.headers == null || response.headers.isEmpty()) { return; }
+        List<BlockHeader> headers = response.headers;
+        String lastHash = null;
+
+        synchronized (this) {
+            // 헤더 묶음 전체의 연결 관계, PoW, 난이도를 먼저 확인한다
+            String previous = headers.get(0).getParentHash();
+            Deque<BlockHeader> window = ancestorWindow(previous);
+            if (window == null) {
+                Log.warn("ChainSync: headers from " + peer + " do not connect to our chain.");
+                return;
+            }
+            List<String> hashes = new ArrayList<>(headers.size());
+            for (BlockHeader header : headers) {
+                if (!header.getParentHash().equals(previous) || header.getNumber() != window.peekFirst().getNumber() + 1
+                        || !blockchain.isValidHeader(header) || header.getBits() != expectedBits(window)) {
+                    Log.warn("ChainSync: invalid header #" + header.getNumber() + " from " + peer);
+                    peer.misbehaving(Peer.BAN_SCORE, "invalid header in HEADERS");
+                    return;
+                }
+                previous = header.calculateHash();
+                hashes.add(previous);
+                window.addFirst(header);
+                if (window.size() > Difficulty.RETARGET_WINDOW + 1) { window.removeLast(); }
+            }
+
+            lastHash = previous;
+            BlockHeader last = headers.get(headers.size() - 1);
+            peerHeights.merge(peer, last.getNumber(), Math::max);
+            for (int i = 0; i < headers.size(); i++) {
+                String hash = hashes.get(i);
+                if (queuedHeaders.containsKey(hash) || blockchain.contains(hash)) { continue; }
+                queuedHeaders.put(hash, headers.get(i));
+                toRequest.addLast(hash);
+                applyQueue.addLast(hash);
+            }
+            Log.info("ChainSync: " + headers.size() + " headers from " + peer + " (up to #" + last.getNumber()
+                    + "), " + applyQueue.size() + " blocks queued");
+            requestBlocks();
+        }
+
+        // 헤더가 가득 차 있었다면 아직 더 있다. 본문 다운로드와 함께 다음 헤더를 받는다
+        if (lastHash != null && headers.size() >= MAX_HEADERS) {
+            requestHeaders(peer, List.of(lastHash));
+        }
+    }
+
+    public void handleBlocks(Peer peer, MessageWrapper wrapper) {
+        Blocks response = gson.fromJson(wrapper.jsonData, Blocks.class);
+        if (response == null || response.blocks == null) { return; }
+        synchronized (this) {
+            for (Block block : response.blocks) {
+                if (block == null || block.getHeader() == null) {
+                    peer.misbehaving(Peer.MALFORMED_SCORE, "malformed block in BLOCKS");
+                    break;
+                }
+                // 본문의 hash는 peer가 보낸 값이므로 헤더에서 다시 계산해 요청한 hash와 맞춰 본다
+                String hash = block.getHeader().calculateHash();
+                if (!hash.equals(block.getHash())) {
+                    peer.misbehaving(Peer.BAN_SCORE, "block hash does not match header in BLOCKS");
+                    break;
+                }
+                if (queuedHeaders.containsKey(hash) && !downloaded.containsKey(hash) && canRequest(hash, peer)) {
+                    downloaded.put(hash, block);
+                    sources.put(hash, peer);
+                }
+            }
+            Iterator<Request> it = inFlight.iterator();
+            while (it.hasNext()) {
+                Request request = it.next();
+                // 이미 적용해서 queuedHeaders에서 빠진 hash도 받은 것으로 본다
+                if (request.peer == peer && request.hashes.stream().allMatch(hash -> downloaded.containsKey(hash) || !queuedHeaders.containsKey(hash))) {
+                    it.remove();
+                    break;
+                }
+            }
+            notifyAll();
+            requestBlocks();
+        }
+    }
+
+    public synchronized void setFirstBlock(Peer peer, long firstBlock) {
+        peerFirstBlocks.put(peer, firstBlock);
+    }
+
+    public synchronized void onPeerDisconnected(Peer peer) {
+        peerHeights.remove(peer);
+        peerFirstBlocks.remove(peer);
+        inFlight.removeIf(request -> {
+            if (request.peer != peer) { return false; }
+            requeue(request);
+            return true;
+        });
+    }
+
+    public synchronized int getQueuedBlockCount() { return applyQueue.size(); }
+
+    public void shutdown() {
+        running = false;
+        applier.interrupt();
+    }
+
+    /** 요청할 블록을 peer별 동시 요청 수 한도 안에서 나눠 보낸다. 시간이 지난 요청은 다시 보낸다. */
+    private void requestBlocks() {
+        long now = System.currentTimeMillis();
+        inFlight.removeIf(request -> {
+            if (now - request.sentAt < REQUEST_TIMEOUT_MS && !request.peer.isClosed()) { return false; }
+            requeue(request);
+            return true;
+        });
+
+        for (Map.Entry<Peer, Long> entry : peerHeights.entrySet()) {
+            Peer peer = entry.getKey();
+            long firstBlock = peerFirstBlocks.getOrDefault(peer, 0L);
+            long next = nextRequestHeight();
+            if (next >= 0 && next < firstBlock) { continue; }
+            while (requestCount(peer) < MAX_REQUESTS_PER_PEER
+                    && downloaded.size() + inFlight.size() * BLOCKS_PER_REQUEST < MAX_DOWNLOAD_AHEAD) {
+                next = nextRequestHeight();
+                if (next < 0 || next > entry.getValue() || !canRequest(toRequest.peekFirst(), peer)) { break; }
+                List<String> hashes = new ArrayList<>(BLOCKS_PER_REQUEST);
+                while (hashes.size() < BLOCKS_PER_REQUEST && (next = nextRequestHeight()) >= 0 && next <= entry.getValue()
+                        && canRequest(toRequest.peekFirst(), peer)) {
+                    hashes.add(toRequest.pollFirst());
+                }
+                inFlight.add(new Request(peer, hashes));
+                peer.send(new MessageWrapper(MessageWrapper.MessageType.GETBLOCKS, gson.toJson(new GetBlocks(hashes))));
+            }
+        }
+    }
+
+    private int requestCount(Peer peer) {
+        int count = 0;
+        for (Request request : inFlight) {
+            if (request.peer == peer) { count++; }
+        }
+        return count;
+    }
+
+    /**
+     * toRequest 맨 앞 hash의 height. 그 사이 늦게 온 응답으로 받거나 적용한 hash는 버린다.
+     * @return 요청할 hash가 없으면 -1
+     */
+    private long nextRequestHeight() {
+        while (!toRequest.isEmpty()) {
+            String hash = toRequest.peekFirst();
+            BlockHeader header = queuedHeaders.get(hash);
+            if (header != null && !downloaded.containsKey(hash)) { return header.getNumber(); }
+            toRequest.pollFirst();
+        }
+        return -1;
+    }
+
+    private boolean canRequest(String hash, Peer peer) {
+        Set<Peer> failed = failedPeers.get(hash);
+        return failed == null || !failed.contains(peer);
+    }
+
+    /** 아직 받지 못했고 적용하지도 않은 hash만 다시 요청 대기열에 넣는다 */
+    private void requeue(Request request) {
+        for (int i = request.hashes.size() - 1; i >= 0; i--) {
+            String hash = request.hashes.get(i);
+            if (queuedHeaders.containsKey(hash) && !downloaded.containsKey(hash)) { toRequest.addFirst(hash); }
+        }
+    }
+
+    /**
+     * hash 블록부터 부모 방향으로 최대 RETARGET_WINDOW + 1 개의 헤더. 대기열에 있는 헤더를 먼저 보고
+     * 나머지는 Blockchain에서 가져온다.
+     * @return 대기열에도 Blockchain에도 없는 hash면 null
+     */
+    private Deque<BlockHeader> ancestorWindow(String hash) {
+        Deque<BlockHeader> window = new ArrayDeque<>();
+        while (window.size() <= Difficulty.RETARGET_WINDOW) {
+            BlockHeader header = queuedHeaders.get(hash);
+            if (header == null) {
+                List<BlockHeader> stored = blockchain.getAncestorHeaders(hash, Difficulty.RETARGET_WINDOW + 1 - window.size());
+                if (stored == null) { return window.isEmpty() ? null : window; }
+                window.addAll(stored);
+                break;
+            }
+            window.addLast(header);
+            hash = header.getParentHash();
+        }
+        return window;
+    }
+
+    /**
+     * window 맨 앞 헤더 다음 블록이 가져야 할 bits. Blockchain이 블록을 붙일 때와 같은 retarget 규칙이다.
+     * @return 조상 헤더가 모자라 계산할 수 없으면 -1
+     */
+    private static long expectedBits(Deque<BlockHeader> window) {
+        int blocks = (int) Math.min(Difficulty.RETARGET_WINDOW, window.peekFirst().getNumber() - 1);
+        if (blocks <= 0) {
+            return Difficulty.INITIAL_BITS;
+        }
+        if (window.size() < blocks + 1) {
+            return -1;
+        }
+        return Blockchain.nextBits(new ArrayList<>(window).subList(0, blocks + 1));
+    }
+
+    private void applyLoop() {
+        while (running) {
+            Block block;
+            BlockHeader header;
+            Peer source;
+            long submitted;
+            synchronized (this) {
+                try {
+                    while (applyQueue.isEmpty() || !downloaded.containsKey(applyQueue.peekFirst())) {
+                        wait(1000);
+                        if (!running) { return; }
+                        requestBlocks();
+                    }
+                } catch (InterruptedException e) {
+                    return;
+                } catch (RuntimeException e) {
+                    // 이 thread가 죽으면 동기화가 멈추므로 다음 주기에 다시 시도한다
+                    Log.limited(Log.Level.ERROR, "sync-applier", () -> "ChainSync: request failed: " + e);
+                    continue;
+                }
+                String hash = applyQueue.pollFirst();
+                block = downloaded.remove(hash);
+                header = queuedHeaders.remove(hash);
+                source = sources.remove(hash);
+                submitted = generation;
+            }
+
+            // 검증 pipeline에 넣고 바로 다음 블록으로 넘어가므로 여러 블록이 동시에 검증된다
+            try {
+                blockValidator.submit(block, accepted -> {
+                    if (accepted || blockchain.contains(block.getHash())) {
+                        onApplied(block.getHash());
+                    } else {
+                        onRejected(block.getHash(), header, source, submitted);
+                    }
+                });
+            } catch (InterruptedException e) {
+                return;
+            }
+        }
+    }
+
+    private synchronized void onApplied(String hash) {
+        failedPeers.remove(hash);
+    }
+
+    /**
+     * pipeline에서 떨어진 블록을 다시 받는다. 부모가 아직 없다면 앞 블록이 실패한 탓이므로 처벌하지 않는다.
+     * 부모가 있는데 실패했다면 본문을 보낸 peer를 처벌하고 다른 peer에게 요청한다.
+     */
+    private synchronized void onRejected(String hash, BlockHeader header, Peer source, long submitted) {
+        if (submitted != generation) { return; }
+        if (blockchain.contains(header.getParentHash())) {
+            source.misbehaving(Peer.BAN_SCORE, "invalid block in BLOCKS");
+            Set<Peer> failed = failedPeers.computeIfAbsent(hash, h -> new HashSet<>());
+            failed.add(source);
+            if (failed.size() >= MAX_BLOCK_FAILURES) {
+                Log.warn("ChainSync: block #" + header.getNumber() + " failed from " + failed.size() + " peers. Dropping sync queue.");
+                reset();
+                return;
+            }
+            Log.warn("ChainSync: block #" + header.getNumber() + " from " + source + " is invalid. Requesting it from another peer.");
+        }
+        queuedHeaders.put(hash, header);
+        toRequest.addFirst(hash);
+        // applyQueue는 height 순이어야 하므로 제자리에 넣는다
+        Deque<String> reordered = new ArrayDeque<>(applyQueue.size() + 1);
+        boolean inserted = false;
+        for (String queued : applyQueue) {
+            if (!inserted && queuedHeaders.get(queued).getNumber() > header.getNumber()) {
+                reordered.addLast(hash);
+                inserted = true;
+            }
+            reordered.addLast(queued);
+        }
+        if (!inserted) { reordered.addLast(hash); }
+        applyQueue.clear();
+        applyQueue.addAll(reordered);
+        notifyAll();
+    }
+
+    private synchronized void reset() {
+        applyQueue.clear();
+        toRequest.clear();
+        queuedHeaders.clear();
+        downloaded.clear();
+        sources.clear();
+        failedPeers.clear();
+        inFlight.clear();
+        generation++;
+    }
+}
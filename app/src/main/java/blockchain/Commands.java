@@ -0,0 +1,128 @@
+package blockchain;
+
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.io.StringWriter;
+import java.nio.file.Paths;
+
+/**
+ * 노드 관리 명령. 대화형 console(App)과 daemon의 admin socket(AdminServer)이 같이 사용한다.
+ */
+public class Commands {
+    public static final String USAGE = "Type 'connect <host> <port>', 'send <PublicKey> <message>', 'pay <PublicKey> <amount> [fee]', "
+            + "'balance [address]', 'address', 'status', 'mine [threads]', 'hashrate', 'mempool', 'chain', 'metrics [port]', "
+            + "'api <port>', 'tx <id>', 'export <file>', 'log <level>' or 'exit'";
+
+    private Commands() {}
+
+    /** 명령 한 줄을 실행하고 출력할 내용을 돌려준다 */
+    public static String execute(Node node, String input) {
+        StringWriter buffer = new StringWriter();
+        PrintWriter out = new PrintWriter(buffer);
+        input = input.trim();
+        if (input.startsWith("connect ")) {
+            try {
+                String[] parts = input.split(" ");
+                String host = parts[1];
+                int peerPort = Integer.parseInt(parts[2]);
+
+                node.connectToPeer(host, peerPort);
+            } catch (Exception e) {
+                out.println("Usage: connect <host> <port>");
+            }
+        } else if (input.startsWith("send ")) {
+            try {
+                String[] parts = input.split(" ", 3);
+                String recipientKey = parts[1];
+                String data = parts[2];
+
+                printSent(out, node.createAndBroadcastTransaction(recipientKey, data));
+            } catch (Exception e) {
+                out.println("Usage: send <recipient_key> <data>");
+            }
+        } else if (input.startsWith("pay ")) {
+            try {
+                String[] parts = input.split(" ");
+                long fee = parts.length > 3 ? Long.parseLong(parts[3]) : 0;
+                printSent(out, node.createAndBroadcastTransaction(parts[1], Long.parseLong(parts[2]), fee, ""));
+            } catch (Exception e) {
+                out.println("Usage: pay <recipient_key> <amount> [fee]");
+            }
+        } else if (input.equalsIgnoreCase("balance")) {
+            out.println("Balance: " + node.getBalance(node.getAddress()));
+        } else if (input.startsWith("balance ")) {
+            out.println("Balance: " + node.getBalance(input.split(" ")[1]));
+        } else if (input.equalsIgnoreCase("mine")) {
+            node.startMining();
+        } else if (input.startsWith("mine ")) {
+            try {
+                node.startMining(Integer.parseInt(input.split(" ")[1]));
+            } catch (Exception e) {
+                out.println("Usage: mine [threads]");
+            }
+        } else if (input.equalsIgnoreCase("hashrate")) {
+            out.println(String.format("Hash rate: %.0f H/s", node.getHashRate()));
+        } else if (input.equalsIgnoreCase("mempool")) {
+            Mempool mempool = node.getMempool();
+            out.println("Mempool: " + mempool.size() + "/" + mempool.getMaxTransactions() + " txs, "
+                    + mempool.getMemoryBytes() + " bytes, " + mempool.getEvictedCount() + " evicted");
+        } else if (input.equalsIgnoreCase("metrics")) {
+            out.print(node.getMetrics().scrape());
+        } else if (input.startsWith("metrics ")) {
+            try {
+                node.startMetricsServer(Integer.parseInt(input.split(" ")[1]));
+            } catch (Exception e) {
+                out.println("Usage: metrics [port]");
+            }
+        } else if (input.startsWith("api ")) {
+            try {
+                node.startQueryServer(Integer.parseInt(input.split(" ")[1]));
+            } catch (Exception e) {
+                out.println("Usage: api <port>");
+            }
+        } else if (input.startsWith("tx ")) {
+            TxIndex.Entry entry = node.getBlockchain().findTransaction(input.substring("tx ".length()).trim());
+            if (entry == null) {
+                out.println("Transaction not found in main chain.");
+            } else {
+                out.println("Block #" + entry.height + " (" + entry.blockHash + "), position " + entry.position
+                        + ", " + entry.confirmations + " confirmations");
+                if (entry.transaction != null) {
+                    out.println("Amount: " + entry.transaction.getAmount() + ", Fee: " + entry.transaction.getFee()
+                            + ", Data: " + entry.transaction.getData());
+                }
+            }
+        } else if (input.startsWith("log ")) {
+            try {
+                Log.setLevel(Log.Level.valueOf(input.split(" ")[1].toUpperCase()));
+            } catch (Exception e) {
+                out.println("Usage: log <debug|info|warn|error>");
+            }
+        } else if (input.startsWith("export ")) {
+            try {
+                node.exportSnapshot(Paths.get(input.substring("export ".length()).trim()));
+                out.println("Snapshot written.");
+            } catch (IOException e) {
+                out.println("Export failed: " + e.getMessage());
+            }
+        } else if (input.equalsIgnoreCase("chain")) {
+            out.println(node.getBlockchain().toString());
+        } else if (input.equalsIgnoreCase("status")) {
+            Blockchain blockchain = node.getBlockchain();
+            out.println("Height: " + (blockchain.getChainSize() - 1) + ", Tip: " + blockchain.getLastBlock().getHash()
+                    + ", Peers: " + node.getPeerCount() + ", Mempool: " + node.getMempool().size() + " txs"
+                    + String.format(", Hash rate: %.0f H/s", node.getHashRate()));
+        } else if (input.equalsIgnoreCase("address")) {
+            out.println(node.getAddress());
+        } else {
+            out.println("Unknown command. " + USAGE);
+        }
+
+        out.flush();
+        return buffer.toString();
+    }
+
+    private static void printSent(PrintWriter out, Transaction tx) {
+        out.println(tx == null ? "Transaction was not accepted by the mempool." : "Sent " + tx.getTransactionID());
+    }
+}
@@ -1,49 +1,209 @@
 package blockchain;
 
 import java.nio.charset.StandardCharsets;
+import java.security.GeneralSecurityException;
 import java.security.Key;
+import java.security.KeyFactory;
 import java.security.MessageDigest;
 import java.security.PrivateKey;
 import java.security.PublicKey;
 import java.security.Signature;
+import java.security.spec.X509EncodedKeySpec;
 import java.util.Base64;
 
+/**
+ * 노드의 모든 hash, 서명, 검증이 거치는 crypto 계층.
+ *
+ * MessageDigest, Signature, KeyFactory는 thread마다 하나씩 만들어 재사용하므로 호출마다
+ * provider 조회(getInstance)를 하지 않는다. 디코딩한 공개키는 인코딩된 바이트를 key로 하는
+ * 공용 LRU cache(PublicKeyCache)에 보관한다.
+ *
+ * byte[] API가 기본이며, String을 받는 API는 UTF-8/Base64 변환 후 byte[] API를 호출한다.
+ * thread별 엔진은 한 호출 안에서 끝까지 쓰고 반환하므로 호출이 중첩되어도 상태가 섞이지 않는다.
+ */
 public class CryptoUtil {
+    public static final int HASH_SIZE = 32;
+    public static final String ZERO_HASH = Base64.getEncoder().encodeToString(new byte[HASH_SIZE]);
+    public static final int PUBLIC_KEY_CACHE_SIZE = 10_000;
+
+    private static final ThreadLocal<MessageDigest> sha256 = ThreadLocal.withInitial(CryptoUtil::newSHA256);
+    private static final ThreadLocal<Signature> ecdsa = ThreadLocal.withInitial(CryptoUtil::newECDSA);
+    private static final ThreadLocal<KeyFactory> keyFactory = ThreadLocal.withInitial(() -> {
+        try {
+            return KeyFactory.getInstance("EC");
+        } catch (GeneralSecurityException e) {
+            throw new IllegalStateException(e);
+        }
+    });
+    private static final PublicKeyCache publicKeys = new PublicKeyCache(PUBLIC_KEY_CACHE_SIZE);
+
     /**
      * SHA-256의 방식으로 Hash하는 함수
      * @param input
+     * @return Base64로 인코딩한 hash
      */
     public static String hashSHA256(String input) {
+        return Base64.getEncoder().encodeToString(sha256(input.getBytes(StandardCharsets.UTF_8)));
+    }
+
+    /** thread에 묶이지 않은 새 digest. 상태를 오래 들고 있어야 하는 경우(채굴 midstate)에 사용 */
+    public static MessageDigest newSHA256() {
         try {
-            MessageDigest digest = MessageDigest.getInstance("SHA-256");
-            byte[] hash = digest.digest(input.getBytes(StandardCharsets.UTF_8));
-            return Base64.getEncoder().encodeToString(hash);
+            return MessageDigest.getInstance("SHA-256");
         } catch (Exception e) {
             throw new RuntimeException(e);
         }
     }
 
+    public static byte[] sha256(byte[] input) {
+        MessageDigest digest = sha256.get();
+        digest.reset();
+        return digest.digest(input);
+    }
+
+    /** SHA-256(left || right). Merkle tree 부모 노드 계산용 */
+    public static byte[] sha256(byte[] left, byte[] right) {
+        MessageDigest digest = sha256.get();
+        digest.reset();
+        digest.update(left);
+        digest.update(right);
+        return digest.digest();
+    }
+
+    /**
+     * Base64로 인코딩된 32바이트 hash를 원래 바이트로 되돌리는 함수
+     * @param hash
+     */
+    public static byte[] decodeHash(String hash) {
+        byte[] bytes = Base64.getDecoder().decode(hash);
+        if (bytes.length != HASH_SIZE) {
+            throw new IllegalArgumentException("Invalid hash length: " + bytes.length);
+        }
+        return bytes;
+    }
+
+    /**
+     * 앞쪽 bits 개의 비트가 0이어야 하는 PoW target (big-endian 32바이트)
+     * @param bits
+     */
+    public static byte[] targetFromBits(int bits) {
+        if (bits < 0 || bits > HASH_SIZE * 8) {
+            throw new IllegalArgumentException("Invalid difficulty bits: " + bits);
+        }
+        byte[] target = new byte[HASH_SIZE];
+        for (int i = 0; i < HASH_SIZE * 8; i++) {
+            if (i >= bits) {
+                target[i / 8] |= (byte) (0x80 >>> (i % 8));
+            }
+        }
+        return target;
+    }
+
+    /** hash를 big-endian 부호 없는 정수로 보고 target 이하인지 비교 */
+    public static boolean meetsTarget(byte[] hash, byte[] target) {
+        for (int i = 0; i < HASH_SIZE; i++) {
+            int h = hash[i] & 0xff;
+            int t = target[i] & 0xff;
+            if (h != t) { return h < t; }
+        }
+        return true;
+    }
+
     public static byte[] sign(PrivateKey privateKey, String data) {
+        return sign(privateKey, data.getBytes(StandardCharsets.UTF_8));
+    }
+
+    public static byte[] sign(PrivateKey privateKey, byte[] data) {
         try {
-            Signature ecdsa = Signature.getInstance("SHA256withECDSA");
-            ecdsa.initSign(privateKey);
-            ecdsa.update(data.getBytes(StandardCharsets.UTF_8));
-            return ecdsa.sign();
+            Signature signer = ecdsa.get();
+            signer.initSign(privateKey);
+            signer.update(data);
+            return signer.sign();
         } catch (Exception e) {
             throw new RuntimeException("Signature Failed.", e);
         }
     }
 
+    /** thread에 묶이지 않은 새 Signature 객체 */
+    public static Signature newECDSA() {
+        try {
+            return Signature.getInstance("SHA256withECDSA");
+        } catch (Exception e) {
+            throw new RuntimeException(e);
+        }
+    }
+
     public static Boolean verify(PublicKey publickey, String data, byte[] signature) {
+        return verify(publickey, data.getBytes(StandardCharsets.UTF_8), signature);
+    }
+
+    /** 현재 thread의 Signature 객체로 검증한다. 서명 형식이 잘못되었으면 false */
+    public static boolean verify(PublicKey publicKey, byte[] data, byte[] signature) {
+        return verify(ecdsa.get(), publicKey, data, signature);
+    }
+
+    /** encodedKey(X.509)는 공용 cache에서 디코딩한다. 키가 잘못되었으면 false */
+    public static boolean verify(byte[] encodedKey, byte[] data, byte[] signature) {
+        PublicKey publicKey;
         try {
-            Signature ecdsa = Signature.getInstance("SHA256withECDSA");
-            ecdsa.initVerify(publickey);
-            ecdsa.update(data.getBytes(StandardCharsets.UTF_8));
-            return ecdsa.verify(signature);
+            publicKey = publicKey(encodedKey);
+        } catch (RuntimeException e) {
+            return false;
+        }
+        return verify(publicKey, data, signature);
+    }
+
+    private static boolean verify(Signature verifier, PublicKey publicKey, byte[] data, byte[] signature) {
+        if (signature == null) { return false; }
+        try {
+            verifier.initVerify(publicKey);
+            verifier.update(data);
+            return verifier.verify(signature);
         } catch (Exception e) {
             return false;
         }
     }
 
+    /** Base64 문자열 공개키. 공용 cache를 거친다 */
+    public static PublicKey stringToPublicKey(String key) {
+        return publicKeys.get(key);
+    }
+
+    /** X.509로 인코딩된 공개키. 공용 cache를 거친다 */
+    public static PublicKey publicKey(byte[] encodedKey) {
+        return publicKeys.get(encodedKey);
+    }
+
+    /** cache 없이 X.509 공개키를 디코딩한다. PublicKeyCache가 사용 */
+    static PublicKey decodePublicKey(byte[] encodedKey) {
+        try {
+            return keyFactory.get().generatePublic(new X509EncodedKeySpec(encodedKey));
+        } catch (Exception e) {
+            throw new RuntimeException("PublicKey Restore Failed.", e);
+        }
+    }
+
+    public static PublicKeyCache getPublicKeyCache() { return publicKeys; }
+
     public static String keyToString(Key key) { return Base64.getEncoder().encodeToString(key.getEncoded()); }
+
+    /**
+     * 보안 provider 로딩과 서명, 검증, hash 경로의 JIT compile을 미리 해 둔다.
+     * 시작 직후 peer에게 받은 첫 블록들의 검증이 느려지지 않도록 peer를 받기 전에 호출한다.
+     */
+    public static void warmUp(int rounds) {
+        Wallet wallet = new Wallet();
+        String publicKey = keyToString(wallet.getPublicKey());
+        MessageDigest digest = newSHA256();
+        for (int i = 0; i < rounds; i++) {
+            String data = "warm-up-" + i;
+            byte[] signature = sign(wallet.getPrivateKey(), data);
+            if (!verify(decodePublicKey(Base64.getDecoder().decode(publicKey)), data, signature)) {
+                throw new IllegalStateException("ECDSA self-check failed.");
+            }
+            digest.update(signature);
+            hashSHA256(data);
+        }
+        digest.digest();
+    }
 }
@@ -0,0 +1,213 @@
+package blockchain;
+
+import java.io.IOException;
+import java.io.Reader;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Properties;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * supervisor 아래에서 돌리는 headless 노드. stdin을 읽지 않고 설정 file과 command line flag로 시작한다.
+ *
+ *   java -cp app.jar blockchain.Daemon --config node.properties --port 7000 --peers host1:7000,host2:7000
+ *
+ * 설정 file은 Java properties 형식이고 key는 flag 이름에서 "--"를 뺀 것이다. flag가 file보다 우선한다.
+ *
+ * 시작 순서: crypto warm-up, 저장된 체인과 index 로딩, 그 다음에 P2P port를 열고 seed peer에 연결한다.
+ * SIGTERM(shutdown hook)이나 admin socket의 'stop' 을 받으면 Node.shutdown으로 채굴을 멈추고
+ * outbound queue를 비운 뒤 저장소를 flush 하고 끝난다. 종료 코드는 'stop' 이면 0,
+ * SIGTERM이면 JVM 규칙대로 143 이므로 supervisor에서 143도 정상 종료로 설정한다.
+ */
+public class Daemon {
+    // seed peer가 하나도 연결되어 있지 않으면 이 주기로 다시 연결한다
+    private static final long RECONNECT_INTERVAL_SECONDS = 30;
+
+    public static class Config {
+        public Node.Config node;
+        public List<String> peers = new ArrayList<>();
+        public int minerThreads;
+        // 0이면 열지 않는다
+        public int metricsPort;
+        public int queryPort;
+        public int adminPort;
+        public int warmUpRounds = 200;
+        public String logLevel;
+    }
+
+    private final Config config;
+    private final CountDownLatch stopped = new CountDownLatch(1);
+    private final ScheduledExecutorService reconnector = Executors.newSingleThreadScheduledExecutor(r -> {
+        Thread t = new Thread(r, "seed-reconnect");
+        t.setDaemon(true);
+        return t;
+    });
+    private Node node;
+    private AdminServer adminServer;
+    private boolean stopping;
+
+    public Daemon(Config config) {
+        this.config = config;
+    }
+
+    public void start() throws IOException {
+        long start = System.nanoTime();
+        CryptoUtil.warmUp(config.warmUpRounds);
+        Log.info("Daemon: crypto warm-up done in " + (System.nanoTime() - start) / 1_000_000 + " ms");
+
+        start = System.nanoTime();
+        node = new Node(config.node);
+        Log.info("Daemon: loaded chain #" + (node.getBlockchain().getChainSize() - 1) + " from " + config.node.dataDir
+                + " in " + (System.nanoTime() - start) / 1_000_000 + " ms");
+
+        node.listen();
+        connectSeeds();
+        if (!config.peers.isEmpty()) {
+            reconnector.scheduleWithFixedDelay(() -> {
+                if (node.getPeerCount() == 0) { connectSeeds(); }
+            }, RECONNECT_INTERVAL_SECONDS, RECONNECT_INTERVAL_SECONDS, TimeUnit.SECONDS);
+        }
+        if (config.metricsPort > 0) { node.startMetricsServer(config.metricsPort); }
+        if (config.queryPort > 0) { node.startQueryServer(config.queryPort); }
+        if (config.adminPort > 0) {
+            adminServer = new AdminServer(node, config.adminPort, this::stop);
+            adminServer.start();
+        }
+        if (config.minerThreads > 0) { node.startMining(config.minerThreads); }
+        Log.info("Daemon: node " + node.getAddress() + " started on port " + config.node.port);
+    }
+
+    private void connectSeeds() {
+        for (String peer : config.peers) {
+            int colon = peer.lastIndexOf(':');
+            node.connectToPeer(peer.substring(0, colon), Integer.parseInt(peer.substring(colon + 1)));
+        }
+    }
+
+    /** 노드를 정상 종료한다. 여러 번, 여러 thread에서 호출해도 된다 */
+    public void stop() {
+        synchronized (this) {
+            if (stopping) { return; }
+            stopping = true;
+        }
+        reconnector.shutdownNow();
+        if (adminServer != null) { adminServer.stop(); }
+        if (node != null) { node.shutdown(); }
+        stopped.countDown();
+    }
+
+    public void awaitStop() throws InterruptedException {
+        stopped.await();
+    }
+
+    public Node getNode() { return node; }
+
+    static Config parseArgs(String[] args) throws IOException {
+        Properties properties = new Properties();
+        Properties flags = new Properties();
+        for (int i = 0; i < args.length; i++) {
+            if (!args[i].startsWith("--") || i + 1 >= args.length) {
+                throw new IllegalArgumentException("Expected --<option> <value> but got " + args[i]);
+            }
+            flags.setProperty(args[i].substring(2), args[++i]);
+        }
+        String file = flags.getProperty("config");
+        if (file != null) {
+            try (Reader reader = Files.newBufferedReader(Paths.get(file), StandardCharsets.UTF_8)) {
+                properties.load(reader);
+            }
+        }
+        properties.putAll(flags);
+        properties.remove("config");
+        return toConfig(properties);
+    }
+
+    static Config toConfig(Properties properties) {
+        Properties p = new Properties();
+        p.putAll(properties);
+        Config config = new Config();
+        config.node = new Node.Config(intValue(p, "port", 7000));
+        String dataDir = (String) p.remove("data-dir");
+        if (dataDir != null) { config.node.dataDir = Paths.get(dataDir); }
+        config.node.pruneWindow = intValue(p, "prune", config.node.pruneWindow);
+        config.node.maxBlockSize = intValue(p, "max-block-size", config.node.maxBlockSize);
+        config.node.mempoolMaxTransactions = intValue(p, "mempool-size", config.node.mempoolMaxTransactions);
+        config.node.shutdownDrainMillis = intValue(p, "drain-ms", (int) config.node.shutdownDrainMillis);
+        config.node.peerBytesPerSecond = intValue(p, "peer-bytes-per-second", config.node.peerBytesPerSecond);
+        config.node.banSeconds = intValue(p, "ban-seconds", (int) config.node.banSeconds);
+        String snapshot = (String) p.remove("snapshot");
+        if (snapshot != null) { config.node.snapshot = Paths.get(snapshot); }
+        String wallet = (String) p.remove("wallet");
+        config.node.walletFile = wallet != null ? Paths.get(wallet) : config.node.dataDir.resolve("wallet.dat");
+
+        String peers = (String) p.remove("peers");
+        if (peers != null) {
+            for (String peer : peers.split(",")) {
+                peer = peer.trim();
+                if (peer.isEmpty()) { continue; }
+                int colon = peer.lastIndexOf(':');
+                if (colon <= 0) { throw new IllegalArgumentException("Peer must be host:port but got " + peer); }
+                Integer.parseInt(peer.substring(colon + 1));
+                config.peers.add(peer);
+            }
+        }
+        config.minerThreads = intValue(p, "miner-threads", 0);
+        config.metricsPort = intValue(p, "metrics-port", 0);
+        config.queryPort = intValue(p, "query-port", 0);
+        config.adminPort = intValue(p, "admin-port", 0);
+        config.warmUpRounds = intValue(p, "warm-up-rounds", config.warmUpRounds);
+        config.logLevel = (String) p.remove("log");
+        if (!p.isEmpty()) {
+            throw new IllegalArgumentException("Unknown option(s) " + p.keySet());
+        }
+        if (config.minerThreads < 0 || config.warmUpRounds < 0) {
+            throw new IllegalArgumentException("miner-threads and warm-up-rounds must not be negative");
+        }
+        config.node.validate();
+        return config;
+    }
+
+    private static int intValue(Properties p, String key, int defaultValue) {
+        String value = (String) p.remove(key);
+        if (value == null) { return defaultValue; }
+        try {
+            return Integer.parseInt(value.trim());
+        } catch (NumberFormatException e) {
+            throw new IllegalArgumentException("Invalid value for " + key + ": " + value);
+        }
+    }
+
+    public static void main(String[] args) throws Exception {
+        Config config;
+        try {
+            config = parseArgs(args);
+            if (config.logLevel != null) { Log.setLevel(Log.Level.valueOf(config.logLevel.toUpperCase())); }
+        } catch (IllegalArgumentException e) {
+            System.err.println(e.getMessage());
+            System.err.println("Usage: Daemon [--config FILE] [--port P] [--peers host:port,...] [--miner-threads N]"
+                    + " [--data-dir DIR] [--wallet FILE] [--prune N] [--max-block-size BYTES] [--mempool-size N]"
+                    + " [--snapshot FILE] [--metrics-port P] [--query-port P] [--admin-port P] [--drain-ms MS]"
+                    + " [--peer-bytes-per-second N] [--ban-seconds N] [--warm-up-rounds N] [--log LEVEL]");
+            System.exit(2);
+            return;
+        }
+        Daemon daemon = new Daemon(config);
+        // SIGTERM, SIGINT. hook이 끝날 때까지 JVM은 종료되지 않는다
+        Runtime.getRuntime().addShutdownHook(new Thread(daemon::stop, "daemon-shutdown"));
+        try {
+            daemon.start();
+        } catch (IOException | RuntimeException e) {
+            Log.error("Daemon: start failed: " + e.getMessage());
+            daemon.stop();
+            System.exit(1);
+        }
+        daemon.awaitStop();
+        System.exit(0);
+    }
+}
@@ -0,0 +1,101 @@
+package blockchain;
+
+import java.math.BigInteger;
+
+/**
+ * PoW target 계산.
+ *
+ * target은 256비트 부호 없는 정수이고 블록 hash(big-endian)가 target 이하이면 유효하다.
+ * 헤더에는 target을 compact 형식으로 넣는다: 상위 8비트는 바이트 길이(exponent),
+ * 하위 24비트는 앞쪽 3바이트(mantissa). 따라서 난이도는 2^-24 단위로 조절된다.
+ *
+ * 매 블록마다 직전 RETARGET_WINDOW 개 블록의 평균 target에
+ * (실제 걸린 시간 / 목표 시간)을 곱해 다음 target을 정한다.
+ */
+public final class Difficulty {
+    public static final long TARGET_BLOCK_TIME_MS = 10_000;
+    public static final int RETARGET_WINDOW = 20;
+    // 한 번에 target이 변할 수 있는 최대 배수
+    private static final int MAX_ADJUSTMENT = 4;
+
+    // 가장 쉬운 target: 앞쪽 16비트가 0
+    public static final BigInteger POW_LIMIT = new BigInteger(1, CryptoUtil.targetFromBits(16));
+    // genesis와 초기 블록의 target: 앞쪽 24비트가 0
+    public static final long INITIAL_BITS = encodeCompact(new BigInteger(1, CryptoUtil.targetFromBits(24)));
+
+    private static final BigInteger TWO_256 = BigInteger.ONE.shiftLeft(256);
+
+    private Difficulty() {}
+
+    public static long encodeCompact(BigInteger target) {
+        int size = (target.bitLength() + 7) / 8;
+        long mantissa = size <= 3
+                ? target.longValue() << (8 * (3 - size))
+                : target.shiftRight(8 * (size - 3)).longValue();
+        return ((long) size << 24) | mantissa;
+    }
+
+    /** @throws IllegalArgumentException bits가 0이거나 POW_LIMIT보다 쉬운 target인 경우 */
+    public static BigInteger decodeCompact(long bits) {
+        int size = (int) (bits >>> 24);
+        long mantissa = bits & 0xFFFFFF;
+        if (bits < 0 || size > CryptoUtil.HASH_SIZE || mantissa == 0) {
+            throw new IllegalArgumentException("Invalid compact target: " + Long.toHexString(bits));
+        }
+        BigInteger target = size <= 3
+                ? BigInteger.valueOf(mantissa >>> (8 * (3 - size)))
+                : BigInteger.valueOf(mantissa).shiftLeft(8 * (size - 3));
+        if (target.signum() == 0 || target.compareTo(POW_LIMIT) > 0) {
+            throw new IllegalArgumentException("Target out of range: " + Long.toHexString(bits));
+        }
+        return target;
+    }
+
+    public static boolean isValidBits(long bits) {
+        try {
+            decodeCompact(bits);
+            return true;
+        } catch (IllegalArgumentException e) {
+            return false;
+        }
+    }
+
+    /** CryptoUtil.meetsTarget에 넘길 32바이트 big-endian target */
+    public static byte[] toTargetBytes(long bits) {
+        byte[] raw = decodeCompact(bits).toByteArray();
+        byte[] target = new byte[CryptoUtil.HASH_SIZE];
+        int length = Math.min(raw.length, CryptoUtil.HASH_SIZE);
+        System.arraycopy(raw, raw.length - length, target, CryptoUtil.HASH_SIZE - length, length);
+        return target;
+    }
+
+    /** 블록 하나의 작업량(기대 hash 횟수): 2^256 / (target + 1) */
+    public static BigInteger work(long bits) {
+        return TWO_256.divide(decodeCompact(bits).add(BigInteger.ONE));
+    }
+
+    /** POW_LIMIT 대비 난이도. 1이면 가장 쉬운 target */
+    public static double relativeDifficulty(long bits) {
+        return POW_LIMIT.doubleValue() / decodeCompact(bits).doubleValue();
+    }
+
+    /**
+     * 다음 블록의 target.
+     * @param targetSum 직전 blocks 개 블록의 target 합
+     * @param blocks    window 안 블록 수
+     * @param timespan  window 첫 블록의 부모부터 마지막 블록까지 걸린 시간 (ms)
+     */
+    public static long nextBits(BigInteger targetSum, int blocks, long timespan) {
+        long expected = TARGET_BLOCK_TIME_MS * blocks;
+        timespan = Math.max(expected / MAX_ADJUSTMENT, Math.min(expected * MAX_ADJUSTMENT, timespan));
+        BigInteger target = targetSum.multiply(BigInteger.valueOf(timespan))
+                .divide(BigInteger.valueOf(expected).multiply(BigInteger.valueOf(blocks)));
+        if (target.compareTo(POW_LIMIT) > 0) {
+            target = POW_LIMIT;
+        }
+        if (target.signum() == 0) {
+            target = BigInteger.ONE;
+        }
+        return encodeCompact(target);
+    }
+}
@@ -0,0 +1,249 @@
+package blockchain;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import com.google.gson.Gson;
+
+import blockchain.MessageWrapper.MessageType;
+
+/**
+ * 트랜잭션과 블록을 본문 대신 hash로 알리고(INV), 없는 것만 요청(GETDATA)해서 받는 gossip.
+ *
+ * - 노드 전체의 seen cache: 이미 받아들인 hash. 다른 peer가 다시 알려도 요청하지 않는다.
+ * - peer별 known inventory(Peer.getKnownInventory): 그 peer가 이미 가진 hash. 다시 알리지 않는다.
+ * - 요청 중인 hash는 REQUEST_TIMEOUT_MS 동안 다른 peer에게 다시 요청하지 않는다.
+ *
+ * 트랜잭션 INV는 peer별로 모아 ANNOUNCE_INTERVAL_MS마다 한 번에 보낸다.
+ * 블록은 INV 대신 compact block(BlockRelay)을 바로 보낸다.
+ * 본문은 링크마다 최대 한 번만 지나가므로 트랜잭션 하나의 전송량은 peer 수에 비례한다.
+ */
+public class Gossip {
+    public static final int MAX_INV_SIZE = 1000;
+    public static final long ANNOUNCE_INTERVAL_MS = 100;
+    public static final long SEEN_TTL_MS = 10 * 60 * 1000;
+    public static final int MAX_SEEN = 100_000;
+    public static final int MAX_KNOWN_PER_PEER = 10_000;
+    private static final long REQUEST_TIMEOUT_MS = 5_000;
+    // GETDATA에 바로 답할 수 있도록 최근에 알린 메시지를 인코딩된 채로 보관한다
+    private static final int MAX_RELAY_MESSAGES = 256;
+
+    public static class Inventory {
+        public MessageType type;
+        public List<String> hashes;
+
+        public Inventory(MessageType type, List<String> hashes) {
+            this.type = type;
+            this.hashes = hashes;
+        }
+    }
+
+    private final PeerManager peerManager;
+    private final Blockchain blockchain;
+    private final Mempool mempool;
+    private final Gson gson;
+
+    private final SeenCache seen = new SeenCache(MAX_SEEN, SEEN_TTL_MS);
+    // 요청한 hash와 요청 시각
+    private final Map<String, Long> requested = new HashMap<>();
+    private final Map<Peer, Set<String>> pendingAnnouncements = new HashMap<>();
+    private final Map<String, MessageWrapper> relayMessages = new LinkedHashMap<>(16, 0.75f, false) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, MessageWrapper> eldest) {
+            return size() > MAX_RELAY_MESSAGES;
+        }
+    };
+
+    private volatile boolean running = true;
+    private final Thread announcer;
+
+    private final Metrics.Counter inventorySent;
+    private final Metrics.Counter inventoryReceived;
+    private final Metrics.Counter itemsRequested;
+    private final Metrics.Counter itemsServed;
+
+    public Gossip(PeerManager peerManager, Blockchain blockchain, Mempool mempool, Gson gson, Metrics metrics) {
+        this.peerManager = peerManager;
+        this.blockchain = blockchain;
+        this.mempool = mempool;
+        this.gson = gson;
+        this.inventorySent = metrics.counter("gossip_inv_sent_total");
+        this.inventoryReceived = metrics.counter("gossip_inv_received_total");
+        this.itemsRequested = metrics.counter("gossip_getdata_sent_total");
+        this.itemsServed = metrics.counter("gossip_getdata_served_total");
+        metrics.gauge("gossip_seen", seen::size);
+        metrics.gauge("gossip_requests_in_flight", this::getRequestedCount);
+
+        this.announcer = new Thread(this::announceLoop, "gossip-announcer");
+        this.announcer.setDaemon(true);
+        this.announcer.start();
+    }
+
+    /**
+     * 새로 받아들인 트랜잭션이나 블록을 originator를 제외한 peer에게 알린다.
+     * @param message 요청받으면 그대로 보낼 TX 또는 BLOCK 메시지
+     */
+    public void announce(MessageType type, String hash, MessageWrapper message, Peer originator) {
+        markSeen(hash);
+        synchronized (relayMessages) {
+            relayMessages.put(hash, message);
+        }
+        for (Peer peer : peerManager.getPeers()) {
+            if (peer == originator || !peer.getKnownInventory().add(hash)) { continue; }
+            if (type == MessageType.BLOCK) {
+                sendInventory(peer, type, List.of(hash));
+            } else {
+                synchronized (this) {
+                    pendingAnnouncements.computeIfAbsent(peer, p -> new LinkedHashSet<>()).add(hash);
+                }
+            }
+        }
+    }
+
+    /**
+     * 블록은 INV 왕복 없이 compact block을 바로 보낸다.
+     * @param full 복원에 실패한 peer가 GETDATA로 요청하면 보낼 메시지. null이면 요청받을 때 만든다
+     */
+    public void pushBlock(String hash, MessageWrapper full, MessageWrapper compact, Peer originator) {
+        markSeen(hash);
+        if (full != null) {
+            synchronized (relayMessages) {
+                relayMessages.put(hash, full);
+            }
+        }
+        for (Peer peer : peerManager.getPeers()) {
+            if (peer != originator && peer.getKnownInventory().add(hash)) {
+                peer.send(compact);
+            }
+        }
+    }
+
+    /** 받아들인 hash를 기록한다. 이후 이 hash의 INV는 요청하지 않는다. */
+    public void markSeen(String hash) {
+        seen.add(hash);
+        synchronized (this) {
+            requested.remove(hash);
+        }
+    }
+
+    public boolean isSeen(String hash) { return seen.contains(hash); }
+
+    /**
+     * peer가 본문을 보냈다. 그 peer는 이 hash를 가지고 있으므로 알리지 않으며,
+     * 검증이 끝나면 markSeen 또는 announce가 호출된다.
+     */
+    public void received(Peer peer, String hash) {
+        peer.getKnownInventory().add(hash);
+    }
+
+    public void handleInventory(Peer peer, MessageWrapper wrapper) {
+        Inventory inv = gson.fromJson(wrapper.jsonData, Inventory.class);
+        if (!isValid(inv)) {
+            Log.limited(Log.Level.WARN, "invalid-inv", () -> "Gossip: invalid INV from " + peer);
+            peer.misbehaving(Peer.MALFORMED_SCORE, "invalid INV");
+            return;
+        }
+        inventoryReceived.add(inv.hashes.size());
+
+        long now = System.currentTimeMillis();
+        List<String> wanted = new ArrayList<>();
+        for (String hash : inv.hashes) {
+            peer.getKnownInventory().add(hash);
+            if (seen.contains(hash) || have(inv.type, hash)) { continue; }
+            synchronized (this) {
+                Long sentAt = requested.get(hash);
+                if (sentAt != null && now - sentAt < REQUEST_TIMEOUT_MS) { continue; }
+                requested.put(hash, now);
+            }
+            wanted.add(hash);
+        }
+        if (!wanted.isEmpty()) {
+            itemsRequested.add(wanted.size());
+            peer.send(new MessageWrapper(MessageType.GETDATA, gson.toJson(new Inventory(inv.type, wanted))));
+        }
+    }
+
+    public void handleGetData(Peer peer, MessageWrapper wrapper) {
+        Inventory request = gson.fromJson(wrapper.jsonData, Inventory.class);
+        if (!isValid(request)) {
+            Log.limited(Log.Level.WARN, "invalid-getdata", () -> "Gossip: invalid GETDATA from " + peer);
+            peer.misbehaving(Peer.MALFORMED_SCORE, "invalid GETDATA");
+            return;
+        }
+        for (String hash : request.hashes) {
+            MessageWrapper message = find(request.type, hash);
+            if (message != null) {
+                peer.getKnownInventory().add(hash);
+                peer.send(message);
+                itemsServed.inc();
+            }
+        }
+    }
+
+    public synchronized void onPeerDisconnected(Peer peer) {
+        pendingAnnouncements.remove(peer);
+    }
+
+    public synchronized int getRequestedCount() { return requested.size(); }
+
+    public void shutdown() {
+        running = false;
+        announcer.interrupt();
+    }
+
+    private static boolean isValid(Inventory inv) {
+        return inv != null && inv.hashes != null && inv.hashes.size() <= MAX_INV_SIZE
+                && (inv.type == MessageType.TX || inv.type == MessageType.BLOCK);
+    }
+
+    private boolean have(MessageType type, String hash) {
+        return type == MessageType.TX ? mempool.contains(hash) : blockchain.contains(hash);
+    }
+
+    private MessageWrapper find(MessageType type, String hash) {
+        synchronized (relayMessages) {
+            MessageWrapper message = relayMessages.get(hash);
+            if (message != null && message.type == type) { return message; }
+        }
+        if (type == MessageType.TX) {
+            Transaction tx = mempool.getTransaction(hash);
+            return tx == null ? null : MessageWrapper.of(tx);
+        }
+        Block block = blockchain.getBlockByHash(hash);
+        return block == null ? null : MessageWrapper.of(block);
+    }
+
+    private void sendInventory(Peer peer, MessageType type, List<String> hashes) {
+        inventorySent.add(hashes.size());
+        peer.send(new MessageWrapper(MessageType.INV, gson.toJson(new Inventory(type, hashes))));
+    }
+
+    private void announceLoop() {
+        while (running) {
+            try {
+                Thread.sleep(ANNOUNCE_INTERVAL_MS);
+            } catch (InterruptedException e) {
+                return;
+            }
+            Map<Peer, Set<String>> batch;
+            synchronized (this) {
+                long now = System.currentTimeMillis();
+                requested.values().removeIf(sentAt -> now - sentAt >= REQUEST_TIMEOUT_MS);
+                if (pendingAnnouncements.isEmpty()) { continue; }
+                batch = new HashMap<>(pendingAnnouncements);
+                pendingAnnouncements.clear();
+            }
+            for (Map.Entry<Peer, Set<String>> entry : batch.entrySet()) {
+                List<String> hashes = new ArrayList<>(entry.getValue());
+                for (int from = 0; from < hashes.size(); from += MAX_INV_SIZE) {
+                    sendInventory(entry.getKey(), MessageType.TX, hashes.subList(from, Math.min(from + MAX_INV_SIZE, hashes.size())));
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,81 @@
+package blockchain;
+
+import java.time.LocalTime;
+import java.time.format.DateTimeFormatter;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Supplier;
+
+/**
+ * level과 rate limit이 있는 콘솔 로그.
+ * level은 -Dblockchain.log=DEBUG|INFO|WARN|ERROR 로 정하며 기본은 INFO.
+ * 메시지마다 반복될 수 있는 로그는 limited()로 남겨서 같은 key는 RATE_LIMIT_WINDOW_MS 동안 한 번만 출력한다.
+ */
+public final class Log {
+    public enum Level { DEBUG, INFO, WARN, ERROR }
+
+    public static final long RATE_LIMIT_WINDOW_MS = 5_000;
+    private static final DateTimeFormatter TIME = DateTimeFormatter.ofPattern("HH:mm:ss.SSS");
+
+    private static volatile Level level = parseLevel(System.getProperty("blockchain.log", "INFO"));
+    private static final Map<String, Window> windows = new ConcurrentHashMap<>();
+
+    private static class Window {
+        private volatile long start;
+        private final AtomicLong suppressed = new AtomicLong();
+    }
+
+    private Log() {}
+
+    public static Level getLevel() { return level; }
+    public static void setLevel(Level newLevel) { level = newLevel; }
+    public static boolean isEnabled(Level l) { return l.compareTo(level) >= 0; }
+
+    public static void debug(String message) { log(Level.DEBUG, message); }
+    public static void info(String message) { log(Level.INFO, message); }
+    public static void warn(String message) { log(Level.WARN, message); }
+    public static void error(String message) { log(Level.ERROR, message); }
+
+    /** 비활성 level이면 메시지 문자열을 만들지 않는다. */
+    public static void debug(Supplier<String> message) {
+        if (isEnabled(Level.DEBUG)) { log(Level.DEBUG, message.get()); }
+    }
+
+    /**
+     * 같은 key의 메시지는 window 당 한 번만 출력하고, 그 사이 건너뛴 수를 다음 출력에 붙인다.
+     * key는 호출 위치마다 고정된 문자열을 쓴다.
+     */
+    public static void limited(Level l, String key, Supplier<String> message) {
+        if (!isEnabled(l)) { return; }
+        Window window = windows.computeIfAbsent(key, k -> new Window());
+        long now = System.currentTimeMillis();
+        synchronized (window) {
+            if (window.start != 0 && now - window.start < RATE_LIMIT_WINDOW_MS) {
+                window.suppressed.incrementAndGet();
+                return;
+            }
+            window.start = now;
+        }
+        long suppressed = window.suppressed.getAndSet(0);
+        log(l, suppressed == 0 ? message.get() : message.get() + " (" + suppressed + " similar messages suppressed)");
+    }
+
+    private static void log(Level l, String message) {
+        if (!isEnabled(l)) { return; }
+        String line = LocalTime.now().format(TIME) + " " + l + " [" + Thread.currentThread().getName() + "] " + message;
+        if (l.compareTo(Level.WARN) >= 0) {
+            System.err.println(line);
+        } else {
+            System.out.println(line);
+        }
+    }
+
+    private static Level parseLevel(String value) {
+        try {
+            return Level.valueOf(value.trim().toUpperCase());
+        } catch (IllegalArgumentException e) {
+            return Level.INFO;
+        }
+    }
+}
@@ -1,43 +1,160 @@
 package blockchain;
 
 import java.util.ArrayList;
+import java.util.Comparator;
 import java.util.List;
-import java.util.Set;
-import java.util.concurrent.ConcurrentLinkedQueue;
-import java.util.stream.Collector;
-import java.util.stream.Collectors;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentSkipListSet;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Consumer;
+import java.util.function.Predicate;
 
+/**
+ * 트랜잭션 ID 인덱스(ConcurrentHashMap)와 우선순위 집합(ConcurrentSkipListSet)으로 구성된 mempool.
+ * 중복 검사는 O(1), 블록용 트랜잭션 선택과 eviction은 O(log n) 이다.
+ * 우선순위는 fee가 높은 순, 같으면 먼저 들어온 순.
+ */
 public class Mempool {
-    private ConcurrentLinkedQueue<Transaction> queue;
+    public static final int DEFAULT_MAX_TRANSACTIONS = 100_000;
+
+    private static final Comparator<Entry> PRIORITY = Comparator
+            .comparingLong((Entry e) -> -e.tx.getFee())
+            .thenComparingLong(e -> e.sequence);
+
+    private final int maxTransactions;
+    private final ConcurrentHashMap<String, Entry> byId;
+    private final ConcurrentSkipListSet<Entry> byPriority;
+
+    private final AtomicLong sequence = new AtomicLong();
+    private final AtomicInteger count = new AtomicInteger();
+    private final AtomicLong memoryBytes = new AtomicLong();
+    private final AtomicLong evictedCount = new AtomicLong();
+    private final List<Consumer<Transaction>> listeners = new CopyOnWriteArrayList<>();
 
     public Mempool() {
-        this.queue = new ConcurrentLinkedQueue<>();
+        this(DEFAULT_MAX_TRANSACTIONS);
+    }
+
+    public Mempool(int maxTransactions) {
+        if (maxTransactions < 1) {
+            throw new IllegalArgumentException("maxTransactions must be >= 1");
+        }
+        this.maxTransactions = maxTransactions;
+        this.byId = new ConcurrentHashMap<>();
+        this.byPriority = new ConcurrentSkipListSet<>(PRIORITY);
     }
 
     public boolean addTransaction(Transaction tx) {
-        for(Transaction pending : queue) {
-            if(pending.getTransactionID().equals(tx.getTransactionID())){
-                return false;
+        Entry entry = new Entry(tx, sequence.getAndIncrement());
+        if (byId.putIfAbsent(tx.getTransactionID(), entry) != null) {
+            return false;
+        }
+        byPriority.add(entry);
+        count.incrementAndGet();
+        memoryBytes.addAndGet(entry.size);
+        // putIfAbsent와 add 사이에 removeTransactions가 먼저 release 했다면 그쪽의 byPriority.remove는
+        // 아무것도 지우지 못했다. 여기서 지우지 않으면 채굴된 트랜잭션이 우선순위 집합에 영영 남는다
+        if (byId.get(tx.getTransactionID()) != entry) {
+            byPriority.remove(entry);
+            return false;
+        }
+
+        // 가득 차면 우선순위가 가장 낮은 트랜잭션부터 내보낸다
+        while (count.get() > maxTransactions) {
+            Entry lowest = byPriority.pollLast();
+            if (lowest == null) { break; }
+            if (release(lowest)) {
+                evictedCount.incrementAndGet();
+                if (lowest == entry) { return false; }
             }
         }
-        queue.add(tx);
+        for (Consumer<Transaction> listener : listeners) {
+            listener.accept(tx);
+        }
         return true;
     }
-    
+
+    /** 트랜잭션이 새로 들어올 때마다 호출된다. 추가한 thread에서 바로 호출되므로 빨리 반환해야 한다 */
+    public void addListener(Consumer<Transaction> listener) { listeners.add(listener); }
+    public void removeListener(Consumer<Transaction> listener) { listeners.remove(listener); }
+
     public List<Transaction> getTransactionsForBlock(int maxTransactions) {
         List<Transaction> txs = new ArrayList<>();
-        while(txs.size() < maxTransactions && !queue.isEmpty()) {
-            Transaction tx = queue.poll();
-            if(tx != null) {
-                txs.add(tx);
+        while(txs.size() < maxTransactions) {
+            Entry entry = byPriority.pollFirst();
+            if (entry == null) { break; }
+            if (release(entry)) {
+                txs.add(entry.tx);
             }
         }
         return txs;
     }
 
+    /**
+     * 우선순위가 높은 순서로 트랜잭션을 visitor에 넘긴다. mempool에서 꺼내지 않으며 visitor가 false를 반환하면 멈춘다.
+     * 도중에 추가/제거된 트랜잭션은 보일 수도 있고 안 보일 수도 있다. 이미 제거된 entry는 건너뛰고 치운다.
+     */
+    public void forEachByPriority(Predicate<Transaction> visitor) {
+        for (Entry entry : byPriority) {
+            if (byId.get(entry.tx.getTransactionID()) != entry) {
+                byPriority.remove(entry);
+                continue;
+            }
+            if (!visitor.test(entry.tx)) { return; }
+        }
+    }
+
     public void removeTransactions(List<Transaction> minedTxs) {
-        Set<String> minedTxIds = minedTxs.stream().map(Transaction::getTransactionID).collect(Collectors.toSet());
-        queue.removeIf(tx -> minedTxIds.contains(tx.getTransactionID()));
+        for (Transaction tx : minedTxs) {
+            Entry entry = byId.get(tx.getTransactionID());
+            if (entry != null && release(entry)) {
+                byPriority.remove(entry);
+            }
+        }
+    }
+
+    public boolean contains(String transactionID) { return byId.containsKey(transactionID); }
+
+    public Transaction getTransaction(String transactionID) {
+        Entry entry = byId.get(transactionID);
+        return entry == null ? null : entry.tx;
+    }
+
+    /** 현재 mempool에 있는 트랜잭션의 복사본. 순서는 정해져 있지 않다 */
+    public List<Transaction> getTransactions() {
+        List<Transaction> txs = new ArrayList<>(count.get());
+        for (Entry entry : byId.values()) {
+            txs.add(entry.tx);
+        }
+        return txs;
     }
 
+    public int size() { return count.get(); }
+    public int getMaxTransactions() { return maxTransactions; }
+    public long getMemoryBytes() { return memoryBytes.get(); }
+    public long getEvictedCount() { return evictedCount.get(); }
+
+    /** 인덱스에서 entry를 제거한다. 다른 thread가 먼저 제거했다면 false */
+    private boolean release(Entry entry) {
+        if (!byId.remove(entry.tx.getTransactionID(), entry)) {
+            return false;
+        }
+        count.decrementAndGet();
+        memoryBytes.addAndGet(-entry.size);
+        return true;
+    }
+
+    private static class Entry {
+        private final Transaction tx;
+        private final long sequence;
+        private final int size;
+
+        Entry(Transaction tx, long sequence) {
+            this.tx = tx;
+            this.sequence = sequence;
+            this.size = tx.estimateSize();
+        }
+    }
 }
@@ -1,38 +1,174 @@
 package blockchain;
 
+import java.security.MessageDigest;
 import java.util.ArrayList;
+import java.util.Base64;
+import java.util.Collections;
+import java.util.HashMap;
 import java.util.List;
-import java.util.stream.Collectors;
+import java.util.Map;
+import java.util.stream.IntStream;
 
+/**
+ * 바이트 단위 Merkle tree.
+ * 모든 level을 보관하므로 트랜잭션 하나를 append 하면 오른쪽 끝 경로(O(log n))만 다시 계산하고,
+ * 트랜잭션 ID로 inclusion proof를 만들 수 있다. 큰 level은 병렬로 hash 한다.
+ *
+ * leaf는 transactionID(32바이트), 부모는 SHA-256(left || right)이며,
+ * 홀수 개인 level의 마지막 노드는 자기 자신과 짝을 이룬다.
+ */
 public class MerkleTree {
+    // 이 수 이상의 부모 노드를 만드는 level은 병렬로 계산한다
+    private static final int PARALLEL_THRESHOLD = 1024;
+
+    private final List<List<byte[]>> levels = new ArrayList<>();
+    private final Map<String, Integer> leafIndex = new HashMap<>();
+
+    public MerkleTree() {
+        levels.add(new ArrayList<>());
+    }
+
+    public MerkleTree(List<Transaction> transactions) {
+        this();
+        List<byte[]> leaves = levels.get(0);
+        for (Transaction tx : transactions) {
+            leafIndex.putIfAbsent(tx.getTransactionID(), leaves.size());
+            leaves.add(CryptoUtil.decodeHash(tx.getTransactionID()));
+        }
+        List<byte[]> level = leaves;
+        while (level.size() > 1) {
+            level = calculateNextHashLevel(level);
+            levels.add(level);
+        }
+    }
+
     public static String getMerkleRoot(List<Transaction> transactions) {
-        List<String> transactionIDs = transactions.stream().map(Transaction::getTransactionID).collect(Collectors.toList());
+        return new MerkleTree(transactions).getRootString();
+    }
+
+    /** 트랜잭션 하나를 추가하고 오른쪽 끝 경로만 다시 계산한다. */
+    public synchronized void append(Transaction tx) {
+        List<byte[]> leaves = levels.get(0);
+        leafIndex.putIfAbsent(tx.getTransactionID(), leaves.size());
+        leaves.add(CryptoUtil.decodeHash(tx.getTransactionID()));
+
+        int level = 0;
+        while (levels.get(level).size() > 1) {
+            List<byte[]> current = levels.get(level);
+            if (levels.size() == level + 1) {
+                levels.add(new ArrayList<>());
+            }
+            List<byte[]> parent = levels.get(level + 1);
+
+            int last = current.size() - 1;
+            int left = last - (last % 2);
+            byte[] hash = hashPair(current.get(left), left + 1 < current.size() ? current.get(left + 1) : current.get(left));
+            if (left / 2 < parent.size()) {
+                parent.set(left / 2, hash);
+            } else {
+                parent.add(hash);
+            }
+            level++;
+        }
+    }
+
+    /** index 위치의 트랜잭션을 바꾸고 그 leaf에서 root까지의 경로(O(log n))만 다시 계산한다. */
+    public synchronized void set(int index, Transaction tx) {
+        List<byte[]> leaves = levels.get(0);
+        leafIndex.remove(Base64.getEncoder().encodeToString(leaves.get(index)), index);
+        leafIndex.putIfAbsent(tx.getTransactionID(), index);
+        leaves.set(index, CryptoUtil.decodeHash(tx.getTransactionID()));
 
-        if(transactionIDs.isEmpty()) { return CryptoUtil.hashSHA256(""); }
-        if(transactionIDs.size() == 1) { return transactionIDs.get(0); }
+        int i = index;
+        for (int level = 0; level < levels.size() - 1; level++) {
+            List<byte[]> current = levels.get(level);
+            int left = i - (i % 2);
+            byte[] hash = hashPair(current.get(left), left + 1 < current.size() ? current.get(left + 1) : current.get(left));
+            levels.get(level + 1).set(left / 2, hash);
+            i /= 2;
+        }
+    }
 
-        List<String> currentlevelHashes = new ArrayList<>(transactionIDs);
+    public synchronized byte[] getRoot() {
+        List<byte[]> top = levels.get(levels.size() - 1);
+        if (top.isEmpty()) {
+            return CryptoUtil.sha256(new byte[0]);
+        }
+        return top.get(0).clone();
+    }
 
-        while(currentlevelHashes.size() > 1) { currentlevelHashes = calculateNextHashLevel(currentlevelHashes); }
-        
-        return currentlevelHashes.get(0);
+    public String getRootString() {
+        return Base64.getEncoder().encodeToString(getRoot());
     }
 
-    private static List<String> calculateNextHashLevel(List<String> hashes) {
-        List<String> nextLevel = new ArrayList<>();
+    public synchronized int size() { return levels.get(0).size(); }
 
-        for (int i = 0; i < hashes.size(); i += 2) {
-            String left = hashes.get(i);
-            String right;
+    /** @return transactionID가 tree에 없으면 null */
+    public synchronized Proof getProof(String transactionID) {
+        Integer index = leafIndex.get(transactionID);
+        if (index == null) { return null; }
 
-            if (i + 1 < hashes.size()) { right = hashes.get(i + 1); }
-            else { right = left; }
+        List<byte[]> siblings = new ArrayList<>();
+        int i = index;
+        for (int level = 0; level < levels.size() - 1; level++) {
+            List<byte[]> current = levels.get(level);
+            int sibling = (i % 2 == 0) ? Math.min(i + 1, current.size() - 1) : i - 1;
+            siblings.add(current.get(sibling).clone());
+            i /= 2;
+        }
+        return new Proof(transactionID, index, siblings);
+    }
 
-            String combinedData = left + right;
-            String combinedHash = CryptoUtil.hashSHA256(combinedData);
+    /**
+     * 트랜잭션이 특정 Merkle root에 포함되어 있음을 보이는 증명.
+     * 블록 전체 없이 헤더의 transactionsRoot만으로 검증할 수 있다.
+     */
+    public static class Proof {
+        private final String transactionID;
+        private final int index;
+        private final List<byte[]> siblings;
+
+        public Proof(String transactionID, int index, List<byte[]> siblings) {
+            this.transactionID = transactionID;
+            this.index = index;
+            this.siblings = siblings;
+        }
 
-            nextLevel.add(combinedHash);
+        public boolean verify(String merkleRoot) {
+            byte[] hash = CryptoUtil.decodeHash(transactionID);
+            int i = index;
+            for (byte[] sibling : siblings) {
+                hash = (i % 2 == 0) ? hashPair(hash, sibling) : hashPair(sibling, hash);
+                i /= 2;
+            }
+            return MessageDigest.isEqual(hash, CryptoUtil.decodeHash(merkleRoot));
         }
-        return nextLevel;
+
+        public String getTransactionID() { return transactionID; }
+        public int getIndex() { return index; }
+        public List<byte[]> getSiblings() { return Collections.unmodifiableList(siblings); }
+    }
+
+    private static List<byte[]> calculateNextHashLevel(List<byte[]> hashes) {
+        int parents = (hashes.size() + 1) / 2;
+        IntStream range = IntStream.range(0, parents);
+        if (parents >= PARALLEL_THRESHOLD) {
+            range = range.parallel();
+        }
+
+        byte[][] nextLevel = new byte[parents][];
+        range.forEach(p -> {
+            int i = p * 2;
+            byte[] left = hashes.get(i);
+            byte[] right = (i + 1 < hashes.size()) ? hashes.get(i + 1) : left;
+            nextLevel[p] = hashPair(left, right);
+        });
+        List<byte[]> result = new ArrayList<>(parents);
+        Collections.addAll(result, nextLevel);
+        return result;
+    }
+
+    private static byte[] hashPair(byte[] left, byte[] right) {
+        return CryptoUtil.sha256(left, right);
     }
 }
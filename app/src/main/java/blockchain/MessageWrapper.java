@@ -1,18 +1,117 @@
 package blockchain;
 
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+
+import com.google.gson.Gson;
+
 public class MessageWrapper {
+    // binary frame에서는 ordinal이 type 코드로 쓰이므로 새 타입은 항상 뒤에 추가한다
     public enum MessageType {
         TX, // Transaction
-        BLOCK // Block
+        BLOCK, // Block
+        HELLO, // 연결 직후 프로토콜 버전과 지원하는 encoding 교환
+        GETHEADERS, // block locator 이후의 헤더 요청
+        HEADERS, // 헤더 묶음
+        GETBLOCKS, // hash 목록으로 블록 본문 요청
+        BLOCKS, // 요청받은 블록 묶음
+        INV, // 가지고 있는 트랜잭션/블록 hash 알림
+        GETDATA, // INV로 알려진 것 중 없는 본문 요청
+        CMPCTBLOCK, // 헤더와 short transaction ID로 된 새 블록
+        GETBLOCKTXN, // compact block 복원에 필요한 누락 트랜잭션 요청
+        BLOCKTXN // 요청받은 블록 트랜잭션
     }
 
+    private static final Gson gson = new Gson();
+
     public MessageType type;
+    // JSON 본문. TX/BLOCK 메시지는 JSON encoding으로 보낼 때 처음 필요해지면 만든다 (getJsonData)
     public String jsonData;
 
+    // TX/BLOCK 메시지의 객체와 BinaryCodec 본문. 둘 중 하나만 있으면 나머지는 필요할 때 만든다
+    private transient Object body;
+    private transient ByteBuffer binaryBody;
+
+    // encoding 별로 인코딩된 wire bytes. relay 시 다시 인코딩하지 않고 그대로 보낸다
+    private transient ByteBuffer[] encoded;
+
     public MessageWrapper() {}
 
     public MessageWrapper(MessageType type, String jsonData) {
         this.type = type;
         this.jsonData = jsonData;
     }
+
+    private MessageWrapper(MessageType type, Object body) {
+        this.type = type;
+        this.body = body;
+    }
+
+    public static MessageWrapper of(Transaction tx) { return new MessageWrapper(MessageType.TX, tx); }
+    public static MessageWrapper of(Block block) { return new MessageWrapper(MessageType.BLOCK, block); }
+
+    /** PACKED frame으로 받은 TX/BLOCK 메시지 */
+    static MessageWrapper binary(MessageType type, ByteBuffer binaryBody) {
+        MessageWrapper msg = new MessageWrapper();
+        msg.type = type;
+        msg.binaryBody = binaryBody;
+        return msg;
+    }
+
+    /** TX/BLOCK 본문이 BinaryCodec으로 인코딩되는 메시지인지 */
+    static boolean hasBinaryBody(MessageType type) {
+        return type == MessageType.TX || type == MessageType.BLOCK;
+    }
+
+    public synchronized String getJsonData() {
+        if (jsonData == null && (body != null || binaryBody != null)) {
+            jsonData = gson.toJson(getBody());
+        }
+        return jsonData;
+    }
+
+    public Transaction getTransaction() { return (Transaction) getBody(); }
+
+    /** PACKED로 받은 블록의 트랜잭션은 처음 접근할 때 디코딩된다 */
+    public Block getBlock() { return (Block) getBody(); }
+
+    private synchronized Object getBody() {
+        if (body == null) {
+            if (binaryBody != null) {
+                ByteBuffer in = binaryBody.duplicate();
+                body = type == MessageType.TX ? BinaryCodec.decodeTransaction(in) : BinaryCodec.decodeBlock(in);
+            } else if (jsonData != null) {
+                body = gson.fromJson(jsonData, type == MessageType.TX ? Transaction.class : Block.class);
+            }
+        }
+        return body;
+    }
+
+    /** BINARY frame의 본문 (JSON) */
+    public byte[] getPayload() {
+        String json = getJsonData();
+        return json == null ? new byte[0] : json.getBytes(StandardCharsets.UTF_8);
+    }
+
+    /** PACKED frame의 본문. TX/BLOCK은 BinaryCodec, 그 외는 JSON */
+    synchronized ByteBuffer getPackedPayload() {
+        if (!hasBinaryBody(type)) { return ByteBuffer.wrap(getPayload()); }
+        if (binaryBody == null) {
+            Object value = getBody();
+            binaryBody = ByteBuffer.wrap(value instanceof Block block ? BinaryCodec.encodeBlock(block)
+                    : BinaryCodec.encodeTransaction((Transaction) value));
+        }
+        return binaryBody.duplicate();
+    }
+
+    synchronized ByteBuffer getEncoded(WireProtocol.Encoding encoding) {
+        return encoded == null ? null : encoded[encoding.ordinal()];
+    }
+
+    synchronized void setEncoded(WireProtocol.Encoding encoding, ByteBuffer bytes) {
+        if (encoded == null) {
+            encoded = new ByteBuffer[WireProtocol.Encoding.values().length];
+        }
+        encoded[encoding.ordinal()] = bytes;
+    }
 }
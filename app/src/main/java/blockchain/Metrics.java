@@ -0,0 +1,164 @@
+package blockchain;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.DoubleSupplier;
+
+/**
+ * 노드 하나의 metric registry. counter와 histogram은 hot path에서 lock 없이 기록되고,
+ * gauge는 scrape 할 때만 값을 읽는다. Prometheus text format으로 내보낸다.
+ *
+ * metric 이름에는 label을 붙일 수 있다: {@code Metrics.name("p2p_peer_bytes_received", "peer", peer)}
+ */
+public class Metrics {
+    private final Map<String, Counter> counters = new ConcurrentSkipListMap<>();
+    private final Map<String, DoubleSupplier> gauges = new ConcurrentSkipListMap<>();
+    private final Map<String, Histogram> histograms = new ConcurrentSkipListMap<>();
+
+    public Counter counter(String name) {
+        return counters.computeIfAbsent(name, n -> new Counter());
+    }
+
+    public Histogram histogram(String name) {
+        return histograms.computeIfAbsent(name, n -> new Histogram());
+    }
+
+    public void gauge(String name, DoubleSupplier value) {
+        gauges.put(name, value);
+    }
+
+    /** peer처럼 사라지는 대상의 metric을 내린다. */
+    public void remove(String name) {
+        counters.remove(name);
+        gauges.remove(name);
+        histograms.remove(name);
+    }
+
+    public static String name(String base, String label, Object value) {
+        String escaped = String.valueOf(value).replace("\\", "\\\\").replace("\"", "\\\"");
+        return base + "{" + label + "=\"" + escaped + "\"}";
+    }
+
+    /** 단조 증가 counter. 여러 thread가 동시에 더해도 경합이 적다. */
+    public static class Counter {
+        private final LongAdder value = new LongAdder();
+
+        public void inc() { value.increment(); }
+        public void add(long n) { value.add(n); }
+        public long get() { return value.sum(); }
+    }
+
+    /**
+     * nanosecond 단위 latency histogram. bucket 경계가 2의 거듭제곱이라 기록은 shift 한 번이고,
+     * percentile은 최대 2배 오차의 상한값으로 추정한다.
+     */
+    public static class Histogram {
+        private static final int BUCKETS = 64;
+        private final AtomicLongArray buckets = new AtomicLongArray(BUCKETS);
+        private final LongAdder count = new LongAdder();
+        private final LongAdder sum = new LongAdder();
+
+        public void record(long nanos) {
+            if (nanos < 0) { nanos = 0; }
+            buckets.incrementAndGet(bucket(nanos));
+            count.increment();
+            sum.add(nanos);
+        }
+
+        /** @param startNanos System.nanoTime()으로 잰 시작 시각 */
+        public void recordSince(long startNanos) {
+            record(System.nanoTime() - startNanos);
+        }
+
+        public long getCount() { return count.sum(); }
+        public long getSumNanos() { return sum.sum(); }
+
+        /** @param quantile 0.0 ~ 1.0 */
+        public long percentile(double quantile) {
+            long total = 0;
+            long[] snapshot = new long[BUCKETS];
+            for (int i = 0; i < BUCKETS; i++) {
+                snapshot[i] = buckets.get(i);
+                total += snapshot[i];
+            }
+            if (total == 0) { return 0; }
+            long rank = (long) Math.ceil(quantile * total);
+            long seen = 0;
+            for (int i = 0; i < BUCKETS; i++) {
+                seen += snapshot[i];
+                if (seen >= rank) { return upperBound(i); }
+            }
+            return upperBound(BUCKETS - 1);
+        }
+
+        // bucket i는 [2^(i-1), 2^i) ns
+        private static int bucket(long nanos) {
+            return Math.min(BUCKETS - 1, 64 - Long.numberOfLeadingZeros(nanos));
+        }
+
+        private static long upperBound(int bucket) {
+            return bucket >= 63 ? Long.MAX_VALUE : 1L << bucket;
+        }
+    }
+
+    /** Prometheus text exposition format (version 0.0.4) */
+    public String scrape() {
+        StringBuilder sb = new StringBuilder(4096);
+        String lastType = null;
+        for (Map.Entry<String, Counter> e : counters.entrySet()) {
+            lastType = typeLine(sb, e.getKey(), "counter", lastType);
+            sb.append(e.getKey()).append(' ').append(e.getValue().get()).append('\n');
+        }
+        for (Map.Entry<String, DoubleSupplier> e : gauges.entrySet()) {
+            double value;
+            try {
+                value = e.getValue().getAsDouble();
+            } catch (RuntimeException ex) {
+                continue;
+            }
+            lastType = typeLine(sb, e.getKey(), "gauge", lastType);
+            sb.append(e.getKey()).append(' ').append(value).append('\n');
+        }
+        for (Map.Entry<String, Histogram> e : histograms.entrySet()) {
+            lastType = typeLine(sb, e.getKey(), "histogram", lastType);
+            writeHistogram(sb, e.getKey(), e.getValue());
+        }
+        return sb.toString();
+    }
+
+    private static String typeLine(StringBuilder sb, String name, String type, String lastType) {
+        String base = baseName(name);
+        if (!base.equals(lastType)) {
+            sb.append("# TYPE ").append(base).append(' ').append(type).append('\n');
+        }
+        return base;
+    }
+
+    private static void writeHistogram(StringBuilder sb, String name, Histogram histogram) {
+        String base = baseName(name);
+        String labels = name.length() > base.length() ? name.substring(base.length() + 1, name.length() - 1) + "," : "";
+        int highest = -1;
+        long[] snapshot = new long[Histogram.BUCKETS];
+        for (int i = 0; i < Histogram.BUCKETS; i++) {
+            snapshot[i] = histogram.buckets.get(i);
+            if (snapshot[i] > 0) { highest = i; }
+        }
+        long cumulative = 0;
+        for (int i = 0; i <= highest; i++) {
+            cumulative += snapshot[i];
+            sb.append(base).append("_bucket{").append(labels).append("le=\"")
+              .append(Histogram.upperBound(i) / 1e9).append("\"} ").append(cumulative).append('\n');
+        }
+        sb.append(base).append("_bucket{").append(labels).append("le=\"+Inf\"} ").append(cumulative).append('\n');
+        String suffix = labels.isEmpty() ? "" : "{" + labels.substring(0, labels.length() - 1) + "}";
+        sb.append(base).append("_sum").append(suffix).append(' ').append(histogram.getSumNanos() / 1e9).append('\n');
+        sb.append(base).append("_count").append(suffix).append(' ').append(cumulative).append('\n');
+    }
+
+    private static String baseName(String name) {
+        int brace = name.indexOf('{');
+        return brace < 0 ? name : name.substring(0, brace);
+    }
+}
@@ -0,0 +1,256 @@
+package blockchain;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.BooleanSupplier;
+
+/**
+ * 여러 코어에서 동시에 PoW를 수행하는 채굴 엔진.
+ * nonce 공간을 worker 수만큼 구간으로 나누고, 한 worker가 해를 찾거나
+ * 작업이 stale 해지면(새 블록이 tip에 붙으면) 모든 worker가 즉시 멈춘다.
+ * update로 새 template을 넘기면 worker는 멈추지 않고 다음 확인 주기부터 새 헤더를 hash 한다.
+ */
+public class Miner {
+    // worker가 취소 여부를 확인하는 주기 (hash 횟수, 2의 거듭제곱 - 1)
+    private static final long CHECK_MASK = (1 << 12) - 1;
+    // hash rate는 최근 RATE_WINDOW 동안의 평균. 누적 hash 수를 SAMPLE_INTERVAL 마다 기록해 둔다
+    private static final long RATE_WINDOW_NANOS = 10_000_000_000L;
+    private static final long SAMPLE_INTERVAL_NANOS = 1_000_000_000L;
+    private static final int RATE_SAMPLES = (int) (RATE_WINDOW_NANOS / SAMPLE_INTERVAL_NANOS) + 2;
+
+    private final Thread[] workers;
+    private final LongAdder totalHashes = new LongAdder();
+
+    private volatile boolean running;
+    private MiningJob currentJob;
+
+    // (시각, 누적 hash 수) ring. samples lock으로 보호한다
+    private final Object samples = new Object();
+    private final long[] sampleTimes = new long[RATE_SAMPLES];
+    private final long[] sampleHashes = new long[RATE_SAMPLES];
+    private int sampleCount;
+    private int nextSample;
+    private volatile long nextSampleTime;
+
+    public Miner(int workerCount) {
+        if (workerCount < 1) {
+            throw new IllegalArgumentException("workerCount must be >= 1");
+        }
+        this.workers = new Thread[workerCount];
+    }
+
+    public synchronized void start() {
+        if (running) { return; }
+        running = true;
+        recordSample(System.nanoTime());
+        for (int i = 0; i < workers.length; i++) {
+            final int index = i;
+            workers[i] = new Thread(() -> workerLoop(index), "miner-worker-" + i);
+            workers[i].setDaemon(true);
+            workers[i].start();
+        }
+    }
+
+    public void stop() {
+        synchronized (this) {
+            running = false;
+            if (currentJob != null) { currentJob.cancel(); }
+            notifyAll();
+        }
+        for (Thread worker : workers) {
+            if (worker != null) { worker.interrupt(); }
+        }
+    }
+
+    /**
+     * template 헤더에 대해 모든 worker로 nonce를 탐색한다.
+     * @return 유효한 nonce가 설정된 헤더, 취소되었거나 stale 해졌거나 nonce 공간을 모두 소진하면 null
+     */
+    public BlockHeader mine(BlockHeader template, byte[] difficultyTarget, BooleanSupplier stale) throws InterruptedException {
+        MiningJob job = new MiningJob(template, difficultyTarget, stale, workers.length);
+        synchronized (this) {
+            if (!running) { return null; }
+            currentJob = job;
+            notifyAll();
+        }
+        try {
+            return job.await();
+        } finally {
+            job.cancel();
+        }
+    }
+
+    /**
+     * 진행 중인 작업의 헤더를 바꾼다. 각 worker는 자기 nonce 구간의 현재 위치에서 새 헤더로 이어서 탐색한다.
+     * mine()이 반환하는 헤더는 해를 찾은 시점의 template을 복사한 것이다.
+     */
+    public synchronized void update(BlockHeader template, byte[] difficultyTarget) {
+        if (currentJob != null) {
+            currentJob.work = new Work(template, difficultyTarget);
+        }
+    }
+
+    /** 진행 중인 작업을 중단시킨다. mine()은 null을 반환한다. */
+    public synchronized void cancel() {
+        if (currentJob != null) { currentJob.cancel(); }
+    }
+
+    /**
+     * 최근 RATE_WINDOW 동안의 평균 hash rate (H/s). 상태를 바꾸지 않으므로 console, log, metric이 같이 읽어도 된다.
+     * 채굴을 멈추면 window가 지난 뒤 0이 된다.
+     */
+    public double getHashRate() {
+        long now = System.nanoTime();
+        long hashes = totalHashes.sum();
+        synchronized (samples) {
+            // ring에서 window 안에 있는 가장 오래된 sample을 찾는다
+            for (int i = sampleCount; i > 0; i--) {
+                int index = Math.floorMod(nextSample - i, RATE_SAMPLES);
+                long elapsed = now - sampleTimes[index];
+                if (elapsed <= RATE_WINDOW_NANOS) {
+                    return elapsed > 0 ? (hashes - sampleHashes[index]) / (elapsed / 1_000_000_000.0) : 0;
+                }
+            }
+        }
+        return 0;
+    }
+
+    public boolean isRunning() { return running; }
+    public long getTotalHashes() { return totalHashes.sum(); }
+    public int getWorkerCount() { return workers.length; }
+
+    private void workerLoop(int index) {
+        MiningJob lastJob = null;
+        while (running) {
+            MiningJob job;
+            try {
+                job = awaitNextJob(lastJob);
+            } catch (InterruptedException e) {
+                return;
+            }
+            if (job == null) { return; }
+            lastJob = job;
+            searchRange(job, index);
+            job.workerFinished();
+        }
+    }
+
+    private synchronized MiningJob awaitNextJob(MiningJob lastJob) throws InterruptedException {
+        while (running && (currentJob == null || currentJob == lastJob)) {
+            wait();
+        }
+        return running ? currentJob : null;
+    }
+
+    private void searchRange(MiningJob job, int index) {
+        Work work = job.work;
+        BlockHeader.NonceHasher hasher = new BlockHeader.NonceHasher(work.template);
+        long start = job.rangeStart(index);
+        long end = job.rangeEnd(index);
+        long pending = 0;
+
+        for (long nonce = start; nonce < end; nonce++) {
+            if ((nonce & CHECK_MASK) == 0) {
+                addHashes(pending);
+                pending = 0;
+                if (job.isStopped()) { return; }
+                if (job.work != work) {
+                    work = job.work;
+                    hasher = new BlockHeader.NonceHasher(work.template);
+                }
+            }
+            pending++;
+            if (CryptoUtil.meetsTarget(hasher.hash(nonce), work.difficultyTarget)) {
+                addHashes(pending);
+                BlockHeader header = work.template.copy();
+                header.setNonce(nonce);
+                job.solve(header);
+                return;
+            }
+        }
+        addHashes(pending);
+    }
+
+    private void addHashes(long hashes) {
+        totalHashes.add(hashes);
+        long now = System.nanoTime();
+        if (now - nextSampleTime >= 0) { recordSample(now); }
+    }
+
+    private void recordSample(long now) {
+        synchronized (samples) {
+            if (sampleCount > 0 && now - nextSampleTime < 0) { return; }
+            sampleTimes[nextSample] = now;
+            sampleHashes[nextSample] = totalHashes.sum();
+            nextSample = (nextSample + 1) % RATE_SAMPLES;
+            sampleCount = Math.min(sampleCount + 1, RATE_SAMPLES);
+            nextSampleTime = now + SAMPLE_INTERVAL_NANOS;
+        }
+    }
+
+    private static class Work {
+        private final BlockHeader template;
+        private final byte[] difficultyTarget;
+
+        Work(BlockHeader template, byte[] difficultyTarget) {
+            this.template = template;
+            this.difficultyTarget = difficultyTarget;
+        }
+    }
+
+    private static class MiningJob {
+        private volatile Work work;
+        private final BooleanSupplier stale;
+        private final long rangeSize;
+        private final int workerCount;
+
+        private final AtomicReference<BlockHeader> solution = new AtomicReference<>();
+        private final AtomicInteger remainingWorkers;
+        private final CountDownLatch done = new CountDownLatch(1);
+        private volatile boolean cancelled;
+
+        MiningJob(BlockHeader template, byte[] difficultyTarget, BooleanSupplier stale, int workerCount) {
+            this.work = new Work(template, difficultyTarget);
+            this.stale = stale;
+            this.workerCount = workerCount;
+            this.rangeSize = Long.MAX_VALUE / workerCount;
+            this.remainingWorkers = new AtomicInteger(workerCount);
+        }
+
+        long rangeStart(int index) { return index * rangeSize; }
+        long rangeEnd(int index) { return index == workerCount - 1 ? Long.MAX_VALUE : (index + 1) * rangeSize; }
+
+        boolean isStopped() {
+            if (cancelled || solution.get() != null) { return true; }
+            if (stale != null && stale.getAsBoolean()) {
+                cancel();
+                return true;
+            }
+            return false;
+        }
+
+        void solve(BlockHeader header) {
+            if (solution.compareAndSet(null, header)) {
+                done.countDown();
+            }
+        }
+
+        void cancel() {
+            cancelled = true;
+            done.countDown();
+        }
+
+        void workerFinished() {
+            if (remainingWorkers.decrementAndGet() == 0) {
+                done.countDown();
+            }
+        }
+
+        BlockHeader await() throws InterruptedException {
+            done.await();
+            return solution.get();
+        }
+    }
+}
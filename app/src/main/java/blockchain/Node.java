@@ -1,13 +1,17 @@
 package blockchain;
 
 import java.io.IOException;
-import java.io.PrintWriter;
-import java.net.ServerSocket;
-import java.net.Socket;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.UncheckedIOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
 import java.security.PublicKey;
-import java.util.List;
 import java.util.Set;
 import java.util.concurrent.CopyOnWriteArraySet;
+import java.util.stream.Stream;
 
 import com.google.gson.Gson;
 
@@ -21,108 +25,339 @@ public class Node {
 
     private Blockchain blockchain;
     private Mempool mempool;
+    private Miner miner;
+    private BlockTemplateBuilder templateBuilder;
+    private Thread minerCoordinator;
+    private final int maxBlockSize;
+    private final long shutdownDrainMillis;
+    private boolean shutdown;
 
-    public Node(int port) { 
-        this.port = port; 
-        this.peerManager = new PeerManager(); 
-        this.wallet = new Wallet();
-        this.gson = new Gson();
+    // 받은 메시지를 처리하는 thread 수. peer 수와 무관하게 고정
+    private static final int NETWORK_HANDLER_THREADS = Math.max(2, Runtime.getRuntime().availableProcessors() / 2);
+    private TransactionVerifier verifier;
+    private BlockValidator blockValidator;
+    private ChainSync chainSync;
+    private Gossip gossip;
+    private BlockRelay blockRelay;
+    private PeerHandler peerHandler;
+    private Transport transport;
+
+    private final Metrics metrics = new Metrics();
+    private long pendingNonce;
+    private MetricsServer metricsServer;
+    private QueryServer queryServer;
+
+    /** 노드 설정. 기본값은 -Dblockchain.* system property에서 읽는다 */
+    public static class Config {
+        public int port;
+        public Path dataDir;
+        // 0이면 모든 블록 본문을 남긴다. 그 외에는 최근 이만큼의 블록 본문만 남긴다
+        public int pruneWindow = Integer.getInteger("blockchain.prune", 0);
+        public int maxBlockSize = Integer.getInteger("blockchain.maxBlockSize", BlockTemplateBuilder.DEFAULT_MAX_BLOCK_SIZE);
+        public int mempoolMaxTransactions = Integer.getInteger("blockchain.mempoolSize", Mempool.DEFAULT_MAX_TRANSACTIONS);
+        // dataDir이 비어 있을 때 가져올 snapshot file
+        public Path snapshot = System.getProperty("blockchain.snapshot") == null ? null : Paths.get(System.getProperty("blockchain.snapshot"));
+        // null이면 실행할 때마다 새 key pair를 만든다
+        public Path walletFile;
+        // shutdown 시 outbound queue가 비워지기를 기다리는 최대 시간
+        public long shutdownDrainMillis = 3000;
+        // peer 하나에서 초당 받는 최대 bytes. 넘으면 그 peer의 socket을 잠시 읽지 않는다
+        public int peerBytesPerSecond = Integer.getInteger("blockchain.peerBytesPerSecond", Transport.DEFAULT_RECEIVE_BYTES_PER_SECOND);
+        // misbehavior 점수가 Peer.BAN_SCORE에 이른 주소를 차단하는 시간. 0이면 연결만 끊는다
+        public long banSeconds = Long.getLong("blockchain.banSeconds", PeerManager.DEFAULT_BAN_MILLIS / 1000);
+
+        public Config(int port) {
+            this.port = port;
+            this.dataDir = Paths.get("data", "node-" + port);
+        }
 
-        this.blockchain = new Blockchain();
-        this.mempool = new Mempool();
+        void validate() {
+            if (port < 0 || port > 65535) { throw new IllegalArgumentException("Invalid port " + port); }
+            if (maxBlockSize < 1) { throw new IllegalArgumentException("maxBlockSize must be >= 1"); }
+            if (mempoolMaxTransactions < 1) { throw new IllegalArgumentException("mempoolMaxTransactions must be >= 1"); }
+            if (shutdownDrainMillis < 0) { throw new IllegalArgumentException("shutdownDrainMillis must be >= 0"); }
+            if (peerBytesPerSecond < 1) { throw new IllegalArgumentException("peerBytesPerSecond must be >= 1"); }
+            if (banSeconds < 0) { throw new IllegalArgumentException("banSeconds must be >= 0"); }
+        }
+    }
 
-        System.out.println("Node Wallet Address (PublicKey): " + CryptoUtil.keyToString(wallet.getPublicKey()));
+    public Node(int port) {
+        this(new Config(port));
     }
 
-    public void startServer() {
-        new Thread(() -> {
-            try (ServerSocket serverSocket = new ServerSocket(port)) {
-                System.out.println("P2P Node listening on port: " + port);
-                while(true) {
-                    Socket clienSocket = serverSocket.accept();
-                    new PeerHandler(clienSocket, peerManager, gson, blockchain, mempool).start();
-                }
+    public Node(int port, Path dataDir) {
+        this(configFor(port, dataDir));
+    }
+
+    private static Config configFor(int port, Path dataDir) {
+        Config config = new Config(port);
+        config.dataDir = dataDir;
+        return config;
+    }
+
+    public Node(Config config) {
+        config.validate();
+        this.port = config.port;
+        this.maxBlockSize = config.maxBlockSize;
+        this.shutdownDrainMillis = config.shutdownDrainMillis;
+        this.peerManager = new PeerManager(metrics, config.banSeconds * 1000);
+        try {
+            this.wallet = config.walletFile == null ? new Wallet() : Wallet.loadOrCreate(config.walletFile);
+        } catch (IOException e) {
+            throw new UncheckedIOException("Load wallet " + config.walletFile + " failed.", e);
+        }
+        this.gson = new Gson();
+
+        Path dataDir = config.dataDir;
+        if (config.snapshot != null && isEmpty(dataDir)) {
+            try (InputStream in = Files.newInputStream(config.snapshot)) {
+                Blockchain.importSnapshot(dataDir, in);
             } catch (IOException e) {
-                System.err.println("Server Error: " + e.getMessage());
+                throw new UncheckedIOException("Import snapshot " + config.snapshot + " failed.", e);
+            }
+        }
+        this.blockchain = new Blockchain(dataDir, metrics, config.pruneWindow);
+        this.mempool = new Mempool(config.mempoolMaxTransactions);
+        this.blockchain.addListener(new ChainListener() {
+            @Override
+            public void onBlockConnected(Block block) {
+                mempool.removeTransactions(block.getTransactions());
             }
-        }).start();
+
+            @Override
+            public void onBlockDisconnected(Block block) {
+                // 버려진 branch의 트랜잭션은 다시 채굴될 수 있도록 mempool로 돌려보낸다
+                for (Transaction tx : block.getTransactions()) {
+                    if (!tx.isCoinbase()) { mempool.addTransaction(tx); }
+                }
+            }
+        });
+        this.verifier = new TransactionVerifier(Runtime.getRuntime().availableProcessors(), CryptoUtil.getPublicKeyCache(), metrics);
+        this.blockValidator = new BlockValidator(blockchain, verifier, Runtime.getRuntime().availableProcessors(), metrics);
+        this.chainSync = new ChainSync(blockchain, blockValidator, gson);
+        this.gossip = new Gossip(peerManager, blockchain, mempool, gson, metrics);
+        this.blockRelay = new BlockRelay(blockchain, mempool, blockValidator, chainSync, gossip, gson, metrics);
+        this.peerHandler = new PeerHandler(peerManager, blockchain, mempool, verifier, chainSync, gossip, blockRelay,
+                WireProtocol.Encoding.PACKED, metrics);
+        try {
+            this.transport = new Transport(peerManager, peerHandler, NETWORK_HANDLER_THREADS, config.peerBytesPerSecond, metrics);
+        } catch (IOException e) {
+            throw new UncheckedIOException("Open transport failed.", e);
+        }
+
+        metrics.gauge("mempool_transactions", mempool::size);
+        metrics.gauge("mempool_bytes", mempool::getMemoryBytes);
+        metrics.gauge("mempool_evicted_total", mempool::getEvictedCount);
+        metrics.gauge("sync_queued_blocks", chainSync::getQueuedBlockCount);
+        metrics.gauge("state_accounts", () -> blockchain.getState().getAccountCount());
+        metrics.gauge("miner_hash_rate", this::getHashRate);
+        metrics.gauge("chain_difficulty", blockchain::getDifficulty);
+        metrics.gauge("miner_hashes_total", () -> miner == null ? 0 : miner.getTotalHashes());
+        PublicKeyCache publicKeys = CryptoUtil.getPublicKeyCache();
+        metrics.gauge("crypto_public_key_cache_size", publicKeys::size);
+        metrics.gauge("crypto_public_key_cache_hits_total", publicKeys::getHitCount);
+        metrics.gauge("crypto_public_key_cache_misses_total", publicKeys::getMissCount);
+
+        Log.info("Node Wallet Address (PublicKey): " + CryptoUtil.keyToString(wallet.getPublicKey()));
     }
 
-    public void connectToPeer(String host, int port) {
+    public void startServer() {
         try {
-            Socket socket = new Socket(host, port);
-            System.out.println("Connected to peer: " + host + ":" + port);
+            listen();
+        } catch (IOException e) {
+            Log.error("Server Error: " + e.getMessage());
+        }
+    }
+
+    /** startServer와 같지만 port를 열지 못하면 예외를 던진다 */
+    public void listen() throws IOException {
+        transport.start();
+        transport.listen(port);
+        Log.info("P2P Node listening on port: " + port);
+    }
+
+    /** 127.0.0.1:port/metrics 로 metric을 내보낸다. */
+    public synchronized void startMetricsServer(int metricsPort) throws IOException {
+        if (metricsServer != null) { return; }
+        metricsServer = new MetricsServer(metrics, metricsPort);
+        metricsServer.start();
+    }
+
+    /** 127.0.0.1:port 에서 블록, 트랜잭션, 주소 조회 API를 연다. */
+    public synchronized void startQueryServer(int queryPort) throws IOException {
+        if (queryServer != null) { return; }
+        queryServer = new QueryServer(blockchain, queryPort);
+        queryServer.start();
+    }
 
-            new PeerHandler(socket, peerManager, gson, blockchain, mempool).start();
+    public void connectToPeer(String host, int port) {
+        try {
+            transport.start();
+            transport.connect(host, port);
+            Log.info("Connected to peer: " + host + ":" + port);
         } catch (IOException e) {
-            System.err.println("Connected Failed: " + e.getMessage());
+            Log.error("Connected Failed: " + e.getMessage());
         }
     }
 
-    public void createAndBroadcastTransaction(String recipientAddress, String data) {
+    public Transaction createAndBroadcastTransaction(String recipientAddress, String data) {
+        return createAndBroadcastTransaction(recipientAddress, 0, 0, data);
+    }
+
+    /** @return mempool에 들어가 peer에게 알린 트랜잭션. 이미 있으면 null */
+    public Transaction createAndBroadcastTransaction(String recipientAddress, long amount, long fee, String data) {
         Transaction tx = new Transaction(
             this.wallet.getPublicKey(),
             recipientAddress,
+            amount,
+            fee,
+            nextNonce(),
             data
         );
 
         tx.signTransaction(this.wallet.getPrivateKey());
 
-        System.out.println("Create & Signed Transaction: " + tx.toString());
-
         if(mempool.addTransaction(tx)) {
-            System.out.println("Created & Signed TX: " + tx.toString().substring(0, 40));
-            String txJson = gson.toJson(tx);
-            MessageWrapper msg = new MessageWrapper(MessageWrapper.MessageType.TX, txJson);
-            peerManager.broadcast(gson.toJson(msg), null);
-        } else {
-            System.out.println("Transaction already exists.");
+            Log.info("Created & Signed TX: " + tx.getTransactionID().substring(0, 10));
+            gossip.announce(MessageType.TX, tx.getTransactionID(), MessageWrapper.of(tx), null);
+            return tx;
         }
-        
+        Log.info("Transaction already exists.");
+        return null;
     }
 
+    /** 아직 블록에 들어가지 않은 내 트랜잭션까지 고려한 다음 nonce */
+    private synchronized long nextNonce() {
+        long nonce = Math.max(blockchain.getState().getNonce(getAddress()), pendingNonce);
+        pendingNonce = nonce + 1;
+        return nonce;
+    }
+
+    public String getAddress() { return CryptoUtil.keyToString(wallet.getPublicKey()); }
+
+    public long getBalance(String address) { return blockchain.getState().getBalance(address); }
+
     public void startMining() {
-        System.out.println("MINER: Starting Miner Thread...");
+        startMining(Runtime.getRuntime().availableProcessors());
+    }
 
-        new Thread(() -> {
+    public synchronized void startMining(int minerThreads) {
+        if (miner != null) {
+            Log.info("MINER: Already mining with " + miner.getWorkerCount() + " threads.");
+            return;
+        }
+        miner = new Miner(minerThreads);
+        miner.start();
+        Log.info("MINER: Starting Miner with " + minerThreads + " worker threads...");
+
+        templateBuilder = new BlockTemplateBuilder(blockchain, mempool, getAddress(), maxBlockSize, metrics);
+        // 새 template은 worker를 멈추지 않고 바로 넘긴다
+        templateBuilder.setOnUpdate(template -> miner.update(template.getHeader(),
+                Difficulty.toTargetBytes(template.getHeader().getBits())));
+        templateBuilder.start();
+
+        minerCoordinator = new Thread(() -> {
             while(true) {
-                Block parentBlock = blockchain.getLastBlock();
-                String parentHash = parentBlock.getHash();
-                long newBlockNumber = parentBlock.getHeader().getNumber() + 1;
-                long difficulty = blockchain.getDifficulty();
-                String difficultyTarget = blockchain.getDifficultyTarget();
-
-                List<Transaction> txs = mempool.getTransactionsForBlock(10);
-                String txRoot = MerkleTree.getMerkleRoot(txs);
-                long timestamp = System.currentTimeMillis();
-
-                long nonce = 0;
-                BlockHeader newHeader = new BlockHeader(parentHash, txRoot, timestamp, newBlockNumber, difficulty, nonce);
-
-                System.out.println("MINER: Mining new block #" + newBlockNumber + " (Parent: " + parentHash.substring(0, 6) + ")...");
-
-                while(true) {
-                    newHeader.setNonce(nonce);
-                    String hash = newHeader.calculateHash();
-
-                    if(hash.startsWith(difficultyTarget)) {
-                        System.out.println("MINER: BLOCK MINED! Nonce=" + nonce + ", Hash=" + hash);
-
-                        Block newBlock = new Block(newHeader, txs);
-
-                        if(blockchain.addBlock(newBlock)) {
-                            String blockJson = gson.toJson(newBlock);
-                            MessageWrapper msg = new MessageWrapper(MessageWrapper.MessageType.BLOCK, blockJson);
-                            peerManager.broadcast(gson.toJson(msg), null);
-                        } else {
-                            System.err.println("\"MINER: Mined block was invalid? (Race condition, fork?)");
-                        }
-                        break;
-                    } nonce++;
-                } // end of PoW loop
+                BlockHeader solved;
+                try {
+                    BlockTemplateBuilder.Template template = templateBuilder.awaitTemplate();
+                    if (template == null) { return; }
+                    BlockHeader header = template.getHeader();
+                    Log.debug(() -> "MINER: Mining new block #" + header.getNumber() + " (Parent: " + header.getParentHash().substring(0, 6)
+                            + ", " + template.getTransactions().size() + " txs)...");
+                    solved = miner.mine(header, Difficulty.toTargetBytes(header.getBits()), null);
+                } catch (InterruptedException e) {
+                    return;
+                }
+
+                if(solved == null) {
+                    if (!miner.isRunning()) { return; }
+                    continue;
+                }
+
+                BlockTemplateBuilder.Template template = templateBuilder.findTemplate(solved);
+                if (template == null) {
+                    Log.warn("MINER: No template for mined header #" + solved.getNumber() + ". Discarding.");
+                    continue;
+                }
+                Block newBlock = new Block(solved, template.getTransactions());
+                Log.info("MINER: BLOCK MINED! Nonce=" + solved.getNonce() + ", Hash=" + newBlock.getHash()
+                        + ", Txs=" + template.getTransactions().size() + String.format(" (%.0f H/s)", miner.getHashRate()));
+
+                if(blockchain.addBlock(newBlock)) {
+                    // peer들은 mempool로 블록을 복원하므로 본문은 요청받을 때만 보낸다
+                    blockRelay.announce(newBlock, null, null);
+                } else {
+                    // 트랜잭션은 mempool에 그대로 있으므로 template만 다시 만든다
+                    Log.warn("MINER: Mined block was invalid? (Race condition, fork?)");
+                    templateBuilder.requestRebuild();
+                }
             } // end of mining loop
-        }).start();
+        }, "miner-coordinator");
+        minerCoordinator.start();
     }
+
+    public double getHashRate() { return miner == null ? 0 : miner.getHashRate(); }
     
+    /**
+     * 채굴을 멈추고, 처리 중인 메시지와 outbound queue를 비운 뒤 연결을 닫고 저장소를 flush 한다.
+     * 여러 번 호출해도 된다.
+     */
+    public synchronized void shutdown() {
+        if (shutdown) { return; }
+        shutdown = true;
+        Log.info("Node shutting down...");
+        if (miner != null) {
+            miner.stop();
+            templateBuilder.stop();
+            // 방금 찾은 블록을 붙이는 중일 수 있으므로 끝날 때까지 기다린다
+            join(minerCoordinator);
+        }
+        if (metricsServer != null) {
+            metricsServer.stop();
+        }
+        if (queryServer != null) {
+            queryServer.stop();
+        }
+        gossip.shutdown();
+        transport.shutdown(shutdownDrainMillis);
+        chainSync.shutdown();
+        blockValidator.shutdown();
+        verifier.shutdown();
+        // 진행 중인 블록 추가가 끝난 뒤 닫힌다 (Blockchain의 lock)
+        blockchain.close();
+        Log.info("Node stopped.");
+    }
+
+    private void join(Thread thread) {
+        try {
+            thread.join(shutdownDrainMillis);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    public synchronized boolean isShutdown() { return shutdown; }
+
+    /** 헤더 전체와 최근 블록, 계정 상태를 file에 쓴다. 다른 노드는 -Dblockchain.snapshot=file 로 시작할 수 있다 */
+    public void exportSnapshot(Path file) throws IOException {
+        Path tmp = file.resolveSibling(file.getFileName() + ".tmp");
+        try (OutputStream out = Files.newOutputStream(tmp)) {
+            blockchain.exportSnapshot(out);
+        }
+        Files.move(tmp, file, StandardCopyOption.REPLACE_EXISTING);
+    }
+
+    private static boolean isEmpty(Path dir) {
+        try (Stream<Path> entries = Files.list(dir)) {
+            return entries.findAny().isEmpty();
+        } catch (IOException e) {
+            return true;
+        }
+    }
+
+    public int getPeerCount() { return peerManager.getPeers().size(); }
     public Blockchain getBlockchain() { return blockchain; }
+    public Mempool getMempool() { return mempool; }
+    public Metrics getMetrics() { return metrics; }
 }
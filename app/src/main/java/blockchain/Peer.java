@@ -0,0 +1,219 @@
+package blockchain;
+
+import java.io.IOException;
+import java.net.SocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.SocketChannel;
+import java.util.Queue;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import blockchain.MessageWrapper.MessageType;
+
+/**
+ * 하나의 peer 연결 상태. 전송은 bounded outbound queue에 넣기만 하고
+ * 실제 쓰기는 Transport의 selector thread가 처리한다.
+ *
+ * 수신은 peer별 bytes budget과 메시지 종류별 budget(token bucket)으로 제한하고,
+ * 형식이 틀리거나 검증에 실패한 메시지를 보내면 misbehavior 점수가 쌓여 BAN_SCORE에서 차단된다.
+ */
+public class Peer {
+    public static final int MAX_OUTBOUND_MESSAGES = 1024;
+    public static final int MAX_MESSAGE_SIZE = 16 * 1024 * 1024;
+    // 처리하지 못한 메시지가 이만큼 쌓이면 handler가 따라잡을 때까지 읽지 않는다
+    public static final int MAX_INBOX_MESSAGES = 256;
+    public static final int BAN_SCORE = 100;
+    // 파싱할 수 없거나 형식이 틀린 메시지. 검증에 실패한 서명이나 PoW는 바로 BAN_SCORE
+    public static final int MALFORMED_SCORE = 20;
+
+    private final SocketChannel channel;
+    private final Transport transport;
+    private final SocketAddress remoteAddress;
+
+    private final ArrayBlockingQueue<ByteBuffer> outbound = new ArrayBlockingQueue<>(MAX_OUTBOUND_MESSAGES);
+    private ByteBuffer writing;
+
+    private ByteBuffer readBuffer = ByteBuffer.allocate(8 * 1024);
+
+    // 한 peer의 메시지는 받은 순서대로 하나의 handler thread에서만 처리한다
+    private final Queue<byte[]> inbox = new ConcurrentLinkedQueue<>();
+    private final AtomicBoolean processing = new AtomicBoolean();
+    // readBuffer의 JSON 줄에서 이미 줄바꿈이 없다고 확인한 bytes 수
+    private int scanned;
+
+    private final TokenBucket receiveBudget;
+    private final TokenBucket[] messageBudgets = new TokenBucket[MessageType.values().length];
+    private final AtomicInteger misbehavior = new AtomicInteger();
+    // selector thread만 갱신한다
+    private volatile boolean readPaused;
+
+    // 이 peer가 이미 가진 트랜잭션/블록 hash. 다시 알리지 않는다
+    private final SeenCache knownInventory = new SeenCache(Gossip.MAX_KNOWN_PER_PEER, Gossip.SEEN_TTL_MS);
+
+    // HELLO 교환 전까지는 어떤 노드든 읽을 수 있는 JSON으로 보낸다
+    private volatile WireProtocol.Encoding sendEncoding = WireProtocol.Encoding.JSON;
+
+    private SelectionKey key;
+    private final AtomicBoolean closed = new AtomicBoolean();
+
+    // selector thread만 갱신한다
+    private volatile long bytesReceived;
+    private volatile long bytesSent;
+
+    Peer(SocketChannel channel, Transport transport, int receiveBytesPerSecond) throws IOException {
+        this.channel = channel;
+        this.transport = transport;
+        this.remoteAddress = channel.getRemoteAddress();
+        this.receiveBudget = new TokenBucket(receiveBytesPerSecond, receiveBytesPerSecond);
+        for (MessageType type : MessageType.values()) {
+            messageBudgets[type.ordinal()] = newMessageBudget(type);
+        }
+    }
+
+    /**
+     * 종류별로 초당 받을 수 있는 메시지 수와 burst.
+     * 우리 요청에 대한 응답(HEADERS, BLOCKS, BLOCKTXN)은 세지 않고 수신 bytes로만 제한한다.
+     * TX는 GETDATA 하나에 최대 Gossip.MAX_INV_SIZE 개가 한꺼번에 오므로 넉넉하게 둔다.
+     */
+    private static TokenBucket newMessageBudget(MessageType type) {
+        return switch (type) {
+            case HELLO -> new TokenBucket(0.1, 2);
+            case TX -> new TokenBucket(2000, 5000);
+            case INV, GETDATA -> new TokenBucket(100, 200);
+            case BLOCK, CMPCTBLOCK -> new TokenBucket(10, 50);
+            case GETHEADERS, GETBLOCKTXN -> new TokenBucket(10, 50);
+            case GETBLOCKS -> new TokenBucket(50, 100);
+            case HEADERS, BLOCKS, BLOCKTXN -> null;
+        };
+    }
+
+    /**
+     * 메시지를 이 peer와 합의한 encoding으로 outbound queue에 넣는다.
+     * queue가 가득 찬 느린 peer는 연결을 끊는다.
+     * @return queue에 들어갔으면 true
+     */
+    public boolean send(MessageWrapper message) {
+        return send(WireProtocol.encode(message, sendEncoding));
+    }
+
+    private boolean send(ByteBuffer encoded) {
+        if (closed.get()) { return false; }
+        if (!outbound.offer(encoded.duplicate())) {
+            Log.warn("Peer " + remoteAddress + " is too slow (outbound queue full). Disconnecting.");
+            transport.close(this);
+            return false;
+        }
+        transport.requestWrite(this);
+        return true;
+    }
+
+    public SocketAddress getRemoteAddress() { return remoteAddress; }
+    public WireProtocol.Encoding getSendEncoding() { return sendEncoding; }
+    public void setSendEncoding(WireProtocol.Encoding encoding) { this.sendEncoding = encoding; }
+    public int getOutboundQueueSize() { return outbound.size(); }
+    public int getInboxSize() { return inbox.size(); }
+    public long getBytesReceived() { return bytesReceived; }
+    public long getBytesSent() { return bytesSent; }
+    public boolean isClosed() { return closed.get(); }
+    public SeenCache getKnownInventory() { return knownInventory; }
+    public int getMisbehavior() { return misbehavior.get(); }
+    public boolean isBanned() { return misbehavior.get() >= BAN_SCORE; }
+
+    /** @return 이 종류의 메시지를 지금 처리해도 되면 true. budget을 넘었으면 메시지를 버려야 한다 */
+    public boolean allowMessage(MessageType type) {
+        TokenBucket budget = messageBudgets[type.ordinal()];
+        return budget == null || budget.tryConsume(1);
+    }
+
+    /**
+     * 형식이 틀리거나 검증에 실패한 메시지를 보낸 peer의 점수를 올린다.
+     * 점수가 BAN_SCORE에 이르면 연결을 끊고 주소를 차단한다.
+     */
+    public void misbehaving(int points, String reason) {
+        int before = misbehavior.getAndAdd(points);
+        int score = before + points;
+        Log.limited(Log.Level.WARN, "misbehaving", () -> "Peer " + remoteAddress + " misbehaving (+" + points + " = " + score + "): " + reason);
+        if (before < BAN_SCORE && score >= BAN_SCORE) {
+            transport.ban(this, reason);
+        }
+    }
+
+    SocketChannel getChannel() { return channel; }
+    SelectionKey getKey() { return key; }
+    void setKey(SelectionKey key) { this.key = key; }
+    /** @return 이 호출이 연결을 닫는 것으로 표시했으면 true. 이미 닫혔으면 false */
+    boolean markClosed() { return closed.compareAndSet(false, true); }
+    TokenBucket getReceiveBudget() { return receiveBudget; }
+    boolean isReadPaused() { return readPaused; }
+    void setReadPaused(boolean paused) { this.readPaused = paused; }
+
+    /** @return 모든 데이터를 썼으면 true */
+    boolean flush() throws IOException {
+        while (true) {
+            if (writing == null || !writing.hasRemaining()) {
+                writing = outbound.poll();
+                if (writing == null) { return true; }
+            }
+            bytesSent += channel.write(writing);
+            if (writing.hasRemaining()) { return false; }
+        }
+    }
+
+    boolean hasPendingWrites() {
+        return (writing != null && writing.hasRemaining()) || !outbound.isEmpty();
+    }
+
+    /**
+     * channel에서 읽은 데이터를 메시지 단위(binary frame 또는 JSON 한 줄)로 잘라 inbox에 넣는다.
+     * @return 연결이 끊겼으면 false
+     */
+    boolean read() throws IOException {
+        int n = channel.read(readBuffer);
+        if (n < 0) { return false; }
+        bytesReceived += n;
+
+        readBuffer.flip();
+        while (true) {
+            int length;
+            try {
+                length = WireProtocol.nextMessageLength(readBuffer, MAX_MESSAGE_SIZE, scanned);
+            } catch (IllegalStateException e) {
+                misbehaving(BAN_SCORE, e.getMessage());
+                throw new IOException(e.getMessage());
+            }
+            if (length < 0) {
+                scanned = readBuffer.remaining();
+                break;
+            }
+            scanned = 0;
+
+            boolean binary = readBuffer.get(readBuffer.position()) == WireProtocol.MAGIC;
+            byte[] message = new byte[binary ? length : length - 1];
+            readBuffer.get(message);
+            if (!binary) { readBuffer.get(); }
+            inbox.add(message);
+        }
+        readBuffer.compact();
+
+        if (!readBuffer.hasRemaining()) {
+            if (readBuffer.capacity() >= MAX_MESSAGE_SIZE + WireProtocol.HEADER_SIZE) {
+                misbehaving(BAN_SCORE, "message exceeds " + MAX_MESSAGE_SIZE + " bytes");
+                throw new IOException("Message exceeds " + MAX_MESSAGE_SIZE + " bytes");
+            }
+            ByteBuffer bigger = ByteBuffer.allocate(Math.min(readBuffer.capacity() * 2, MAX_MESSAGE_SIZE + WireProtocol.HEADER_SIZE));
+            readBuffer.flip();
+            bigger.put(readBuffer);
+            readBuffer = bigger;
+        }
+        return true;
+    }
+
+    Queue<byte[]> getInbox() { return inbox; }
+    AtomicBoolean getProcessing() { return processing; }
+
+    @Override
+    public String toString() { return String.valueOf(remoteAddress); }
+}
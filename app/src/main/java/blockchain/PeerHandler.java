@@ -1,137 +1,228 @@
 package blockchain;
 
-import java.io.BufferedReader;
-import java.io.IOException;
-import java.io.InputStreamReader;
-import java.io.PrintWriter;
-import java.net.Socket;
-import java.security.KeyFactory;
-import java.security.PublicKey;
-import java.security.spec.X509EncodedKeySpec;
-import java.util.Base64;
-
-import com.google.gson.Gson;
+import java.nio.BufferUnderflowException;
+import java.nio.charset.StandardCharsets;
+
 import com.google.gson.JsonSyntaxException;
 
 import blockchain.MessageWrapper.MessageType;
 
-public class PeerHandler extends Thread {
-    private Socket socket;
+/**
+ * peer로부터 받은 메시지를 처리한다. Transport의 handler pool에서 호출되며,
+ * 한 peer의 메시지는 받은 순서대로 하나씩 전달된다.
+ *
+ * 비용이 싼 검사부터 한다: 파싱하지 않고 종류와 크기를 보고, 종류별 budget을 넘은 메시지는 버린 뒤에야
+ * 디코딩한다. 트랜잭션은 형식과 계정 상태를 본 다음 서명을 검증하고, 블록은 PoW를 본 다음 pipeline에 넣는다.
+ * 형식이 틀리거나 검증에 실패한 메시지는 Peer.misbehaving으로 점수를 올린다.
+ */
+public class PeerHandler implements Transport.Listener {
+    // DER로 인코딩한 secp256r1 서명은 72 bytes를 넘지 않는다
+    private static final int MAX_SIGNATURE_SIZE = 72;
+    // Base64로 인코딩한 X.509 공개키
+    private static final int MAX_PUBLIC_KEY_LENGTH = 256;
+
     private PeerManager peerManager;
-    private PrintWriter writer;
-    private Gson gson;
     
     private Blockchain blockchain;
     private Mempool mempool;
-
-    public PeerHandler(Socket socket, PeerManager peerManager, Gson gson, Blockchain blockchain, Mempool mempool) {
-        this.socket = socket;
+    private TransactionVerifier verifier;
+    private ChainSync chainSync;
+    private Gossip gossip;
+    private BlockRelay blockRelay;
+    private WireProtocol.Encoding preferredEncoding;
+
+    private final Metrics.Counter[] messagesReceived = new Metrics.Counter[MessageType.values().length];
+    private final Metrics.Counter[] messagesThrottled = new Metrics.Counter[MessageType.values().length];
+    private final Metrics.Counter invalidMessages;
+    private final Metrics.Counter duplicateTransactions;
+    private final Metrics.Counter rejectedTransactions;
+
+    public PeerHandler(PeerManager peerManager, Blockchain blockchain, Mempool mempool,
+                       TransactionVerifier verifier, ChainSync chainSync, Gossip gossip, BlockRelay blockRelay,
+                       WireProtocol.Encoding preferredEncoding, Metrics metrics) {
         this.peerManager = peerManager;
-        this.gson = gson;
         this.blockchain = blockchain;
         this.mempool = mempool;
+        this.verifier = verifier;
+        this.chainSync = chainSync;
+        this.gossip = gossip;
+        this.blockRelay = blockRelay;
+        this.preferredEncoding = preferredEncoding;
+        for (MessageType type : MessageType.values()) {
+            messagesReceived[type.ordinal()] = metrics.counter(Metrics.name("p2p_messages_received_total", "type", type));
+            messagesThrottled[type.ordinal()] = metrics.counter(Metrics.name("p2p_messages_throttled_total", "type", type));
+        }
+        this.invalidMessages = metrics.counter("p2p_invalid_messages_total");
+        this.duplicateTransactions = metrics.counter("tx_duplicates_total");
+        this.rejectedTransactions = metrics.counter("tx_state_rejected_total");
     }
 
-    public void run() {
+    @Override
+    public void onConnect(Peer peer) {
+        peer.send(WireProtocol.hello(preferredEncoding, blockchain.getFirstFullBlock()));
+    }
+
+    @Override
+    public void onMessage(Peer peer, byte[] message) {
+        // 차단한 peer가 끊기기 전에 보낸 나머지 메시지는 보지 않는다
+        if (peer.isBanned()) { return; }
+        MessageType type = WireProtocol.peekType(message);
+        if (type == null || message.length > WireProtocol.maxMessageSize(type)) {
+            invalidMessages.inc();
+            Log.limited(Log.Level.WARN, "invalid-message", () -> "Received invalid message format from " + peer);
+            peer.misbehaving(Peer.MALFORMED_SCORE, type == null ? "unknown message type" : "oversized " + type);
+            return;
+        }
+        if (!peer.allowMessage(type)) {
+            messagesThrottled[type.ordinal()].inc();
+            Log.limited(Log.Level.WARN, "throttled-" + type, () -> "Dropping " + type + " from " + peer + ": rate limit exceeded");
+            return;
+        }
         try {
-            writer = new PrintWriter(socket.getOutputStream(), true);
-            BufferedReader reader = new BufferedReader(new InputStreamReader(socket.getInputStream()));
-
-            peerManager.addPeer(writer);
-            System.out.println("New peer added: " + socket.getRemoteSocketAddress());
-
-            String message;
-            while((message = reader.readLine()) != null){
-                try {
-                    MessageWrapper wrapper = gson.fromJson(message, MessageWrapper.class);
-
-                    if(wrapper == null || wrapper.type == null) {
-                        System.err.println("Received invalid message format.");
-                        continue;
-                    }
-
-                    switch (wrapper.type) {
-                        case TX:
-                            handleTransaction(wrapper.jsonData);
-                            break;
-                        case BLOCK:
-                            handleBlock(wrapper.jsonData);
-                            break;
-                    }
-                } catch (JsonSyntaxException e) {
-                    System.err.println("Not a valid JSON Message: " + message.substring(0, Math.min(message.length(), 50)));
-                } catch (Exception e) {
-                    System.err.println("Error processing message " + e.getMessage());
-                }
+            MessageWrapper wrapper = WireProtocol.decode(message);
 
+            if(wrapper == null || wrapper.type != type) {
+                invalidMessages.inc();
+                Log.limited(Log.Level.WARN, "invalid-message", () -> "Received invalid message format from " + peer);
+                peer.misbehaving(Peer.MALFORMED_SCORE, "message type mismatch");
+                return;
             }
-        } catch (IOException e) {
-            System.out.println("Peer disconnected: " + socket.getRemoteSocketAddress());
-        } finally {
-            if (writer != null) {
-                peerManager.removePeer(writer);
-            }
-            try {
-                socket.close();
-            } catch (IOException e) {
-                System.out.println("Socket closed failed.");
+            messagesReceived[wrapper.type.ordinal()].inc();
+
+            switch (wrapper.type) {
+                case HELLO:
+                    handleHello(peer, wrapper);
+                    break;
+                case TX:
+                    handleTransaction(peer, wrapper);
+                    break;
+                case BLOCK:
+                    handleBlock(peer, wrapper);
+                    break;
+                case GETHEADERS:
+                    chainSync.handleGetHeaders(peer, wrapper);
+                    break;
+                case HEADERS:
+                    chainSync.handleHeaders(peer, wrapper);
+                    break;
+                case GETBLOCKS:
+                    chainSync.handleGetBlocks(peer, wrapper);
+                    break;
+                case BLOCKS:
+                    chainSync.handleBlocks(peer, wrapper);
+                    break;
+                case INV:
+                    gossip.handleInventory(peer, wrapper);
+                    break;
+                case GETDATA:
+                    gossip.handleGetData(peer, wrapper);
+                    break;
+                case CMPCTBLOCK:
+                    blockRelay.handleCompactBlock(peer, wrapper);
+                    break;
+                case GETBLOCKTXN:
+                    blockRelay.handleGetBlockTransactions(peer, wrapper);
+                    break;
+                case BLOCKTXN:
+                    blockRelay.handleBlockTransactions(peer, wrapper);
+                    break;
             }
+        } catch (JsonSyntaxException e) {
+            invalidMessages.inc();
+            Log.limited(Log.Level.WARN, "invalid-json", () -> "Not a valid JSON Message: "
+                    + new String(message, 0, Math.min(message.length, 50), StandardCharsets.UTF_8));
+            peer.misbehaving(Peer.MALFORMED_SCORE, "invalid JSON");
+        } catch (Exception e) {
+            Log.limited(Log.Level.ERROR, "message-error", () -> "Error processing message " + e.getMessage());
         }
     }
 
-    private void handleTransaction(String txJson) {
-        try {
-            Transaction tx = gson.fromJson(txJson, Transaction.class);
-            if(tx == null || tx.getSenderPublicKey() == null || tx.getSignature() == null) {
-                System.err.println("Invalid TX format received.");
-                return;
-            }
-
-            PublicKey senderKey = getPublicKeyFromString(tx.getSenderPublicKey());
-            if(tx.verifySignature(senderKey)) {
-                if(mempool.addTransaction(tx)) {
-                    System.out.println("PeerHandler: Verified TX added to mempool. Broadcasting...");
-                    MessageWrapper msg = new MessageWrapper(MessageWrapper.MessageType.TX, txJson);
-                    peerManager.broadcast(gson.toJson(msg), writer);                    } else {
-                        System.out.println("PeerHandler: Received duplicate TX. Ignoring.");
-                    }
-                } else {
-                    System.err.println("PeerHandler: Signautre Verification failed. Dropping TX");
+    private void handleHello(Peer peer, MessageWrapper wrapper) {
+        WireProtocol.Hello hello = WireProtocol.parseHello(wrapper);
+        if (hello == null || hello.encodings == null) {
+            Log.warn("Invalid HELLO received from " + peer);
+            peer.misbehaving(Peer.MALFORMED_SCORE, "invalid HELLO");
+            return;
+        }
+        // 둘 다 지원하는 것 중 가장 압축된 형식을 쓴다 (enum 순서: JSON < BINARY < PACKED)
+        for (WireProtocol.Encoding encoding : hello.encodings) {
+            if (encoding != null && encoding.compareTo(preferredEncoding) <= 0 && encoding.compareTo(peer.getSendEncoding()) > 0) {
+                peer.setSendEncoding(encoding);
             }
-        } catch (Exception e) {
-            System.err.println("Error handling transaction: " + e.getMessage());
         }
+        Log.info("PeerHandler: " + peer + " speaks protocol v" + hello.version + ", sending " + peer.getSendEncoding());
+
+        // 상대가 가진 블록 중 우리에게 없는 것부터 받아 온다
+        chainSync.setFirstBlock(peer, hello.firstBlock);
+        chainSync.requestHeaders(peer);
     }
 
-    private void handleBlock(String blockJson) {
+    @Override
+    public void onDisconnect(Peer peer) {
+        chainSync.onPeerDisconnected(peer);
+        gossip.onPeerDisconnected(peer);
+        blockRelay.onPeerDisconnected(peer);
+    }
+
+    private void handleTransaction(Peer peer, MessageWrapper wrapper) {
         try {
-            Block block = gson.fromJson(blockJson, Block.class);
-            System.out.println("PeerHandler: Received new block #" + block.getHeader().getNumber());
-
-            
-            if (blockchain.addBlock(block)) {
-                System.out.println("PeerHandler: Block is valid and added to chain. Broadcasting...");
-                
-                mempool.removeTransactions(block.getTransactions());
-
-                MessageWrapper msg = new MessageWrapper(MessageWrapper.MessageType.BLOCK, blockJson);
-                peerManager.broadcast(gson.toJson(msg), writer);
-            } else {
-                System.out.println("PeerHandler: Received invalid block or old block. Ignoring.");
+            Transaction tx = wrapper.getTransaction();
+            if(tx == null || tx.getTransactionID() == null || tx.getSenderPublicKey() == null || tx.getSignature() == null
+                    || tx.getSignature().length > MAX_SIGNATURE_SIZE || tx.getSenderPublicKey().length() > MAX_PUBLIC_KEY_LENGTH) {
+                invalidMessages.inc();
+                Log.limited(Log.Level.WARN, "invalid-tx", () -> "Invalid TX format received from " + peer);
+                peer.misbehaving(Peer.MALFORMED_SCORE, "invalid TX format");
+                return;
             }
+            gossip.received(peer, tx.getTransactionID());
+            if(gossip.isSeen(tx.getTransactionID()) || mempool.contains(tx.getTransactionID())) {
+                duplicateTransactions.inc();
+                return;
+            }
+            // 이미 쓰인 nonce나 현재 잔액으로 낼 수 없는 트랜잭션은 서명을 검증하기 전에 버린다
+            Account sender = blockchain.getState().getAccount(tx.getSenderPublicKey());
+            if(tx.getNonce() < sender.getNonce() || tx.getAmount() < 0 || tx.getFee() < 0
+                    || sender.getBalance() - tx.getFee() < tx.getAmount()) {
+                rejectedTransactions.inc();
+                Log.debug(() -> "PeerHandler: TX " + tx.getTransactionID() + " does not apply to account state. Ignoring.");
+                return;
+            }
+
+            // 서명 검증은 verifier pool에서 하고, 이 thread는 다음 메시지를 처리하러 간다.
+            // 정상 노드는 검증한 트랜잭션만 relay 하므로 서명이 틀리면 보낸 peer를 바로 차단한다
+            verifier.submit(tx, verified -> {
+                if(mempool.addTransaction(verified)) {
+                    Log.debug(() -> "PeerHandler: Verified TX " + verified.getTransactionID() + " added to mempool. Announcing...");
+                    gossip.announce(MessageType.TX, verified.getTransactionID(), wrapper, peer);
+                }
+            }, rejected -> peer.misbehaving(Peer.BAN_SCORE, "invalid TX signature"));
+        } catch (IllegalArgumentException | BufferUnderflowException e) {
+            invalidMessages.inc();
+            Log.limited(Log.Level.WARN, "invalid-tx", () -> "Malformed TX received from " + peer);
+            peer.misbehaving(Peer.MALFORMED_SCORE, "malformed TX");
         } catch (Exception e) {
-            System.err.println("Error handling block: " + e.getMessage());
+            Log.limited(Log.Level.ERROR, "tx-error", () -> "Error handling transaction: " + e.getMessage());
         }
     }
 
-    private PublicKey getPublicKeyFromString(String keySting) {
+    private void handleBlock(Peer peer, MessageWrapper wrapper) {
         try {
-            byte[] keyBytes = Base64.getDecoder().decode(keySting);
-            X509EncodedKeySpec spec = new X509EncodedKeySpec(keyBytes);
-            KeyFactory kf = KeyFactory.getInstance("EC");
-            return kf.generatePublic(spec);
+            Block block = wrapper.getBlock();
+            // hash와 PoW는 트랜잭션을 보기 전에 확인한다. 틀린 블록은 만드는 데 비용이 들지 않으므로 바로 차단한다
+            if (!BlockValidator.checkHeader(block)) {
+                invalidMessages.inc();
+                Log.limited(Log.Level.WARN, "invalid-block", () -> "Block with invalid header received from " + peer);
+                peer.misbehaving(Peer.BAN_SCORE, "invalid block header");
+                return;
+            }
+            Log.debug(() -> "PeerHandler: Received new block #" + block.getHeader().getNumber() + " from " + peer);
+            blockRelay.submit(peer, block, wrapper);
+        } catch (IllegalArgumentException | BufferUnderflowException e) {
+            invalidMessages.inc();
+            Log.limited(Log.Level.WARN, "invalid-block", () -> "Malformed block received from " + peer);
+            peer.misbehaving(Peer.MALFORMED_SCORE, "malformed block");
         } catch (Exception e) {
-            throw new RuntimeException("PublicKey Restore Failed.");
+            Log.limited(Log.Level.ERROR, "block-error", () -> "Error handling block: " + e.getMessage());
         }
     }
 
@@ -1,26 +1,81 @@
 package blockchain;
 
-import java.io.PrintWriter;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.CopyOnWriteArraySet;
 
 public class PeerManager {
-    private Set<PrintWriter> peerWriters = new CopyOnWriteArraySet<>();
-    
-    public void addPeer(PrintWriter writer) { peerWriters.add(writer); }
-    public void removePeer(PrintWriter writer) { peerWriters.remove(writer); }
-
-    public void broadcast(String message, PrintWriter originator) {
-        System.out.println("Broadcasting: " + message);
-        for(PrintWriter writer : peerWriters) {
-            if(writer != originator) {
-                try {
-                    writer.println(message);
-                    writer.flush();
-                } catch (Exception e) {
-                    peerWriters.remove(writer);
-                }
+    public static final long DEFAULT_BAN_MILLIS = 24 * 60 * 60 * 1000L;
+
+    private Set<Peer> peers = new CopyOnWriteArraySet<>();
+    // 차단한 주소와 차단이 풀리는 시각
+    private final Map<InetAddress, Long> banned = new ConcurrentHashMap<>();
+    private final long banMillis;
+
+    private final Metrics.Histogram broadcastLatency;
+    private final Metrics.Counter broadcastSends;
+    private final Metrics.Counter bans;
+
+    public PeerManager(Metrics metrics, long banMillis) {
+        this.banMillis = banMillis;
+        this.broadcastLatency = metrics.histogram("p2p_broadcast_seconds");
+        this.broadcastSends = metrics.counter("p2p_broadcast_sends_total");
+        this.bans = metrics.counter("p2p_bans_total");
+        metrics.gauge("p2p_peers", peers::size);
+        metrics.gauge("p2p_banned_addresses", banned::size);
+    }
+
+    public void addPeer(Peer peer) { peers.add(peer); }
+    public void removePeer(Peer peer) { peers.remove(peer); }
+    public Set<Peer> getPeers() { return peers; }
+
+    /**
+     * 주소를 banMillis 동안 차단한다. loopback 주소는 한 host에서 여러 노드를 돌리는 경우(Simulator 등)
+     * 정상 노드까지 막게 되므로 차단하지 않고, 호출자가 연결만 끊는다.
+     * @return 차단했으면 true
+     */
+    public boolean ban(SocketAddress address) {
+        InetAddress host = address instanceof InetSocketAddress socket ? socket.getAddress() : null;
+        if (host == null || host.isLoopbackAddress() || banMillis <= 0) { return false; }
+        banned.put(host, System.currentTimeMillis() + banMillis);
+        bans.inc();
+        return true;
+    }
+
+    public boolean isBanned(SocketAddress address) {
+        InetAddress host = address instanceof InetSocketAddress socket ? socket.getAddress() : null;
+        if (host == null) { return false; }
+        Long until = banned.get(host);
+        if (until == null) { return false; }
+        if (System.currentTimeMillis() >= until) {
+            banned.remove(host, until);
+            return false;
+        }
+        return true;
+    }
+
+    public int getBannedCount() { return banned.size(); }
+
+    /**
+     * 모든 peer의 outbound queue에 메시지를 넣는다. 호출한 thread는 소켓 쓰기를 기다리지 않으며,
+     * queue가 가득 찬 peer는 Peer.send에서 연결이 끊긴다.
+     * 인코딩 결과는 메시지에 캐시되므로 받은 메시지를 relay 하면 받은 bytes를 그대로 보낸다.
+     */
+    public void broadcast(MessageWrapper message, Peer originator) {
+        long start = System.nanoTime();
+        int sent = 0;
+        for(Peer peer : peers) {
+            if(peer != originator && peer.send(message)) {
+                sent++;
             }
         }
+        broadcastLatency.recordSince(start);
+        broadcastSends.add(sent);
+        int fanOut = sent;
+        Log.debug(() -> "Broadcast " + message.type + " to " + fanOut + " peer(s)");
     }
 }
@@ -0,0 +1,41 @@
+package blockchain;
+
+import java.nio.ByteBuffer;
+import java.security.PublicKey;
+import java.util.Base64;
+
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+
+/**
+ * X.509로 인코딩된 공개키 바이트를 PublicKey로 디코딩한 결과를 보관하는 LRU cache.
+ * 같은 sender가 보낸 트랜잭션마다 KeyFactory로 X509 디코딩을 반복하지 않기 위해 사용한다.
+ * 여러 검증 worker가 동시에 읽으므로 전체 lock 없이 동작하는 Guava cache를 쓴다.
+ */
+public class PublicKeyCache {
+    // key는 인코딩된 공개키를 감싼 ByteBuffer. 내용으로 비교하며 만든 뒤에는 바꾸지 않는다
+    private final Cache<ByteBuffer, PublicKey> cache;
+
+    public PublicKeyCache(int maxEntries) {
+        this.cache = CacheBuilder.newBuilder().maximumSize(maxEntries).recordStats().build();
+    }
+
+    /** @param encodedKey Base64로 인코딩된 X.509 공개키 (Transaction의 senderPublicKey) */
+    public PublicKey get(String encodedKey) {
+        return get(Base64.getDecoder().decode(encodedKey));
+    }
+
+    public PublicKey get(byte[] encodedKey) {
+        ByteBuffer key = ByteBuffer.wrap(encodedKey);
+        PublicKey publicKey = cache.getIfPresent(key);
+        if (publicKey != null) { return publicKey; }
+        // 같은 키를 두 thread가 동시에 디코딩해도 결과는 같다. 호출자가 배열을 바꿀 수 있으므로 복사해서 넣는다
+        publicKey = CryptoUtil.decodePublicKey(encodedKey);
+        cache.put(ByteBuffer.wrap(encodedKey.clone()), publicKey);
+        return publicKey;
+    }
+
+    public long size() { return cache.size(); }
+    public long getHitCount() { return cache.stats().hitCount(); }
+    public long getMissCount() { return cache.stats().missCount(); }
+}
@@ -0,0 +1,121 @@
+package blockchain;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.URLDecoder;
+import java.nio.charset.StandardCharsets;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.function.Function;
+
+import com.google.gson.Gson;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+
+/**
+ * block explorer와 정산 작업용 조회 API. http://127.0.0.1:&lt;port&gt; 에서 JSON으로 응답한다.
+ *
+ *   GET /block?hash=...  또는 /block?height=N    main chain 블록
+ *   GET /tx?id=...                               TxIndex.Entry
+ *   GET /address?address=...&amp;cursor=C&amp;limit=N   TxIndex.Page (최신 것부터, 기본 limit 50)
+ *
+ * 없으면 404, 잘못된 parameter는 400 이다. loopback에만 bind 한다.
+ */
+public class QueryServer {
+    private static final int DEFAULT_PAGE_SIZE = 50;
+    private static final Gson gson = new Gson();
+
+    private final HttpServer server;
+    private final ExecutorService executor;
+
+    public QueryServer(Blockchain blockchain, int port) throws IOException {
+        this.server = HttpServer.create(new InetSocketAddress(InetAddress.getLoopbackAddress(), port), 0);
+        this.executor = Executors.newFixedThreadPool(2, r -> {
+            Thread t = new Thread(r, "query-server");
+            t.setDaemon(true);
+            return t;
+        });
+        server.setExecutor(executor);
+        server.createContext("/block", exchange -> handle(exchange, params -> {
+            if (params.containsKey("hash")) {
+                long height = blockchain.findHeight(params.get("hash"));
+                return height < 0 ? null : blockchain.getBlock(height);
+            }
+            long height = Long.parseLong(required(params, "height"));
+            return height < 0 || height >= blockchain.getChainSize() ? null : blockchain.getBlock(height);
+        }));
+        server.createContext("/tx", exchange -> handle(exchange,
+                params -> blockchain.findTransaction(required(params, "id"))));
+        server.createContext("/address", exchange -> handle(exchange, params -> blockchain.getAddressTransactions(
+                required(params, "address"),
+                Long.parseLong(params.getOrDefault("cursor", "0")),
+                Integer.parseInt(params.getOrDefault("limit", String.valueOf(DEFAULT_PAGE_SIZE))))));
+    }
+
+    public void start() {
+        server.start();
+        Log.info("Query endpoint: http://" + server.getAddress().getHostString() + ":" + getPort() + "/");
+    }
+
+    public int getPort() { return server.getAddress().getPort(); }
+
+    public void stop() {
+        server.stop(0);
+        executor.shutdown();
+    }
+
+    private static void handle(HttpExchange exchange, Function<Map<String, String>, Object> query) throws IOException {
+        try (exchange) {
+            if (!"GET".equals(exchange.getRequestMethod())) {
+                exchange.sendResponseHeaders(405, -1);
+                return;
+            }
+            Object result;
+            try {
+                result = query.apply(parseQuery(exchange.getRequestURI().getRawQuery()));
+            } catch (IllegalArgumentException e) {
+                respond(exchange, 400, "{\"error\":" + gson.toJson(e.getMessage()) + "}");
+                return;
+            }
+            if (result == null) {
+                respond(exchange, 404, "{\"error\":\"not found\"}");
+                return;
+            }
+            respond(exchange, 200, gson.toJson(result));
+        }
+    }
+
+    private static void respond(HttpExchange exchange, int status, String body) throws IOException {
+        byte[] bytes = body.getBytes(StandardCharsets.UTF_8);
+        exchange.getResponseHeaders().set("Content-Type", "application/json; charset=utf-8");
+        exchange.sendResponseHeaders(status, bytes.length);
+        try (OutputStream out = exchange.getResponseBody()) {
+            out.write(bytes);
+        }
+    }
+
+    private static String required(Map<String, String> params, String name) {
+        String value = params.get(name);
+        if (value == null || value.isEmpty()) {
+            throw new IllegalArgumentException("Missing parameter " + name);
+        }
+        return value;
+    }
+
+    /** Base64 hash와 주소의 '+', '/', '=' 는 percent-encoding 되어 온다 */
+    private static Map<String, String> parseQuery(String query) {
+        Map<String, String> params = new HashMap<>();
+        if (query == null) { return params; }
+        for (String pair : query.split("&")) {
+            int eq = pair.indexOf('=');
+            if (eq <= 0) { continue; }
+            params.put(URLDecoder.decode(pair.substring(0, eq), StandardCharsets.UTF_8),
+                    URLDecoder.decode(pair.substring(eq + 1), StandardCharsets.UTF_8));
+        }
+        return params;
+    }
+}
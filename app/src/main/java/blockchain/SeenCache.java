@@ -0,0 +1,52 @@
+package blockchain;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * 최근에 본 hash 집합. 크기가 maxEntries를 넘거나 ttlMillis가 지나면 오래된 것부터 잊는다.
+ * 같은 트랜잭션/블록을 여러 경로로 다시 받거나 이미 가진 peer에게 다시 알리지 않기 위해 사용한다.
+ */
+public class SeenCache {
+    private final int maxEntries;
+    private final long ttlMillis;
+    // 넣은 순서 = 시간 순서이므로 만료 검사는 앞에서부터만 하면 된다
+    private final LinkedHashMap<String, Long> entries = new LinkedHashMap<>();
+
+    public SeenCache(int maxEntries, long ttlMillis) {
+        if (maxEntries < 1) {
+            throw new IllegalArgumentException("maxEntries must be >= 1");
+        }
+        this.maxEntries = maxEntries;
+        this.ttlMillis = ttlMillis;
+    }
+
+    /** @return 처음 보는(또는 만료된) hash이면 true */
+    public synchronized boolean add(String hash) {
+        long now = System.currentTimeMillis();
+        expire(now);
+        if (entries.containsKey(hash)) { return false; }
+        entries.put(hash, now);
+        if (entries.size() > maxEntries) {
+            Iterator<String> it = entries.keySet().iterator();
+            it.next();
+            it.remove();
+        }
+        return true;
+    }
+
+    public synchronized boolean contains(String hash) {
+        expire(System.currentTimeMillis());
+        return entries.containsKey(hash);
+    }
+
+    public synchronized int size() { return entries.size(); }
+
+    private void expire(long now) {
+        Iterator<Map.Entry<String, Long>> it = entries.entrySet().iterator();
+        while (it.hasNext() && now - it.next().getValue() >= ttlMillis) {
+            it.remove();
+        }
+    }
+}
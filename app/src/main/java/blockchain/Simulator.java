@@ -0,0 +1,428 @@
+package blockchain;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.stream.Stream;
+
+/**
+ * 한 프로세스 안에서 여러 Node를 loopback으로 연결해 부하를 주고 전파 지연, TPS, fork 비율을 재는 harness.
+ *
+ * Node, PeerHandler, Transport를 실제와 같은 코드 경로로 실행하며, 각 노드는 임시 디렉터리에 따로 저장한다.
+ * 부하는 0원, 수수료 0인 서명된 트랜잭션이라 잔액 없이 만들 수 있다. 노드들을 돌아가며 출발지로 쓴다.
+ *
+ *   ./gradlew :app:simulate --args="--nodes 8 --topology random --degree 3 --tps 50 --duration 60"
+ *
+ * 측정 항목
+ * - 트랜잭션 전파: 트랜잭션 생성 시각부터 다른 노드의 mempool에 들어갈 때까지 (노드별)
+ * - 확정: 생성부터 node 0의 main chain 블록에 들어갈 때까지
+ * - 블록 전파: 블록이 처음 어느 노드에 붙은 뒤 다른 노드에 붙을 때까지
+ * - fork 비율: 어느 노드에든 붙었던 블록 중 끝났을 때 node 0의 main chain에 없는 블록의 비율
+ */
+public class Simulator {
+    public enum Topology { MESH, RING, STAR, LINE, RANDOM }
+
+    public static class Config {
+        public int nodes = 5;
+        public Topology topology = Topology.MESH;
+        // RANDOM topology에서 노드별 최소 연결 수
+        public int degree = 3;
+        public int miners = 1;
+        public int minerThreads = 2;
+        public double tps = 20;
+        public int warmupSeconds = 5;
+        public int durationSeconds = 60;
+        // 부하를 멈춘 뒤 남은 트랜잭션이 확정되기를 기다리는 최대 시간
+        public int drainSeconds = 60;
+        public int basePort = 20000;
+        public long seed = 1;
+        public Path dataDir;
+        public boolean keepData;
+
+        void validate() {
+            if (nodes < 1) { throw new IllegalArgumentException("nodes must be >= 1"); }
+            if (miners < 0 || miners > nodes) { throw new IllegalArgumentException("miners must be between 0 and nodes"); }
+            if (minerThreads < 1) { throw new IllegalArgumentException("minerThreads must be >= 1"); }
+            if (degree < 1) { throw new IllegalArgumentException("degree must be >= 1"); }
+            if (tps < 0) { throw new IllegalArgumentException("tps must be >= 0"); }
+            if (durationSeconds < 1 || warmupSeconds < 0 || drainSeconds < 0) {
+                throw new IllegalArgumentException("durations must not be negative");
+            }
+        }
+    }
+
+    /** 정렬된 측정값. 단위는 ms */
+    public static class Samples {
+        private final long[] values;
+
+        Samples(List<Long> values) {
+            this.values = values.stream().mapToLong(Long::longValue).sorted().toArray();
+        }
+
+        public int count() { return values.length; }
+
+        public long percentile(double quantile) {
+            if (values.length == 0) { return 0; }
+            int rank = (int) Math.ceil(quantile * values.length);
+            return values[Math.max(0, rank - 1)];
+        }
+
+        @Override
+        public String toString() {
+            if (values.length == 0) { return "n=0"; }
+            return String.format("n=%d p50=%dms p90=%dms p99=%dms max=%dms", values.length,
+                    percentile(0.5), percentile(0.9), percentile(0.99), values[values.length - 1]);
+        }
+    }
+
+    public static class Report {
+        public int nodes;
+        public int links;
+        public long submitted;
+        public long rejected;
+        public double offeredTps;
+        public long confirmed;
+        public double confirmedTps;
+        public double deliveryRatio;
+        public Samples txPropagation;
+        public Samples txConfirmation;
+        public Samples blockPropagation;
+        public int blocks;
+        public int staleBlocks;
+        public long reorgs;
+        public int nodesAtTip;
+
+        public double getForkRate() { return blocks == 0 ? 0 : (double) staleBlocks / blocks; }
+
+        @Override
+        public String toString() {
+            return String.format("""
+                    --- Simulation report ---
+                    nodes            : %d (%d links)
+                    transactions     : %d submitted, %d rejected, %.1f tx/s offered
+                    confirmed        : %d (%.1f tx/s)
+                    tx delivery      : %.1f%% of (tx, node) pairs
+                    tx propagation   : %s
+                    tx confirmation  : %s
+                    block propagation: %s
+                    blocks           : %d, stale %d, fork rate %.2f%%, reorgs %d
+                    consensus        : %d/%d nodes on node 0's tip
+                    """, nodes, links, submitted, rejected, offeredTps, confirmed, confirmedTps,
+                    deliveryRatio * 100, txPropagation, txConfirmation, blockPropagation,
+                    blocks, staleBlocks, getForkRate() * 100, reorgs, nodesAtTip, nodes);
+        }
+    }
+
+    private final Config config;
+    private final Random random;
+    private final List<Node> nodes = new ArrayList<>();
+    private final boolean[][] links;
+
+    // tx ID -> 노드별 mempool 도착 시각 (ms, 0이면 아직)
+    private final Map<String, AtomicLongArray> txArrivals = new ConcurrentHashMap<>();
+    // 부하로 만든 트랜잭션 -> 생성 시각
+    private final Map<String, Long> created = new ConcurrentHashMap<>();
+    private final Map<String, Long> confirmedAt = new ConcurrentHashMap<>();
+    // block hash -> 노드별 연결 시각
+    private final Map<String, AtomicLongArray> blockArrivals = new ConcurrentHashMap<>();
+
+    public Simulator(Config config) {
+        config.validate();
+        this.config = config;
+        this.random = new Random(config.seed);
+        this.links = buildTopology();
+    }
+
+    public Report run() throws IOException, InterruptedException {
+        Path dataDir = config.dataDir != null ? config.dataDir : Files.createTempDirectory("blockchain-sim");
+        try {
+            startNodes(dataDir);
+            connect();
+            for (int i = 0; i < config.miners; i++) {
+                nodes.get(i).startMining(config.minerThreads);
+            }
+            Thread.sleep(config.warmupSeconds * 1000L);
+
+            long loadStart = System.currentTimeMillis();
+            long[] counts = generateLoad();
+            long loadEnd = System.currentTimeMillis();
+            drain();
+            return report(loadStart, loadEnd, counts[0], counts[1]);
+        } finally {
+            for (Node node : nodes) {
+                node.shutdown();
+            }
+            if (!config.keepData) {
+                deleteRecursively(dataDir);
+            }
+        }
+    }
+
+    private boolean[][] buildTopology() {
+        int n = config.nodes;
+        boolean[][] adjacency = new boolean[n][n];
+        for (int i = 0; i < n; i++) {
+            for (int j = i + 1; j < n; j++) {
+                boolean link = switch (config.topology) {
+                    case MESH -> true;
+                    case STAR -> i == 0;
+                    case LINE -> j == i + 1;
+                    case RING, RANDOM -> j == i + 1 || (i == 0 && j == n - 1 && n > 2);
+                };
+                adjacency[i][j] = adjacency[j][i] = link;
+            }
+        }
+        if (config.topology == Topology.RANDOM) {
+            // ring으로 연결을 보장한 뒤 degree를 채울 때까지 임의의 연결을 더한다
+            int target = Math.min(config.degree, n - 1);
+            for (int i = 0; i < n; i++) {
+                while (degree(adjacency, i) < target) {
+                    int j = random.nextInt(n);
+                    if (j != i) { adjacency[i][j] = adjacency[j][i] = true; }
+                }
+            }
+        }
+        return adjacency;
+    }
+
+    private static int degree(boolean[][] adjacency, int node) {
+        int degree = 0;
+        for (boolean link : adjacency[node]) {
+            if (link) { degree++; }
+        }
+        return degree;
+    }
+
+    private void startNodes(Path dataDir) {
+        for (int i = 0; i < config.nodes; i++) {
+            Node node = new Node(config.basePort + i, dataDir.resolve("node-" + i));
+            int index = i;
+            node.getMempool().addListener(tx -> arrived(txArrivals, tx.getTransactionID(), index));
+            node.getBlockchain().addListener(new ChainListener() {
+                @Override
+                public void onBlockConnected(Block block) {
+                    arrived(blockArrivals, block.getHash(), index);
+                    if (index == 0) {
+                        long now = System.currentTimeMillis();
+                        for (Transaction tx : block.getTransactions()) {
+                            if (created.containsKey(tx.getTransactionID())) {
+                                confirmedAt.putIfAbsent(tx.getTransactionID(), now);
+                            }
+                        }
+                    }
+                }
+
+                @Override
+                public void onBlockDisconnected(Block block) {
+                    if (index == 0) {
+                        for (Transaction tx : block.getTransactions()) {
+                            confirmedAt.remove(tx.getTransactionID());
+                        }
+                    }
+                }
+            });
+            node.startServer();
+            nodes.add(node);
+        }
+    }
+
+    private void arrived(Map<String, AtomicLongArray> arrivals, String hash, int node) {
+        arrivals.computeIfAbsent(hash, h -> new AtomicLongArray(config.nodes))
+                .compareAndSet(node, 0, System.currentTimeMillis());
+    }
+
+    private void connect() throws InterruptedException {
+        for (int i = 0; i < config.nodes; i++) {
+            for (int j = i + 1; j < config.nodes; j++) {
+                if (links[i][j]) {
+                    nodes.get(j).connectToPeer("localhost", config.basePort + i);
+                }
+            }
+        }
+        long deadline = System.currentTimeMillis() + 10_000;
+        for (int i = 0; i < config.nodes; i++) {
+            while (nodes.get(i).getPeerCount() < degree(links, i) && System.currentTimeMillis() < deadline) {
+                Thread.sleep(50);
+            }
+            if (nodes.get(i).getPeerCount() < degree(links, i)) {
+                Log.warn("Simulator: node " + i + " has " + nodes.get(i).getPeerCount() + " of " + degree(links, i) + " peers");
+            }
+        }
+    }
+
+    /** @return {만든 수, 거부된 수} */
+    private long[] generateLoad() throws InterruptedException {
+        long submitted = 0;
+        long rejected = 0;
+        if (config.tps == 0) {
+            Thread.sleep(config.durationSeconds * 1000L);
+            return new long[] {0, 0};
+        }
+        long intervalNanos = (long) (1e9 / config.tps);
+        long start = System.nanoTime();
+        long end = start + config.durationSeconds * 1_000_000_000L;
+        for (long next = start; next < end; next += intervalNanos) {
+            long wait = next - System.nanoTime();
+            if (wait > 0) {
+                Thread.sleep(wait / 1_000_000, (int) (wait % 1_000_000));
+            }
+            Node origin = nodes.get((int) (submitted % config.nodes));
+            String recipient = nodes.get(random.nextInt(config.nodes)).getAddress();
+            Transaction tx = origin.createAndBroadcastTransaction(recipient, "sim-" + submitted);
+            submitted++;
+            if (tx == null) {
+                rejected++;
+            } else {
+                created.put(tx.getTransactionID(), tx.getTimestamp());
+            }
+        }
+        return new long[] {submitted, rejected};
+    }
+
+    /** 부하로 만든 트랜잭션이 모두 확정되거나 drainSeconds가 지날 때까지 기다린다 */
+    private void drain() throws InterruptedException {
+        long deadline = System.currentTimeMillis() + config.drainSeconds * 1000L;
+        while (System.currentTimeMillis() < deadline && confirmedAt.size() < created.size() && config.miners > 0) {
+            Thread.sleep(200);
+        }
+        // 마지막 블록이 다른 노드에 도착할 시간을 준다
+        Thread.sleep(1000);
+    }
+
+    private Report report(long loadStart, long loadEnd, long submitted, long rejected) {
+        Report report = new Report();
+        report.nodes = config.nodes;
+        int linkCount = 0;
+        for (int i = 0; i < config.nodes; i++) {
+            linkCount += degree(links, i);
+        }
+        report.links = linkCount / 2;
+        report.submitted = submitted;
+        report.rejected = rejected;
+        report.offeredTps = submitted * 1000.0 / Math.max(1, loadEnd - loadStart);
+
+        List<Long> propagation = new ArrayList<>();
+        long expected = 0;
+        for (Map.Entry<String, Long> e : created.entrySet()) {
+            AtomicLongArray arrivals = txArrivals.get(e.getKey());
+            for (int i = 0; i < config.nodes; i++) {
+                long at = arrivals == null ? 0 : arrivals.get(i);
+                // 출발 노드도 포함한다. 서명과 mempool 추가 시간이 들어간다
+                expected++;
+                if (at > 0) { propagation.add(at - e.getValue()); }
+            }
+        }
+        report.txPropagation = new Samples(propagation);
+        report.deliveryRatio = expected == 0 ? 0 : (double) propagation.size() / expected;
+
+        List<Long> confirmation = new ArrayList<>();
+        long lastConfirmed = loadStart;
+        for (Map.Entry<String, Long> e : confirmedAt.entrySet()) {
+            confirmation.add(e.getValue() - created.get(e.getKey()));
+            lastConfirmed = Math.max(lastConfirmed, e.getValue());
+        }
+        report.txConfirmation = new Samples(confirmation);
+        report.confirmed = confirmation.size();
+        report.confirmedTps = report.confirmed * 1000.0 / Math.max(1, lastConfirmed - loadStart);
+
+        List<Long> blockPropagation = new ArrayList<>();
+        Blockchain reference = nodes.get(0).getBlockchain();
+        for (Map.Entry<String, AtomicLongArray> e : blockArrivals.entrySet()) {
+            AtomicLongArray arrivals = e.getValue();
+            long first = Long.MAX_VALUE;
+            for (int i = 0; i < config.nodes; i++) {
+                if (arrivals.get(i) > 0) { first = Math.min(first, arrivals.get(i)); }
+            }
+            for (int i = 0; i < config.nodes; i++) {
+                if (arrivals.get(i) > 0 && arrivals.get(i) != first) { blockPropagation.add(arrivals.get(i) - first); }
+            }
+            report.blocks++;
+            if (!isOnMainChain(reference, e.getKey())) { report.staleBlocks++; }
+        }
+        report.blockPropagation = new Samples(blockPropagation);
+
+        String tip = reference.getLastBlock().getHash();
+        for (Node node : nodes) {
+            report.reorgs += node.getMetrics().counter("chain_reorgs_total").get();
+            if (node.getBlockchain().getLastBlock().getHash().equals(tip)) { report.nodesAtTip++; }
+        }
+        return report;
+    }
+
+    private static boolean isOnMainChain(Blockchain blockchain, String hash) {
+        Block block = blockchain.getBlockByHash(hash);
+        if (block == null) { return false; }
+        Block main = blockchain.getBlock(block.getHeader().getNumber());
+        return main != null && main.getHash().equals(hash);
+    }
+
+    private static void deleteRecursively(Path dir) throws IOException {
+        if (!Files.exists(dir)) { return; }
+        try (Stream<Path> paths = Files.walk(dir)) {
+            for (Path path : (Iterable<Path>) paths.sorted(Comparator.reverseOrder())::iterator) {
+                Files.deleteIfExists(path);
+            }
+        }
+    }
+
+    static Config parseArgs(String[] args) {
+        Config config = new Config();
+        Set<String> flags = new HashSet<>(Arrays.asList("--keep-data"));
+        for (int i = 0; i < args.length; i++) {
+            String name = args[i];
+            if (flags.contains(name)) {
+                config.keepData = true;
+                continue;
+            }
+            if (i + 1 >= args.length) { throw new IllegalArgumentException("Missing value for " + name); }
+            String value = args[++i];
+            switch (name) {
+                case "--nodes" -> config.nodes = Integer.parseInt(value);
+                case "--topology" -> config.topology = Topology.valueOf(value.toUpperCase());
+                case "--degree" -> config.degree = Integer.parseInt(value);
+                case "--miners" -> config.miners = Integer.parseInt(value);
+                case "--miner-threads" -> config.minerThreads = Integer.parseInt(value);
+                case "--tps" -> config.tps = Double.parseDouble(value);
+                case "--warmup" -> config.warmupSeconds = Integer.parseInt(value);
+                case "--duration" -> config.durationSeconds = Integer.parseInt(value);
+                case "--drain" -> config.drainSeconds = Integer.parseInt(value);
+                case "--base-port" -> config.basePort = Integer.parseInt(value);
+                case "--seed" -> config.seed = Long.parseLong(value);
+                case "--data-dir" -> config.dataDir = Paths.get(value);
+                default -> throw new IllegalArgumentException("Unknown option " + name);
+            }
+        }
+        return config;
+    }
+
+    public static void main(String[] args) throws Exception {
+        Config config;
+        try {
+            config = parseArgs(args);
+            config.validate();
+        } catch (IllegalArgumentException e) {
+            System.err.println(e.getMessage());
+            System.err.println("Usage: Simulator [--nodes N] [--topology mesh|ring|star|line|random] [--degree K]"
+                    + " [--miners M] [--miner-threads T] [--tps R] [--warmup S] [--duration S] [--drain S]"
+                    + " [--base-port P] [--seed X] [--data-dir DIR] [--keep-data]");
+            System.exit(2);
+            return;
+        }
+        if (System.getProperty("blockchain.log") == null) {
+            Log.setLevel(Log.Level.WARN);
+        }
+        System.out.print(new Simulator(config).run());
+        System.exit(0);
+    }
+}
@@ -0,0 +1,545 @@
+package blockchain;
+
+import java.io.Closeable;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Base64;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * main chain tip 기준의 계정 상태(주소 -> 잔액, nonce).
+ *
+ * 모든 계정은 메모리의 hash map에 있으므로 잔액/nonce 조회는 체인 길이와 상관없이 O(1) 이다.
+ * 디스크에는 두 파일로 유지한다.
+ *
+ * state.dat : 마지막 checkpoint 시점의 전체 계정과 최근 블록의 undo 정보
+ * state.log : 그 이후 블록마다 바뀐 계정의 [이전 값, 새 값]을 이어 붙인 journal.
+ *             commit 한 번이 레코드 하나이고, 디스크에 쓴 뒤에야 메모리에 반영한다
+ *
+ * 블록 적용은 Snapshot에서 한다. Snapshot은 바뀐 계정만 따로 들고 있는 copy-on-write view라
+ * 전체 상태를 복사하지 않고 후보 상태(새 블록, reorganization)를 검증할 수 있고,
+ * 모두 유효할 때만 commit() 으로 반영한다.
+ */
+public class StateDB implements Closeable {
+    public static final long BLOCK_REWARD = 50;
+    public static final int MAX_ADDRESS_LENGTH = 1024;
+    // 이보다 깊은 reorganization은 Blockchain에서도 허용하지 않는다
+    private static final int MAX_UNDO = Blockchain.MAX_REORG_DEPTH;
+    private static final int CHECKPOINT_INTERVAL = 1000;
+
+    private static final byte APPLY = 1;
+    private static final byte REVERT = 2;
+    // 여러 diff를 묶은 레코드. 한 번의 commit은 모두 반영되거나 모두 버려진다
+    private static final byte BATCH = 3;
+
+    private final Path snapshotPath;
+    private final FileChannel journal;
+
+    private final Map<String, Account> accounts = new ConcurrentHashMap<>();
+    // block hash -> 그 블록 적용 전의 계정 값. 오래된 것부터 버린다
+    private final LinkedHashMap<String, Map<String, Account>> undo = new LinkedHashMap<>();
+    private volatile long height = -1;
+    private volatile String tipHash = CryptoUtil.ZERO_HASH;
+    private long version;
+    private int journalRecords;
+
+    public StateDB(Path dir) throws IOException {
+        Files.createDirectories(dir);
+        this.snapshotPath = dir.resolve("state.dat");
+        this.journal = FileChannel.open(dir.resolve("state.log"),
+                StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+        if (Files.exists(snapshotPath)) {
+            loadCheckpoint();
+        }
+        replayJournal();
+    }
+
+    public Account getAccount(String address) {
+        return address == null ? Account.EMPTY : accounts.getOrDefault(address, Account.EMPTY);
+    }
+
+    public long getBalance(String address) { return getAccount(address).getBalance(); }
+    public long getNonce(String address) { return getAccount(address).getNonce(); }
+    public long getHeight() { return height; }
+    public String getTipHash() { return tipHash; }
+    public int getAccountCount() { return accounts.size(); }
+
+    /** 현재 상태 위에 변경 사항을 쌓는 snapshot. 만드는 비용은 O(1) */
+    public synchronized Snapshot snapshot() {
+        return new Snapshot(version, height, tipHash);
+    }
+
+    /** 모든 상태를 지운다. 블록 저장소와 맞지 않을 때 처음부터 다시 만들기 위해 사용 */
+    public synchronized void reset() throws IOException {
+        accounts.clear();
+        undo.clear();
+        height = -1;
+        tipHash = CryptoUtil.ZERO_HASH;
+        version++;
+        journal.truncate(0);
+        journalRecords = 0;
+        Files.deleteIfExists(snapshotPath);
+    }
+
+    public synchronized void flush() throws IOException {
+        journal.force(true);
+    }
+
+    @Override
+    public synchronized void close() throws IOException {
+        checkpoint();
+        journal.close();
+    }
+
+    /**
+     * 변경 사항을 따로 보관하는 상태 view. 읽기는 자신의 변경 사항을 먼저 보고 없으면 StateDB를 본다.
+     * 한 thread에서만 사용한다.
+     */
+    public class Snapshot {
+        private final long baseVersion;
+        private final Map<String, Account> overlay = new HashMap<>();
+        private final List<Diff> diffs = new ArrayList<>();
+        private long snapshotHeight;
+        private String snapshotTip;
+
+        private Snapshot(long baseVersion, long height, String tipHash) {
+            this.baseVersion = baseVersion;
+            this.snapshotHeight = height;
+            this.snapshotTip = tipHash;
+        }
+
+        public Account getAccount(String address) {
+            Account account = overlay.get(address);
+            return account != null ? account : StateDB.this.getAccount(address);
+        }
+
+        public long getHeight() { return snapshotHeight; }
+        public String getTipHash() { return snapshotTip; }
+
+        /**
+         * coinbase가 아닌 트랜잭션 하나를 적용한다. 블록 템플릿을 만들 때 사용한다.
+         * @return nonce가 맞지 않거나 잔액이 부족하면 상태를 바꾸지 않고 false
+         */
+        public boolean apply(Transaction tx) {
+            return transfer(tx, new HashMap<>());
+        }
+
+        /**
+         * 블록의 모든 트랜잭션을 적용한다. 첫 트랜잭션은 coinbase일 수 있으며
+         * 보상은 BLOCK_REWARD와 블록 안 수수료의 합을 넘을 수 없다.
+         * @return 하나라도 유효하지 않으면 상태를 바꾸지 않고 false
+         */
+        public boolean applyBlock(Block block) {
+            BlockHeader header = block.getHeader();
+            if (header.getNumber() != snapshotHeight + 1 || !header.getParentHash().equals(snapshotTip)) {
+                return false;
+            }
+            Map<String, Account> before = new HashMap<>();
+            List<Transaction> txs = block.getTransactions();
+            long fees = 0;
+            boolean valid = true;
+            for (int i = 0; i < txs.size() && valid; i++) {
+                Transaction tx = txs.get(i);
+                if (tx.isCoinbase()) {
+                    valid = i == 0;
+                    continue;
+                }
+                valid = transfer(tx, before);
+                fees += tx.getFee();
+            }
+            if (valid && !txs.isEmpty() && txs.get(0).isCoinbase()) {
+                Transaction coinbase = txs.get(0);
+                valid = coinbase.getAmount() >= 0 && coinbase.getAmount() <= BLOCK_REWARD + fees
+                        && isValidAddress(coinbase.getRecipientAddress());
+                if (valid) {
+                    credit(coinbase.getRecipientAddress(), coinbase.getAmount(), before);
+                }
+            }
+            if (!valid) {
+                overlay.putAll(before);
+                return false;
+            }
+
+            Map<String, Account> after = new HashMap<>();
+            for (String address : before.keySet()) {
+                after.put(address, getAccount(address));
+            }
+            diffs.add(new Diff(APPLY, header.getNumber(), block.getHash(), block.getHash(), before, after));
+            snapshotHeight = header.getNumber();
+            snapshotTip = block.getHash();
+            return true;
+        }
+
+        /**
+         * tip 블록을 되돌린다. 블록 적용 전의 값은 StateDB의 undo 정보에서 가져온다.
+         * @return block이 현재 tip이 아니거나 undo 정보가 없으면 false
+         */
+        public boolean revertBlock(Block block) {
+            if (!block.getHash().equals(snapshotTip)) {
+                return false;
+            }
+            return revert(block.getHeader().getParentHash());
+        }
+
+        /**
+         * 블록 본문 없이 tip을 되돌린다. 블록 저장소가 상태보다 뒤처진 채 재시작했을 때 사용한다.
+         * parent는 undo 정보의 순서로 알아내므로 StateDB에 commit된 블록만 되돌릴 수 있다.
+         * @return undo 정보가 없거나 parent를 알 수 없으면 false
+         */
+        public boolean revertTip() {
+            String parent;
+            synchronized (StateDB.this) {
+                parent = undoParent(snapshotTip);
+            }
+            return parent != null && revert(parent);
+        }
+
+        private boolean revert(String parentHash) {
+            String blockHash = snapshotTip;
+            Map<String, Account> previous = findUndo(blockHash);
+            if (previous == null) {
+                return false;
+            }
+            Map<String, Account> current = new HashMap<>();
+            for (Map.Entry<String, Account> e : previous.entrySet()) {
+                current.put(e.getKey(), getAccount(e.getKey()));
+                overlay.put(e.getKey(), e.getValue());
+            }
+            snapshotHeight--;
+            snapshotTip = parentHash;
+            diffs.add(new Diff(REVERT, snapshotHeight, snapshotTip, blockHash, current, previous));
+            return true;
+        }
+
+        /**
+         * 변경 사항을 journal에 쓰고 디스크에 내린 뒤 StateDB에 반영한다.
+         * 쓰다가 실패하면 journal을 원래 길이로 되돌리고 StateDB는 바꾸지 않는다.
+         * @throws IllegalStateException snapshot을 만든 뒤 다른 snapshot이 먼저 commit 된 경우
+         */
+        public void commit() throws IOException {
+            synchronized (StateDB.this) {
+                if (version != baseVersion) {
+                    throw new IllegalStateException("State changed since snapshot was taken.");
+                }
+                if (!diffs.isEmpty()) {
+                    writeRecord(diffs);
+                }
+                for (Diff diff : diffs) {
+                    applyDiff(diff);
+                }
+                height = snapshotHeight;
+                tipHash = snapshotTip;
+                version++;
+                if (journalRecords >= CHECKPOINT_INTERVAL) {
+                    checkpoint();
+                }
+            }
+        }
+
+        private Map<String, Account> findUndo(String blockHash) {
+            for (int i = diffs.size() - 1; i >= 0; i--) {
+                Diff diff = diffs.get(i);
+                if (diff.type == APPLY && diff.blockHash.equals(blockHash)) { return diff.previous; }
+            }
+            synchronized (StateDB.this) {
+                return undo.get(blockHash);
+            }
+        }
+
+        private boolean transfer(Transaction tx, Map<String, Account> before) {
+            String sender = tx.getSenderPublicKey();
+            if (!isValidAddress(sender) || !isValidAddress(tx.getRecipientAddress()) || tx.getAmount() < 0 || tx.getFee() < 0) {
+                return false;
+            }
+            Account from = getAccount(sender);
+            long total;
+            try {
+                total = Math.addExact(tx.getAmount(), tx.getFee());
+            } catch (ArithmeticException e) {
+                return false;
+            }
+            if (tx.getNonce() != from.getNonce() || from.getBalance() < total) {
+                return false;
+            }
+            before.putIfAbsent(sender, from);
+            overlay.put(sender, new Account(from.getBalance() - total, from.getNonce() + 1));
+            credit(tx.getRecipientAddress(), tx.getAmount(), before);
+            return true;
+        }
+
+        private void credit(String address, long amount, Map<String, Account> before) {
+            Account to = getAccount(address);
+            before.putIfAbsent(address, to);
+            overlay.put(address, new Account(to.getBalance() + amount, to.getNonce()));
+        }
+    }
+
+    /** undo 정보는 chain 순서로 쌓이므로 바로 앞의 항목이 parent이다. 가장 오래된 항목이면 null */
+    private String undoParent(String blockHash) {
+        String previous = null;
+        for (String hash : undo.keySet()) {
+            if (hash.equals(blockHash)) { return previous; }
+            previous = hash;
+        }
+        return null;
+    }
+
+    private static boolean isValidAddress(String address) {
+        return address != null && !address.isEmpty() && address.length() <= MAX_ADDRESS_LENGTH;
+    }
+
+    /** 블록 하나만큼의 상태 변화. journal의 레코드 하나가 된다. */
+    private static class Diff {
+        private final byte type;
+        // 이 변화를 적용한 뒤의 tip
+        private final long height;
+        private final String tipHash;
+        private final String blockHash;
+        private final Map<String, Account> previous;
+        private final Map<String, Account> next;
+
+        Diff(byte type, long height, String tipHash, String blockHash, Map<String, Account> previous, Map<String, Account> next) {
+            this.type = type;
+            this.height = height;
+            this.tipHash = tipHash;
+            this.blockHash = blockHash;
+            this.previous = previous;
+            this.next = next;
+        }
+    }
+
+    private void applyDiff(Diff diff) {
+        for (Map.Entry<String, Account> e : diff.next.entrySet()) {
+            if (e.getValue().isEmpty()) {
+                accounts.remove(e.getKey());
+            } else {
+                accounts.put(e.getKey(), e.getValue());
+            }
+        }
+        if (diff.type == APPLY) {
+            undo.put(diff.blockHash, diff.previous);
+            Iterator<String> oldest = undo.keySet().iterator();
+            while (undo.size() > MAX_UNDO) {
+                oldest.next();
+                oldest.remove();
+            }
+        } else {
+            undo.remove(diff.blockHash);
+        }
+        height = diff.height;
+        tipHash = diff.tipHash;
+        journalRecords++;
+    }
+
+    // journal 레코드: [length][BATCH][count]{diff}
+    // diff: [type][height][tipHash 32][blockHash 32][count]{[address][prev balance][prev nonce][next balance][next nonce]}
+    private void writeRecord(List<Diff> diffs) throws IOException {
+        List<ByteBuffer> encoded = new ArrayList<>(diffs.size());
+        int size = 1 + Integer.BYTES;
+        for (Diff diff : diffs) {
+            ByteBuffer buffer = encodeDiff(diff);
+            encoded.add(buffer);
+            size += buffer.remaining();
+        }
+        ByteBuffer record = ByteBuffer.allocate(Integer.BYTES + size);
+        record.putInt(size).put(BATCH).putInt(diffs.size());
+        for (ByteBuffer buffer : encoded) {
+            record.put(buffer);
+        }
+        record.flip();
+
+        long start = journal.size();
+        try {
+            for (long position = start; record.hasRemaining(); ) {
+                position += journal.write(record, position);
+            }
+            journal.force(false);
+        } catch (IOException e) {
+            // 일부만 쓴 레코드는 재시작 때도 버려지지만, 이어서 쓸 레코드가 그 뒤에 붙지 않도록 지금 잘라 둔다
+            try {
+                journal.truncate(start);
+            } catch (IOException suppressed) {
+                e.addSuppressed(suppressed);
+            }
+            throw e;
+        }
+    }
+
+    private static ByteBuffer encodeDiff(Diff diff) {
+        List<byte[]> addresses = new ArrayList<>(diff.next.size());
+        int size = 1 + Long.BYTES + CryptoUtil.HASH_SIZE * 2 + Integer.BYTES;
+        for (String address : diff.next.keySet()) {
+            byte[] bytes = address.getBytes(StandardCharsets.UTF_8);
+            addresses.add(bytes);
+            size += Short.BYTES + bytes.length + Long.BYTES * 4;
+        }
+        ByteBuffer buffer = ByteBuffer.allocate(size);
+        buffer.put(diff.type);
+        buffer.putLong(diff.height);
+        buffer.put(CryptoUtil.decodeHash(diff.tipHash));
+        buffer.put(CryptoUtil.decodeHash(diff.blockHash));
+        buffer.putInt(diff.next.size());
+        int i = 0;
+        for (Map.Entry<String, Account> e : diff.next.entrySet()) {
+            byte[] address = addresses.get(i++);
+            Account previous = diff.previous.getOrDefault(e.getKey(), Account.EMPTY);
+            buffer.putShort((short) address.length);
+            buffer.put(address);
+            buffer.putLong(previous.getBalance()).putLong(previous.getNonce());
+            buffer.putLong(e.getValue().getBalance()).putLong(e.getValue().getNonce());
+        }
+        return buffer.flip();
+    }
+
+    /** journal을 처음부터 다시 적용한다. 레코드가 잘려 있거나 BATCH 레코드가 아니면 그 앞에서 자른다. */
+    private void replayJournal() throws IOException {
+        long position = 0;
+        long size = journal.size();
+        ByteBuffer length = ByteBuffer.allocate(Integer.BYTES);
+        while (position + Integer.BYTES <= size) {
+            length.clear();
+            journal.read(length, position);
+            int recordSize = length.flip().getInt();
+            if (recordSize <= 0 || position + Integer.BYTES + recordSize > size) { break; }
+            ByteBuffer record = ByteBuffer.allocate(recordSize);
+            journal.read(record, position + Integer.BYTES);
+            record.flip();
+            // BATCH가 아닌 레코드는 깨진 것이므로 잘린 레코드와 같이 취급한다
+            if (record.get() != BATCH) { break; }
+            for (int i = record.getInt(); i > 0; i--) {
+                applyDiff(readDiff(record));
+            }
+            position += Integer.BYTES + recordSize;
+        }
+        if (position < size) {
+            Log.warn("StateDB: truncating torn journal record at " + position);
+            journal.truncate(position);
+        }
+    }
+
+    private static Diff readDiff(ByteBuffer record) {
+        byte type = record.get();
+        long height = record.getLong();
+        String tipHash = readHash(record);
+        String blockHash = readHash(record);
+        int count = record.getInt();
+        Map<String, Account> previous = new HashMap<>();
+        Map<String, Account> next = new HashMap<>();
+        for (int i = 0; i < count; i++) {
+            String address = readAddress(record);
+            previous.put(address, new Account(record.getLong(), record.getLong()));
+            next.put(address, new Account(record.getLong(), record.getLong()));
+        }
+        return new Diff(type, height, tipHash, blockHash, previous, next);
+    }
+
+    // checkpoint: [height][tipHash 32][count]{[address][balance][nonce]}[undo count]{[blockHash 32][count]{[address][balance][nonce]}}
+    private void checkpoint() throws IOException {
+        Path tmp = snapshotPath.resolveSibling("state.dat.tmp");
+        try (FileChannel out = FileChannel.open(tmp, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                StandardOpenOption.TRUNCATE_EXISTING)) {
+            for (byte[] chunk : checkpointChunks()) {
+                ByteBuffer buffer = ByteBuffer.wrap(chunk);
+                while (buffer.hasRemaining()) { out.write(buffer); }
+            }
+            out.force(true);
+        }
+        Files.move(tmp, snapshotPath, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        journal.truncate(0);
+        journalRecords = 0;
+    }
+
+    /** 현재 상태를 checkpoint 형식으로 쓴다. ChainSnapshot이 사용한다 */
+    synchronized void exportCheckpoint(OutputStream out) throws IOException {
+        for (byte[] chunk : checkpointChunks()) {
+            out.write(chunk);
+        }
+    }
+
+    /** exportCheckpoint로 쓴 내용을 dir의 checkpoint로 저장한다. 이후 StateDB(dir)가 이 상태로 열린다 */
+    static void importCheckpoint(Path dir, InputStream in) throws IOException {
+        Files.createDirectories(dir);
+        Path tmp = dir.resolve("state.dat.tmp");
+        try (FileOutputStream out = new FileOutputStream(tmp.toFile())) {
+            in.transferTo(out);
+            out.getFD().sync();
+        }
+        Files.deleteIfExists(dir.resolve("state.log"));
+        Files.move(tmp, dir.resolve("state.dat"), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    private List<byte[]> checkpointChunks() {
+        List<byte[]> chunks = new ArrayList<>();
+        ByteBuffer head = ByteBuffer.allocate(Long.BYTES + CryptoUtil.HASH_SIZE + Integer.BYTES);
+        head.putLong(height).put(CryptoUtil.decodeHash(tipHash)).putInt(accounts.size());
+        chunks.add(head.array());
+        writeAccounts(accounts, chunks);
+
+        ByteBuffer undoCount = ByteBuffer.allocate(Integer.BYTES).putInt(undo.size());
+        chunks.add(undoCount.array());
+        for (Map.Entry<String, Map<String, Account>> e : undo.entrySet()) {
+            ByteBuffer undoHead = ByteBuffer.allocate(CryptoUtil.HASH_SIZE + Integer.BYTES);
+            undoHead.put(CryptoUtil.decodeHash(e.getKey())).putInt(e.getValue().size());
+            chunks.add(undoHead.array());
+            writeAccounts(e.getValue(), chunks);
+        }
+        return chunks;
+    }
+
+    private static void writeAccounts(Map<String, Account> accounts, List<byte[]> chunks) {
+        for (Map.Entry<String, Account> e : accounts.entrySet()) {
+            byte[] address = e.getKey().getBytes(StandardCharsets.UTF_8);
+            ByteBuffer buffer = ByteBuffer.allocate(Short.BYTES + address.length + Long.BYTES * 2);
+            buffer.putShort((short) address.length).put(address);
+            buffer.putLong(e.getValue().getBalance()).putLong(e.getValue().getNonce());
+            chunks.add(buffer.array());
+        }
+    }
+
+    private void loadCheckpoint() throws IOException {
+        ByteBuffer in = ByteBuffer.wrap(Files.readAllBytes(snapshotPath));
+        height = in.getLong();
+        tipHash = readHash(in);
+        int count = in.getInt();
+        for (int i = 0; i < count; i++) {
+            accounts.put(readAddress(in), new Account(in.getLong(), in.getLong()));
+        }
+        int undoCount = in.getInt();
+        for (int i = 0; i < undoCount; i++) {
+            String blockHash = readHash(in);
+            int n = in.getInt();
+            Map<String, Account> previous = new HashMap<>();
+            for (int j = 0; j < n; j++) {
+                previous.put(readAddress(in), new Account(in.getLong(), in.getLong()));
+            }
+            undo.put(blockHash, previous);
+        }
+    }
+
+    private static String readHash(ByteBuffer in) {
+        byte[] hash = new byte[CryptoUtil.HASH_SIZE];
+        in.get(hash);
+        return Base64.getEncoder().encodeToString(hash);
+    }
+
+    private static String readAddress(ByteBuffer in) {
+        byte[] address = new byte[in.getShort() & 0xFFFF];
+        in.get(address);
+        return new String(address, StandardCharsets.UTF_8);
+    }
+}
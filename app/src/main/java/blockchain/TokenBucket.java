@@ -0,0 +1,48 @@
+package blockchain;
+
+/**
+ * token bucket. 초당 rate 개씩 최대 burst 개까지 채워지며, 쓸 때마다 token을 꺼낸다.
+ * peer별 수신 bytes와 메시지 종류별 개수를 제한하는 데 쓴다.
+ */
+public class TokenBucket {
+    private final double rate;
+    private final double burst;
+    private double tokens;
+    private long updatedNanos;
+
+    public TokenBucket(double rate, double burst) {
+        if (rate <= 0 || burst <= 0) {
+            throw new IllegalArgumentException("rate and burst must be > 0");
+        }
+        this.rate = rate;
+        this.burst = burst;
+        this.tokens = burst;
+        this.updatedNanos = System.nanoTime();
+    }
+
+    /** @return token이 n개 이상 있어서 꺼냈으면 true. 모자라면 꺼내지 않는다 */
+    public synchronized boolean tryConsume(double n) {
+        refill();
+        if (tokens < n) { return false; }
+        tokens -= n;
+        return true;
+    }
+
+    /** 모자라도 꺼낸다. 음수가 되면 다시 0이 될 때까지 nanosUntilAvailable 만큼 기다려야 한다 */
+    public synchronized void consume(double n) {
+        refill();
+        tokens -= n;
+    }
+
+    /** @return token이 음수가 아니게 될 때까지 남은 시간. 지금 쓸 수 있으면 0 */
+    public synchronized long nanosUntilAvailable() {
+        refill();
+        return tokens >= 0 ? 0 : (long) Math.ceil(-tokens / rate * 1e9);
+    }
+
+    private void refill() {
+        long now = System.nanoTime();
+        tokens = Math.min(burst, tokens + (now - updatedNanos) / 1e9 * rate);
+        updatedNanos = now;
+    }
+}
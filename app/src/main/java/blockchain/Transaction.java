@@ -2,6 +2,7 @@ package blockchain;
 
 import java.security.PrivateKey;
 import java.security.PublicKey;
+import java.util.Base64;
 
 public class Transaction {
     private String transactionID;
@@ -9,43 +10,117 @@ public class Transaction {
     private String recipientAddress;
 
     private String data;
+    private long amount;
+    private long fee;
+    // 보내는 계정의 트랜잭션 순번. StateDB의 계정 nonce와 같아야 적용된다
+    private long nonce;
     private long timestamp;
     private byte[] signature;
 
 
     public Transaction() {}
     public Transaction(PublicKey sender, String recipient, String data) {
-        this.senderPublicKey = CryptoUtil.keyToString(sender);
+        this(sender, recipient, data, 0);
+    }
+    public Transaction(PublicKey sender, String recipient, String data, long fee) {
+        this(sender, recipient, 0, fee, 0, data);
+    }
+    public Transaction(PublicKey sender, String recipient, long amount, long fee, long nonce, String data) {
+        this(CryptoUtil.keyToString(sender), recipient, amount, fee, nonce, data);
+    }
+    private Transaction(String sender, String recipient, long amount, long fee, long nonce, String data) {
+        this.senderPublicKey = sender;
         this.recipientAddress = recipient;
         this.data = data;
+        this.amount = amount;
+        this.fee = fee;
+        this.nonce = nonce;
         this.timestamp = System.currentTimeMillis();
         this.transactionID = calculateHash();
     }
 
-    private String calculateDataToSign() {
-        return senderPublicKey + recipientAddress + data + timestamp;
+    /** BinaryCodec이 디코딩한 값을 그대로 채운다. ID는 다시 계산하지 않는다 */
+    Transaction(String transactionID, String sender, String recipient, String data, long amount, long fee, long nonce,
+                long timestamp, byte[] signature) {
+        this.transactionID = transactionID;
+        this.senderPublicKey = sender;
+        this.recipientAddress = recipient;
+        this.data = data;
+        this.amount = amount;
+        this.fee = fee;
+        this.nonce = nonce;
+        this.timestamp = timestamp;
+        this.signature = signature;
+    }
+
+    /**
+     * 블록 보상 트랜잭션. 보내는 사람과 서명이 없고 블록의 첫 번째 트랜잭션으로만 올 수 있다.
+     * nonce에 블록 번호를 넣어 블록마다 ID가 달라지게 한다.
+     */
+    public static Transaction coinbase(String recipient, long amount, long blockNumber) {
+        return new Transaction((String) null, recipient, amount, 0, blockNumber, "coinbase");
+    }
+
+    /**
+     * 서명과 ID hash의 입력 (BinaryCodec.encodeSigningData). 검증할 때 한 번 만들어 ID 확인과 서명 검증에 같이 쓴다.
+     * 구분자로 이어 붙인 문자열은 주소나 data에 구분자를 넣어 다른 트랜잭션으로 읽히게 할 수 있으므로 쓰지 않는다.
+     */
+    byte[] getDataToSignBytes() {
+        return BinaryCodec.encodeSigningData(this);
     }
     private String calculateHash() {
-        return CryptoUtil.hashSHA256(calculateDataToSign());
+        return Base64.getEncoder().encodeToString(CryptoUtil.sha256(getDataToSignBytes()));
     }
     
     public void signTransaction(PrivateKey privateKey) {
-        String dataToSign = calculateDataToSign();
-        this.signature = CryptoUtil.sign(privateKey, dataToSign);
+        this.signature = CryptoUtil.sign(privateKey, getDataToSignBytes());
     }
-    public Boolean verifySignature(PublicKey publicKey) {
-        if (!CryptoUtil.keyToString(publicKey).equals(this.senderPublicKey)) {
-            System.err.println("Verify Error: PublicKey is not equal.");
+    public boolean isCoinbase() { return senderPublicKey == null; }
+
+    /** transactionID가 내용의 hash와 일치하는지 확인 */
+    public boolean hasValidID() {
+        return hasValidID(getDataToSignBytes());
+    }
+
+    /** @param dataToSign getDataToSignBytes() 의 결과 */
+    boolean hasValidID(byte[] dataToSign) {
+        return transactionID != null && transactionID.equals(Base64.getEncoder().encodeToString(CryptoUtil.sha256(dataToSign)));
+    }
+
+    /** sender의 공개키가 publicKey 이고 서명이 유효한지 확인 */
+    public boolean verifySignature(PublicKey publicKey) {
+        PublicKey sender;
+        try {
+            // cache에서 디코딩한 sender 키와 비교한다. publicKey를 다시 Base64로 인코딩하지 않는다
+            sender = senderPublicKey == null ? null : CryptoUtil.stringToPublicKey(senderPublicKey);
+        } catch (RuntimeException e) {
+            sender = null;
+        }
+        if (!publicKey.equals(sender)) {
+            Log.warn("Verify Error: PublicKey is not equal.");
             return false;
         }
-        String dataToString = calculateDataToSign();
-        return CryptoUtil.verify(publicKey, dataToString, this.signature);
+        return CryptoUtil.verify(sender, getDataToSignBytes(), this.signature);
+    }
+
+    /** 대략적인 직렬화 크기 (bytes). mempool 메모리 계산과 블록 크기 제한에 사용 */
+    public int estimateSize() {
+        int size = Long.BYTES * 4;
+        size += transactionID == null ? 0 : transactionID.length();
+        size += senderPublicKey == null ? 0 : senderPublicKey.length();
+        size += recipientAddress == null ? 0 : recipientAddress.length();
+        size += data == null ? 0 : data.length();
+        size += signature == null ? 0 : signature.length;
+        return size;
     }
 
     public String getTransactionID() { return transactionID; }
     public String getSenderPublicKey() { return senderPublicKey; }
     public String getRecipientAddress() { return recipientAddress; }
     public String getData() { return data; }
+    public long getAmount() { return amount; }
+    public long getFee() { return fee; }
+    public long getNonce() { return nonce; }
     public long getTimestamp() { return timestamp; }
     public byte[] getSignature() { return signature; }
 }
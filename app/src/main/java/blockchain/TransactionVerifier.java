@@ -0,0 +1,165 @@
+package blockchain;
+
+import java.security.PublicKey;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Consumer;
+
+/**
+ * 네트워크에서 받은 트랜잭션의 서명을 worker pool에서 병렬로 검증한다.
+ * 받은 순서대로 batch로 묶어 worker 수만큼 나눠 처리하며, 각 worker는 CryptoUtil의
+ * thread별 Signature 객체를 재사용하고 sender 공개키는 PublicKeyCache에서 가져온다.
+ * 네트워크 handler thread는 submit()만 하고 서명 검증을 기다리지 않는다.
+ */
+public class TransactionVerifier {
+    public static final int MAX_PENDING = 100_000;
+    private static final int BATCH_SIZE = 256;
+
+    private final BlockingQueue<Pending> pending = new ArrayBlockingQueue<>(MAX_PENDING);
+    private final PublicKeyCache keyCache;
+    private final ExecutorService workers;
+    private final int workerCount;
+    private final Semaphore inFlight;
+
+    private final Metrics.Histogram verifyLatency;
+    private final Metrics.Counter verified;
+    private final Metrics.Counter rejected;
+    private final Metrics.Counter dropped;
+
+    private volatile boolean running = true;
+    private final Thread dispatcher;
+
+    private static class Pending {
+        private final Transaction tx;
+        private final Consumer<Transaction> onVerified;
+        private final Consumer<Transaction> onRejected;
+
+        Pending(Transaction tx, Consumer<Transaction> onVerified, Consumer<Transaction> onRejected) {
+            this.tx = tx;
+            this.onVerified = onVerified;
+            this.onRejected = onRejected;
+        }
+    }
+
+    public TransactionVerifier(int workerCount, PublicKeyCache keyCache, Metrics metrics) {
+        this.workerCount = workerCount;
+        this.keyCache = keyCache;
+        this.verifyLatency = metrics.histogram("tx_verify_seconds");
+        this.verified = metrics.counter("tx_verified_total");
+        this.rejected = metrics.counter("tx_rejected_total");
+        this.dropped = metrics.counter("tx_verify_dropped_total");
+        metrics.gauge("tx_verify_pending", pending::size);
+        this.inFlight = new Semaphore(workerCount * 2);
+        AtomicInteger threadNumber = new AtomicInteger();
+        this.workers = Executors.newFixedThreadPool(workerCount, r -> {
+            Thread t = new Thread(r, "tx-verifier-" + threadNumber.getAndIncrement());
+            t.setDaemon(true);
+            return t;
+        });
+        this.dispatcher = new Thread(this::dispatchLoop, "tx-verifier-dispatcher");
+        this.dispatcher.setDaemon(true);
+        this.dispatcher.start();
+    }
+
+    /**
+     * 검증 대기열에 트랜잭션을 넣는다. 서명이 유효하면 worker thread에서 onVerified가 호출된다.
+     * @return 대기열이 가득 차서 버렸으면 false
+     */
+    public boolean submit(Transaction tx, Consumer<Transaction> onVerified) {
+        return submit(tx, onVerified, null);
+    }
+
+    /** submit과 같지만 서명이나 ID가 틀리면 worker thread에서 onRejected가 호출된다 */
+    public boolean submit(Transaction tx, Consumer<Transaction> onVerified, Consumer<Transaction> onRejected) {
+        if (!pending.offer(new Pending(tx, onVerified, onRejected))) {
+            dropped.inc();
+            Log.limited(Log.Level.WARN, "verifier-queue-full", () -> "TransactionVerifier: queue full. Dropping TX " + tx.getTransactionID());
+            return false;
+        }
+        return true;
+    }
+
+    /** 현재 thread의 Signature 객체로 바로 검증한다. */
+    public boolean verify(Transaction tx) {
+        if (tx.getSenderPublicKey() == null || tx.getSignature() == null) {
+            return false;
+        }
+        byte[] data = tx.getDataToSignBytes();
+        if (!tx.hasValidID(data)) {
+            return false;
+        }
+        PublicKey key;
+        try {
+            key = keyCache.get(tx.getSenderPublicKey());
+        } catch (RuntimeException e) {
+            return false;
+        }
+        return CryptoUtil.verify(key, data, tx.getSignature());
+    }
+
+    public int getPendingCount() { return pending.size(); }
+
+    public void shutdown() {
+        running = false;
+        dispatcher.interrupt();
+        workers.shutdown();
+    }
+
+    private void dispatchLoop() {
+        List<Pending> batch = new ArrayList<>(BATCH_SIZE);
+        while (running) {
+            try {
+                batch.add(pending.take());
+                pending.drainTo(batch, BATCH_SIZE - 1);
+
+                int chunkSize = (batch.size() + workerCount - 1) / workerCount;
+                for (int from = 0; from < batch.size(); from += chunkSize) {
+                    List<Pending> chunk = new ArrayList<>(batch.subList(from, Math.min(from + chunkSize, batch.size())));
+                    inFlight.acquire();
+                    workers.execute(() -> {
+                        try {
+                            verifyChunk(chunk);
+                        } finally {
+                            inFlight.release();
+                        }
+                    });
+                }
+                batch.clear();
+            } catch (InterruptedException e) {
+                return;
+            }
+        }
+    }
+
+    private void verifyChunk(List<Pending> chunk) {
+        for (Pending p : chunk) {
+            long start = System.nanoTime();
+            boolean valid = verify(p.tx);
+            verifyLatency.recordSince(start);
+            if (valid) {
+                verified.inc();
+                try {
+                    p.onVerified.accept(p.tx);
+                } catch (Exception e) {
+                    Log.limited(Log.Level.ERROR, "verifier-callback", () -> "Error handling verified transaction: " + e.getMessage());
+                }
+            } else {
+                rejected.inc();
+                Log.limited(Log.Level.WARN, "verifier-invalid", () -> "TransactionVerifier: Signature verification failed. Dropping TX");
+                if (p.onRejected != null) {
+                    try {
+                        p.onRejected.accept(p.tx);
+                    } catch (Exception e) {
+                        Log.limited(Log.Level.ERROR, "verifier-callback", () -> "Error handling rejected transaction: " + e.getMessage());
+                    }
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,384 @@
+package blockchain;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Queue;
+import java.util.Set;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * selector 기반 non-blocking P2P transport.
+ * 모든 peer의 I/O는 하나의 selector thread가 처리하고, 받은 메시지는
+ * 고정 크기 handler pool에서 처리하므로 peer 수와 상관없이 platform thread 수가 일정하다.
+ *
+ * peer가 초당 receiveBytesPerSecond 보다 많이 보내거나 처리하지 못한 메시지가 Peer.MAX_INBOX_MESSAGES 만큼
+ * 쌓이면 그 peer의 socket은 읽지 않는다. TCP flow control로 보내는 쪽이 느려지고, 다른 peer의 처리에는 영향이 없다.
+ */
+public class Transport {
+    public static final int DEFAULT_RECEIVE_BYTES_PER_SECOND = 16 * 1024 * 1024;
+    // handler가 한 번에 처리하는 한 peer의 메시지 수. 넘으면 다른 peer에게 차례를 넘긴다
+    private static final int MAX_MESSAGES_PER_TURN = 64;
+    // 읽기를 멈춘 peer가 있을 때 budget이 다시 찼는지 확인하는 주기
+    private static final long THROTTLE_CHECK_MILLIS = 10;
+
+    private final Selector selector;
+    private final PeerManager peerManager;
+    private final Listener listener;
+    private final ExecutorService handlerPool;
+    private final Metrics metrics;
+    private final Metrics.Counter bytesIn;
+    private final Metrics.Counter bytesOut;
+    private final Metrics.Counter readThrottled;
+    private final int receiveBytesPerSecond;
+
+    private final Queue<Runnable> pendingTasks = new ConcurrentLinkedQueue<>();
+    private final List<ServerSocketChannel> servers = new CopyOnWriteArrayList<>();
+    // bytes budget을 다 써서 읽기를 멈춘 peer. selector thread만 사용한다
+    private final Set<Peer> throttled = new HashSet<>();
+    private volatile boolean running;
+
+    public interface Listener {
+        void onConnect(Peer peer);
+        void onMessage(Peer peer, byte[] message);
+        void onDisconnect(Peer peer);
+    }
+
+    public Transport(PeerManager peerManager, Listener listener, int handlerThreads, int receiveBytesPerSecond,
+                     Metrics metrics) throws IOException {
+        if (receiveBytesPerSecond < 1) {
+            throw new IllegalArgumentException("receiveBytesPerSecond must be >= 1");
+        }
+        this.selector = Selector.open();
+        this.peerManager = peerManager;
+        this.listener = listener;
+        this.metrics = metrics;
+        this.receiveBytesPerSecond = receiveBytesPerSecond;
+        this.bytesIn = metrics.counter("p2p_bytes_received_total");
+        this.bytesOut = metrics.counter("p2p_bytes_sent_total");
+        this.readThrottled = metrics.counter("p2p_read_throttled_total");
+        AtomicInteger threadNumber = new AtomicInteger();
+        this.handlerPool = Executors.newFixedThreadPool(handlerThreads, r -> {
+            Thread t = new Thread(r, "peer-handler-" + threadNumber.getAndIncrement());
+            t.setDaemon(true);
+            return t;
+        });
+    }
+
+    public synchronized void start() {
+        if (running) { return; }
+        running = true;
+        Thread thread = new Thread(this::selectLoop, "p2p-selector");
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    public void listen(int port) throws IOException {
+        ServerSocketChannel server = ServerSocketChannel.open();
+        server.bind(new InetSocketAddress(port));
+        server.configureBlocking(false);
+        servers.add(server);
+        runOnSelector(() -> {
+            try {
+                server.register(selector, SelectionKey.OP_ACCEPT);
+            } catch (IOException e) {
+                Log.error("Server Error: " + e.getMessage());
+            }
+        });
+    }
+
+    public Peer connect(String host, int port) throws IOException {
+        InetSocketAddress address = new InetSocketAddress(host, port);
+        if (peerManager.isBanned(address)) {
+            throw new IOException(address + " is banned");
+        }
+        SocketChannel channel = SocketChannel.open(address);
+        return register(channel);
+    }
+
+    /** peer에 쓸 데이터가 생겼음을 selector thread에 알린다. */
+    void requestWrite(Peer peer) {
+        runOnSelector(() -> {
+            SelectionKey key = peer.getKey();
+            if (key != null && key.isValid()) {
+                key.interestOps(key.interestOps() | SelectionKey.OP_WRITE);
+            }
+        });
+    }
+
+    public void close(Peer peer) {
+        // selector thread와 queue가 가득 찬 sender가 동시에 닫을 수 있다. 한 번만 정리한다
+        if (!peer.markClosed()) { return; }
+        peerManager.removePeer(peer);
+        for (String name : peerMetricNames(peer)) {
+            metrics.remove(name);
+        }
+        try {
+            peer.getChannel().close();
+        } catch (IOException e) {
+            Log.warn("Socket closed failed.");
+        }
+        Log.info("Peer disconnected: " + peer.getRemoteAddress());
+        listener.onDisconnect(peer);
+    }
+
+    /** 주소를 차단하고 연결을 끊는다. 이미 받은 이 peer의 메시지는 처리하지 않는다 */
+    void ban(Peer peer, String reason) {
+        boolean banned = peerManager.ban(peer.getRemoteAddress());
+        Log.warn("Peer " + peer + (banned ? " banned: " : " disconnected: ") + reason);
+        close(peer);
+    }
+
+    public void shutdown() {
+        shutdown(0);
+    }
+
+    /**
+     * 새 연결을 받지 않고, 처리 중인 메시지와 peer별 outbound queue가 비워질 때까지
+     * drainMillis 동안 기다린 뒤 모든 연결을 닫는다.
+     */
+    public void shutdown(long drainMillis) {
+        for (ServerSocketChannel server : servers) {
+            try {
+                server.close();
+            } catch (IOException e) {
+                Log.warn("Server socket close failed.");
+            }
+        }
+        long deadline = System.currentTimeMillis() + drainMillis;
+        handlerPool.shutdown();
+        try {
+            // handler가 보내는 응답까지 queue에 들어간 뒤 비워지기를 기다린다
+            handlerPool.awaitTermination(drainMillis, TimeUnit.MILLISECONDS);
+            while (running && System.currentTimeMillis() < deadline && hasPendingWrites()) {
+                Thread.sleep(10);
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        if (hasPendingWrites()) {
+            Log.warn("Transport: closing with unsent messages.");
+        }
+        running = false;
+        selector.wakeup();
+        for (Peer peer : peerManager.getPeers()) {
+            close(peer);
+        }
+    }
+
+    private boolean hasPendingWrites() {
+        for (Peer peer : peerManager.getPeers()) {
+            if (!peer.isClosed() && peer.hasPendingWrites()) { return true; }
+        }
+        return false;
+    }
+
+    private Peer register(SocketChannel channel) throws IOException {
+        channel.configureBlocking(false);
+        Peer peer = new Peer(channel, this, receiveBytesPerSecond);
+        runOnSelector(() -> {
+            try {
+                peer.setKey(channel.register(selector, SelectionKey.OP_READ, peer));
+                added(peer);
+            } catch (IOException e) {
+                close(peer);
+            }
+        });
+        return peer;
+    }
+
+    private void runOnSelector(Runnable task) {
+        pendingTasks.add(task);
+        selector.wakeup();
+    }
+
+    private void selectLoop() {
+        while (running) {
+            try {
+                if (throttled.isEmpty()) {
+                    selector.select();
+                } else {
+                    selector.select(THROTTLE_CHECK_MILLIS);
+                    resumeThrottled();
+                }
+                Runnable task;
+                while ((task = pendingTasks.poll()) != null) {
+                    task.run();
+                }
+                for (SelectionKey key : selector.selectedKeys()) {
+                    if (!key.isValid()) { continue; }
+                    if (key.isAcceptable()) {
+                        accept((ServerSocketChannel) key.channel());
+                        continue;
+                    }
+                    Peer peer = (Peer) key.attachment();
+                    try {
+                        if (key.isReadable()) { read(peer); }
+                        if (key.isValid() && key.isWritable()) { write(peer); }
+                    } catch (IOException e) {
+                        close(peer);
+                    }
+                }
+                selector.selectedKeys().clear();
+            } catch (IOException e) {
+                Log.error("Selector Error: " + e.getMessage());
+            }
+        }
+        try {
+            selector.close();
+        } catch (IOException e) {
+            Log.warn("Selector close failed.");
+        }
+    }
+
+    private void accept(ServerSocketChannel server) throws IOException {
+        SocketChannel channel = server.accept();
+        if (channel != null) {
+            if (peerManager.isBanned(channel.getRemoteAddress())) {
+                Log.limited(Log.Level.INFO, "banned-connect", () -> "Refused connection from banned address");
+                channel.close();
+                return;
+            }
+            channel.configureBlocking(false);
+            Peer peer = new Peer(channel, this, receiveBytesPerSecond);
+            peer.setKey(channel.register(selector, SelectionKey.OP_READ, peer));
+            added(peer);
+        }
+    }
+
+    private void added(Peer peer) {
+        peerManager.addPeer(peer);
+        String[] names = peerMetricNames(peer);
+        metrics.gauge(names[0], peer::getBytesReceived);
+        metrics.gauge(names[1], peer::getBytesSent);
+        metrics.gauge(names[2], peer::getOutboundQueueSize);
+        metrics.gauge(names[3], peer::getInboxSize);
+        Log.info("New peer added: " + peer.getRemoteAddress());
+        submit(() -> listener.onConnect(peer));
+    }
+
+    /** shutdown 중에 받은 메시지는 처리하지 않는다 */
+    private boolean submit(Runnable task) {
+        try {
+            handlerPool.execute(task);
+            return true;
+        } catch (RejectedExecutionException e) {
+            return false;
+        }
+    }
+
+    private static String[] peerMetricNames(Peer peer) {
+        return new String[] {
+            Metrics.name("p2p_peer_bytes_received", "peer", peer),
+            Metrics.name("p2p_peer_bytes_sent", "peer", peer),
+            Metrics.name("p2p_peer_outbound_queue", "peer", peer),
+            Metrics.name("p2p_peer_inbox", "peer", peer),
+        };
+    }
+
+    private void read(Peer peer) throws IOException {
+        long before = peer.getBytesReceived();
+        boolean open = peer.read();
+        long received = peer.getBytesReceived() - before;
+        bytesIn.add(received);
+        peer.getReceiveBudget().consume(received);
+        if (!open) {
+            close(peer);
+            return;
+        }
+        if (!peer.getInbox().isEmpty()) {
+            schedule(peer);
+        }
+        updateReadInterest(peer);
+    }
+
+    /**
+     * bytes budget이 남아 있고 inbox에 여유가 있을 때만 peer의 socket을 읽는다. selector thread에서만 호출한다.
+     * handler가 inbox를 비우는 것과 경쟁하므로 멈춘다고 표시한 뒤에 inbox 크기를 다시 본다.
+     */
+    private void updateReadInterest(Peer peer) {
+        SelectionKey key = peer.getKey();
+        if (peer.isClosed() || key == null || !key.isValid()) {
+            throttled.remove(peer);
+            return;
+        }
+        boolean overBudget = peer.getReceiveBudget().nanosUntilAvailable() > 0;
+        if (overBudget || peer.getInboxSize() >= Peer.MAX_INBOX_MESSAGES) {
+            if (!peer.isReadPaused()) {
+                peer.setReadPaused(true);
+                key.interestOps(key.interestOps() & ~SelectionKey.OP_READ);
+                if (overBudget) { readThrottled.inc(); }
+            }
+            if (overBudget) {
+                throttled.add(peer);
+                return;
+            }
+            if (peer.getInboxSize() >= Peer.MAX_INBOX_MESSAGES) { return; }
+        }
+        throttled.remove(peer);
+        if (peer.isReadPaused()) {
+            peer.setReadPaused(false);
+            key.interestOps(key.interestOps() | SelectionKey.OP_READ);
+        }
+    }
+
+    private void resumeThrottled() {
+        for (Peer peer : new ArrayList<>(throttled)) {
+            updateReadInterest(peer);
+        }
+    }
+
+    private void write(Peer peer) throws IOException {
+        long before = peer.getBytesSent();
+        boolean done = peer.flush();
+        bytesOut.add(peer.getBytesSent() - before);
+        if (done) {
+            SelectionKey key = peer.getKey();
+            key.interestOps(key.interestOps() & ~SelectionKey.OP_WRITE);
+            // interest를 끄는 사이에 새 메시지가 들어왔을 수 있다
+            if (peer.hasPendingWrites()) {
+                key.interestOps(key.interestOps() | SelectionKey.OP_WRITE);
+            }
+        }
+    }
+
+    /**
+     * peer의 inbox를 handler pool에서 순서대로 처리한다. 한 peer당 동시에 하나의 task만 실행되며,
+     * 메시지를 계속 보내는 peer가 handler thread를 차지하지 않도록 MAX_MESSAGES_PER_TURN 개마다 차례를 넘긴다.
+     */
+    private void schedule(Peer peer) {
+        if (!peer.getProcessing().compareAndSet(false, true)) { return; }
+        boolean submitted = submit(() -> {
+            try {
+                byte[] message;
+                int processed = 0;
+                while (processed++ < MAX_MESSAGES_PER_TURN && (message = peer.getInbox().poll()) != null) {
+                    listener.onMessage(peer, message);
+                }
+            } finally {
+                peer.getProcessing().set(false);
+            }
+            if (peer.isReadPaused()) {
+                runOnSelector(() -> updateReadInterest(peer));
+            }
+            if (!peer.getInbox().isEmpty()) {
+                schedule(peer);
+            }
+        });
+        if (!submitted) {
+            peer.getProcessing().set(false);
+        }
+    }
+}
@@ -0,0 +1,329 @@
+package blockchain;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * main chain 트랜잭션의 secondary index. transaction ID와 주소(sender, recipient)로
+ * 트랜잭션이 있는 위치(height, 블록 안의 순서)를 체인 길이와 상관없이 O(1)에 찾는다.
+ *
+ * 위치는 (height << POSITION_BITS) | position 으로 묶은 long이며 주소별 목록은 오름차순이다.
+ * 블록은 tip에만 붙고 tip에서만 떨어지므로 disconnect는 목록의 꼬리를 잘라내는 것으로 충분하다.
+ *
+ * txindex.dat : 연결된 블록마다 [length][height][block hash]{[tx ID][sender][recipient]} record를 이어 붙인 파일.
+ *               disconnect 하면 그 블록의 record부터 잘라낸다. 재시작 시 이 파일만 읽어 index를 만들고,
+ *               BlockStore와 어긋난 꼬리는 버린 뒤 빠진 블록을 다시 index 한다.
+ *
+ * 본문이 없는 블록(snapshot 이전, prune 된 뒤 처음 만드는 index)은 index 할 수 없으므로
+ * getIndexedFrom() 이전의 트랜잭션은 찾지 못한다.
+ */
+public class TxIndex implements Closeable {
+    static final int POSITION_BITS = 24;
+    private static final long POSITION_MASK = (1L << POSITION_BITS) - 1;
+    private static final int RECORD_HEADER = Long.BYTES + CryptoUtil.HASH_SIZE;
+    public static final int MAX_PAGE_SIZE = 1000;
+
+    /** 찾은 트랜잭션과 그 위치 */
+    public static class Entry {
+        // 블록 본문이 prune 되었으면 null
+        public Transaction transaction;
+        public String blockHash;
+        public long height;
+        public int position;
+        public long confirmations;
+    }
+
+    /** 주소별 트랜잭션 목록의 한 page. 최신 것부터 */
+    public static class Page {
+        public List<Entry> transactions;
+        // 주소의 전체 트랜잭션 수
+        public int total;
+        // 다음 page를 받을 cursor. 0이면 마지막 page
+        public long nextCursor;
+    }
+
+    private final FileChannel file;
+    // tx ID -> 위치
+    private final Map<String, Long> locations = new HashMap<>();
+    // 주소 -> 그 주소가 sender 또는 recipient인 트랜잭션 위치, 오름차순
+    private final Map<String, LocationList> byAddress = new HashMap<>();
+    // 파일에 있는 record의 height와 시작 위치, 오름차순
+    private final LocationList recordHeights = new LocationList();
+    private final LocationList recordOffsets = new LocationList();
+    private long indexedFrom = -1;
+
+    public TxIndex(Path dir) throws IOException {
+        Files.createDirectories(dir);
+        this.file = FileChannel.open(dir.resolve("txindex.dat"),
+                StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+        load();
+    }
+
+    /** 파일의 record를 순서대로 읽는다. 마지막 쓰기가 중간에 끊겼으면 그 record부터 잘라낸다. */
+    private void load() throws IOException {
+        long size = file.size();
+        long position = 0;
+        ByteBuffer length = ByteBuffer.allocate(Integer.BYTES);
+        while (position + Integer.BYTES <= size) {
+            length.clear();
+            readFully(length, position);
+            int recordLength = length.flip().getInt();
+            if (recordLength < RECORD_HEADER || position + Integer.BYTES + recordLength > size) { break; }
+            ByteBuffer record = ByteBuffer.allocate(recordLength);
+            readFully(record, position + Integer.BYTES);
+            try {
+                apply(record.flip(), position);
+            } catch (IllegalArgumentException | BufferUnderflowException e) {
+                Log.warn("TxIndex: corrupt record at offset " + position + ". Truncating.");
+                break;
+            }
+            position += Integer.BYTES + recordLength;
+        }
+        if (position < size) {
+            file.truncate(position);
+        }
+    }
+
+    /**
+     * 저장소의 main chain과 맞춘다. 저장소에 없거나 hash가 다른 꼬리 record는 버리고
+     * 본문이 있는 빠진 블록을 index 한다.
+     */
+    synchronized void sync(BlockStore store) throws IOException {
+        while (!recordHeights.isEmpty()) {
+            long height = recordHeights.last();
+            if (height < store.size() && Arrays.equals(readRecordHash(recordHeights.size() - 1),
+                    CryptoUtil.decodeHash(store.getHash(height)))) {
+                break;
+            }
+            truncateLast();
+        }
+        long next = recordHeights.isEmpty() ? 0 : recordHeights.last() + 1;
+        if (next < store.getFirstBodyHeight()) {
+            if (next > 0) {
+                Log.warn("TxIndex: blocks #" + next + " - #" + (store.getFirstBodyHeight() - 1) + " are pruned and cannot be indexed.");
+            }
+            next = store.getFirstBodyHeight();
+        }
+        if (next < store.size()) {
+            Log.info("TxIndex: indexing blocks #" + next + " to #" + (store.size() - 1));
+        }
+        for (long height = next; height < store.size(); height++) {
+            connect(store.read(height));
+        }
+    }
+
+    synchronized void connect(Block block) throws IOException {
+        long height = block.getHeader().getNumber();
+        List<Transaction> txs = block.getTransactions();
+        List<byte[]> fields = new ArrayList<>(txs.size() * 3);
+        int recordLength = RECORD_HEADER;
+        for (Transaction tx : txs) {
+            for (String value : new String[] {tx.getTransactionID(), tx.getSenderPublicKey(), tx.getRecipientAddress()}) {
+                byte[] bytes = value == null ? null : value.getBytes(StandardCharsets.UTF_8);
+                // 검증을 통과한 블록에는 이렇게 긴 값이 없다. 있다면 index 하지 않는다
+                if (bytes != null && bytes.length > Short.MAX_VALUE) { bytes = null; }
+                fields.add(bytes);
+                recordLength += Short.BYTES + (bytes == null ? 0 : bytes.length);
+            }
+        }
+        ByteBuffer record = ByteBuffer.allocate(Integer.BYTES + recordLength);
+        record.putInt(recordLength).putLong(height).put(CryptoUtil.decodeHash(block.getHash()));
+        for (byte[] bytes : fields) {
+            if (bytes == null) {
+                record.putShort((short) -1);
+            } else {
+                record.putShort((short) bytes.length).put(bytes);
+            }
+        }
+        record.flip();
+
+        long offset = file.size();
+        ByteBuffer write = record.duplicate();
+        for (long position = offset; write.hasRemaining(); ) {
+            position += file.write(write, position);
+        }
+        apply(record.position(Integer.BYTES), offset);
+    }
+
+    /** tip 블록을 떼어 낸다. disconnect 순서는 항상 tip부터이다 */
+    synchronized void disconnect(Block block) throws IOException {
+        if (recordHeights.isEmpty() || recordHeights.last() != block.getHeader().getNumber()) {
+            return;
+        }
+        truncateLast();
+    }
+
+    /** record 하나를 메모리 index에 반영한다. record는 length 뒤부터 읽는다 */
+    private void apply(ByteBuffer record, long offset) {
+        long height = record.getLong();
+        record.position(record.position() + CryptoUtil.HASH_SIZE);
+        if (!recordHeights.isEmpty() && height <= recordHeights.last()) {
+            throw new IllegalArgumentException("TxIndex record #" + height + " is out of order");
+        }
+        String[] fields = readFields(record);
+        for (int position = 0; position < fields.length / 3; position++) {
+            long location = (height << POSITION_BITS) | position;
+            String id = fields[position * 3];
+            String sender = fields[position * 3 + 1];
+            String recipient = fields[position * 3 + 2];
+            if (id != null) { locations.put(id, location); }
+            addAddress(sender, location);
+            if (recipient != null && !recipient.equals(sender)) { addAddress(recipient, location); }
+        }
+        recordHeights.add(height);
+        recordOffsets.add(offset);
+        if (indexedFrom < 0) { indexedFrom = height; }
+    }
+
+    private void addAddress(String address, long location) {
+        if (address != null) {
+            byAddress.computeIfAbsent(address, a -> new LocationList()).add(location);
+        }
+    }
+
+    /** 마지막 record를 파일과 메모리에서 지운다. 메모리 index는 record의 내용으로 되돌린다 */
+    private void truncateLast() throws IOException {
+        int last = recordHeights.size() - 1;
+        long offset = recordOffsets.get(last);
+        long height = recordHeights.get(last);
+        ByteBuffer record = ByteBuffer.allocate((int) (file.size() - offset));
+        readFully(record, offset);
+        record.flip().position(Integer.BYTES + RECORD_HEADER);
+        String[] fields = readFields(record);
+        // 주소별 목록의 꼬리부터 지우므로 뒤의 트랜잭션부터 되돌린다
+        for (int position = fields.length / 3 - 1; position >= 0; position--) {
+            long location = (height << POSITION_BITS) | position;
+            String id = fields[position * 3];
+            String sender = fields[position * 3 + 1];
+            String recipient = fields[position * 3 + 2];
+            if (id != null) { locations.remove(id, location); }
+            if (recipient != null && !recipient.equals(sender)) { removeAddress(recipient, location); }
+            removeAddress(sender, location);
+        }
+        file.truncate(offset);
+        recordHeights.removeLast();
+        recordOffsets.removeLast();
+        if (recordHeights.isEmpty()) { indexedFrom = -1; }
+    }
+
+    private void removeAddress(String address, long location) {
+        if (address == null) { return; }
+        LocationList list = byAddress.get(address);
+        if (list != null && !list.isEmpty() && list.last() == location) {
+            list.removeLast();
+            if (list.isEmpty()) { byAddress.remove(address); }
+        }
+    }
+
+    private byte[] readRecordHash(int record) throws IOException {
+        ByteBuffer hash = ByteBuffer.allocate(CryptoUtil.HASH_SIZE);
+        readFully(hash, recordOffsets.get(record) + Integer.BYTES + Long.BYTES);
+        return hash.array();
+    }
+
+    /** @return 트랜잭션의 위치. index에 없으면 -1 */
+    public synchronized long find(String transactionId) {
+        return locations.getOrDefault(transactionId, -1L);
+    }
+
+    /**
+     * address가 sender 또는 recipient인 트랜잭션 위치를 최신 것부터 돌려준다.
+     * @param before 이 위치보다 앞의 것만. 처음 page는 Long.MAX_VALUE
+     */
+    public synchronized long[] findByAddress(String address, long before, int limit) {
+        LocationList list = byAddress.get(address);
+        if (list == null) { return new long[0]; }
+        int end = list.lowerBound(before);
+        int start = Math.max(0, end - limit);
+        long[] page = new long[end - start];
+        for (int i = 0; i < page.length; i++) {
+            page[i] = list.get(end - 1 - i);
+        }
+        return page;
+    }
+
+    public synchronized int countByAddress(String address) {
+        LocationList list = byAddress.get(address);
+        return list == null ? 0 : list.size();
+    }
+
+    /** index 된 가장 낮은 height. 아직 아무 블록도 없으면 -1 */
+    public synchronized long getIndexedFrom() { return indexedFrom; }
+    public synchronized int getTransactionCount() { return locations.size(); }
+    public synchronized int getAddressCount() { return byAddress.size(); }
+
+    public static long height(long location) { return location >>> POSITION_BITS; }
+    public static int position(long location) { return (int) (location & POSITION_MASK); }
+
+    @Override
+    public synchronized void close() throws IOException {
+        file.force(true);
+        file.close();
+    }
+
+    private void readFully(ByteBuffer buffer, long position) throws IOException {
+        while (buffer.hasRemaining()) {
+            if (file.read(buffer, position + buffer.position()) < 0) {
+                throw new IOException("Unexpected end of txindex.dat at " + position);
+            }
+        }
+    }
+
+    /** record의 나머지를 [tx ID, sender, recipient] 순서의 배열로 읽는다 */
+    private static String[] readFields(ByteBuffer record) {
+        List<String> fields = new ArrayList<>();
+        while (record.hasRemaining()) {
+            fields.add(readString(record));
+        }
+        if (fields.size() % 3 != 0) {
+            throw new IllegalArgumentException("Incomplete transaction entry in TxIndex record");
+        }
+        return fields.toArray(new String[0]);
+    }
+
+    private static String readString(ByteBuffer in) {
+        short length = in.getShort();
+        if (length == -1) { return null; }
+        if (length < 0 || length > in.remaining()) {
+            throw new IllegalArgumentException("Invalid string length " + length);
+        }
+        byte[] bytes = new byte[length];
+        in.get(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    /** 정렬된 long의 가변 배열. 주소별 목록마다 Long 객체를 만들지 않기 위해 쓴다 */
+    private static final class LocationList {
+        private long[] values = new long[2];
+        private int size;
+
+        void add(long value) {
+            if (size == values.length) { values = Arrays.copyOf(values, size * 2); }
+            values[size++] = value;
+        }
+
+        long get(int i) { return values[i]; }
+        long last() { return values[size - 1]; }
+        void removeLast() { size--; }
+        int size() { return size; }
+        boolean isEmpty() { return size == 0; }
+
+        /** @return value 미만인 원소의 수 */
+        int lowerBound(long value) {
+            int index = Arrays.binarySearch(values, 0, size, value);
+            return index >= 0 ? index : -index - 1;
+        }
+    }
+}
@@ -1,11 +1,23 @@
 package blockchain;
 
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.attribute.PosixFilePermissions;
+import java.security.GeneralSecurityException;
+import java.security.KeyFactory;
 import java.security.KeyPair;
 import java.security.KeyPairGenerator;
 import java.security.PrivateKey;
 import java.security.PublicKey;
 import java.security.SecureRandom;
 import java.security.spec.ECGenParameterSpec;
+import java.security.spec.PKCS8EncodedKeySpec;
+import java.security.spec.X509EncodedKeySpec;
+import java.util.Base64;
+import java.util.List;
 
 public class Wallet {
     private PrivateKey privateKey;
@@ -15,6 +27,46 @@ public class Wallet {
         generateKeyPair();
     }
 
+    private Wallet(PrivateKey privateKey, PublicKey publicKey) {
+        this.privateKey = privateKey;
+        this.publicKey = publicKey;
+    }
+
+    /**
+     * file에 저장된 key pair를 읽는다. 없으면 새로 만들어 저장한다.
+     * 재시작해도 채굴 보상을 받는 주소가 바뀌지 않도록 daemon에서 사용한다.
+     * file은 [Base64 PKCS#8 private key], [Base64 X.509 public key] 두 줄이다.
+     */
+    public static Wallet loadOrCreate(Path file) throws IOException {
+        if (Files.exists(file)) {
+            List<String> lines = Files.readAllLines(file, StandardCharsets.UTF_8);
+            if (lines.size() < 2) {
+                throw new IOException("Invalid wallet file: " + file);
+            }
+            try {
+                KeyFactory keyFactory = KeyFactory.getInstance("EC");
+                return new Wallet(
+                        keyFactory.generatePrivate(new PKCS8EncodedKeySpec(Base64.getDecoder().decode(lines.get(0).trim()))),
+                        keyFactory.generatePublic(new X509EncodedKeySpec(Base64.getDecoder().decode(lines.get(1).trim()))));
+            } catch (GeneralSecurityException | IllegalArgumentException e) {
+                throw new IOException("Invalid wallet file: " + file, e);
+            }
+        }
+        Wallet wallet = new Wallet();
+        Path parent = file.toAbsolutePath().getParent();
+        Files.createDirectories(parent);
+        Path tmp = file.resolveSibling(file.getFileName() + ".tmp");
+        Files.write(tmp, List.of(Base64.getEncoder().encodeToString(wallet.privateKey.getEncoded()),
+                CryptoUtil.keyToString(wallet.publicKey)), StandardCharsets.UTF_8);
+        try {
+            Files.setPosixFilePermissions(tmp, PosixFilePermissions.fromString("rw-------"));
+        } catch (UnsupportedOperationException e) {
+            // POSIX 권한이 없는 file system (Windows)
+        }
+        Files.move(tmp, file, StandardCopyOption.REPLACE_EXISTING);
+        return wallet;
+    }
+
     private void generateKeyPair() {
         try {
             KeyPairGenerator kpg = KeyPairGenerator.getInstance("EC");
@@ -0,0 +1,217 @@
+package blockchain;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+
+import com.google.gson.Gson;
+
+/**
+ * P2P 메시지 인코딩.
+ *
+ * BINARY : [magic(1)][version(1)][type(1)][length(4)][payload] 형태의 length-prefixed frame
+ * PACKED : BINARY와 같은 frame에 version이 PACKED_VERSION이며, TX/BLOCK의 payload는 BinaryCodec으로 인코딩한다
+ * JSON   : 한 줄에 하나씩 보내는 MessageWrapper JSON (이전 버전 노드와의 호환용)
+ *
+ * 수신 측은 메시지의 첫 바이트와 frame version으로 encoding을 구분하므로 한 연결에서 여러 형식이 섞여도 된다.
+ * 연결 직후 HELLO를 JSON으로 교환하고, 양쪽이 지원하는 것 중 PACKED, BINARY 순서로 골라 보낸다.
+ *
+ * 메시지 종류마다 최대 크기가 있다 (maxMessageSize). binary frame은 header만 보고 본문을 받기 전에,
+ * JSON 줄은 peekType으로 종류를 알아낸 뒤 파싱하기 전에 검사한다.
+ */
+public class WireProtocol {
+    public static final byte MAGIC = (byte) 0xB1;
+    public static final byte VERSION = 1;
+    public static final byte PACKED_VERSION = 2;
+    public static final int HEADER_SIZE = 1 + 1 + 1 + Integer.BYTES;
+
+    public enum Encoding { JSON, BINARY, PACKED }
+
+    private static final Gson gson = new Gson();
+
+    // JSON encoding은 항상 type field부터 쓴다 (MessageWrapper의 field 순서)
+    private static final byte[] JSON_TYPE_PREFIX = "{\"type\":\"".getBytes(StandardCharsets.UTF_8);
+    private static final int MAX_TYPE_NAME_LENGTH = 16;
+
+    public static class Hello {
+        public int version;
+        public List<Encoding> encodings;
+        // 본문을 보낼 수 있는 가장 낮은 height. prune 했거나 snapshot에서 시작한 노드는 0보다 크다
+        public long firstBlock;
+
+        public Hello(int version, List<Encoding> encodings, long firstBlock) {
+            this.version = version;
+            this.encodings = encodings;
+            this.firstBlock = firstBlock;
+        }
+    }
+
+    public static MessageWrapper hello(Encoding preferred, long firstBlock) {
+        List<Encoding> encodings = switch (preferred) {
+            case PACKED -> List.of(Encoding.PACKED, Encoding.BINARY, Encoding.JSON);
+            case BINARY -> List.of(Encoding.BINARY, Encoding.JSON);
+            case JSON -> List.of(Encoding.JSON);
+        };
+        return new MessageWrapper(MessageWrapper.MessageType.HELLO, gson.toJson(new Hello(VERSION, encodings, firstBlock)));
+    }
+
+    public static Hello parseHello(MessageWrapper msg) {
+        return gson.fromJson(msg.jsonData, Hello.class);
+    }
+
+    /** 메시지를 encoding 형식으로 인코딩한다. 같은 메시지를 여러 peer에 보낼 때를 위해 결과를 캐시한다. */
+    public static ByteBuffer encode(MessageWrapper msg, Encoding encoding) {
+        ByteBuffer cached = msg.getEncoded(encoding);
+        if (cached != null) { return cached; }
+
+        ByteBuffer bytes;
+        if (encoding == Encoding.PACKED) {
+            ByteBuffer payload = msg.getPackedPayload();
+            bytes = ByteBuffer.allocate(HEADER_SIZE + payload.remaining());
+            bytes.put(MAGIC).put(PACKED_VERSION).put((byte) msg.type.ordinal()).putInt(payload.remaining()).put(payload);
+            bytes.flip();
+        } else if (encoding == Encoding.BINARY) {
+            byte[] payload = msg.getPayload();
+            bytes = ByteBuffer.allocate(HEADER_SIZE + payload.length);
+            bytes.put(MAGIC).put(VERSION).put((byte) msg.type.ordinal()).putInt(payload.length).put(payload);
+            bytes.flip();
+        } else {
+            msg.getJsonData();
+            bytes = ByteBuffer.wrap((gson.toJson(msg) + "\n").getBytes(StandardCharsets.UTF_8));
+        }
+        bytes = bytes.asReadOnlyBuffer();
+        msg.setEncoded(encoding, bytes);
+        return bytes;
+    }
+
+    /**
+     * Peer.read가 잘라낸 메시지 하나를 디코딩한다.
+     * @param raw binary frame 전체, 또는 줄바꿈을 제외한 JSON 한 줄
+     * @return type을 알 수 없으면 type이 null인 메시지
+     */
+    public static MessageWrapper decode(byte[] raw) {
+        if (raw.length > 0 && raw[0] == MAGIC) {
+            ByteBuffer frame = ByteBuffer.wrap(raw);
+            frame.get();
+            byte version = frame.get();
+            int typeCode = frame.get() & 0xff;
+            int length = frame.getInt();
+
+            MessageWrapper msg = new MessageWrapper();
+            MessageWrapper.MessageType[] types = MessageWrapper.MessageType.values();
+            if ((version != VERSION && version != PACKED_VERSION) || typeCode >= types.length || length != raw.length - HEADER_SIZE) {
+                return msg;
+            }
+            MessageWrapper.MessageType type = types[typeCode];
+            if (version == PACKED_VERSION && MessageWrapper.hasBinaryBody(type)) {
+                // 본문은 필요할 때 디코딩한다. relay 할 때는 받은 frame을 그대로 보낸다
+                msg = MessageWrapper.binary(type, ByteBuffer.wrap(raw, HEADER_SIZE, length).slice().asReadOnlyBuffer());
+            } else {
+                msg.type = type;
+                msg.jsonData = new String(raw, HEADER_SIZE, length, StandardCharsets.UTF_8);
+            }
+            msg.setEncoded(version == PACKED_VERSION ? Encoding.PACKED : Encoding.BINARY, ByteBuffer.wrap(raw).asReadOnlyBuffer());
+            return msg;
+        }
+
+        String line = new String(raw, StandardCharsets.UTF_8);
+        MessageWrapper msg = gson.fromJson(line, MessageWrapper.class);
+        if (msg != null) {
+            msg.setEncoded(Encoding.JSON, ByteBuffer.wrap((line + "\n").getBytes(StandardCharsets.UTF_8)).asReadOnlyBuffer());
+        }
+        return msg;
+    }
+
+    /**
+     * 종류별 메시지 최대 크기 (binary frame은 header 포함, JSON은 한 줄).
+     * 요청과 알림은 작고, 블록을 담는 메시지만 Peer.MAX_MESSAGE_SIZE 까지 허용한다.
+     */
+    public static int maxMessageSize(MessageWrapper.MessageType type) {
+        return switch (type) {
+            case HELLO -> 4 * 1024;
+            case GETHEADERS, GETBLOCKS -> 64 * 1024;
+            case TX, INV, GETDATA -> 256 * 1024;
+            case GETBLOCKTXN -> 1024 * 1024;
+            case HEADERS, CMPCTBLOCK -> 4 * 1024 * 1024;
+            case BLOCK, BLOCKS, BLOCKTXN -> Peer.MAX_MESSAGE_SIZE;
+        };
+    }
+
+    /**
+     * 메시지를 파싱하지 않고 종류만 알아낸다. binary frame은 header의 type 코드,
+     * JSON 줄은 앞부분의 "type" field를 본다.
+     * @return 알 수 없는 형식이거나 type이 맨 앞에 없는 JSON이면 null
+     */
+    public static MessageWrapper.MessageType peekType(byte[] raw) {
+        MessageWrapper.MessageType[] types = MessageWrapper.MessageType.values();
+        if (raw.length > 0 && raw[0] == MAGIC) {
+            if (raw.length < HEADER_SIZE) { return null; }
+            int typeCode = raw[2] & 0xff;
+            return typeCode < types.length ? types[typeCode] : null;
+        }
+        if (raw.length < JSON_TYPE_PREFIX.length) { return null; }
+        for (int i = 0; i < JSON_TYPE_PREFIX.length; i++) {
+            if (raw[i] != JSON_TYPE_PREFIX[i]) { return null; }
+        }
+        int end = JSON_TYPE_PREFIX.length;
+        while (end < raw.length && raw[end] != '"') {
+            if (end - JSON_TYPE_PREFIX.length >= MAX_TYPE_NAME_LENGTH) { return null; }
+            end++;
+        }
+        if (end >= raw.length) { return null; }
+        String name = new String(raw, JSON_TYPE_PREFIX.length, end - JSON_TYPE_PREFIX.length, StandardCharsets.US_ASCII);
+        for (MessageWrapper.MessageType type : types) {
+            if (type.name().equals(name)) { return type; }
+        }
+        return null;
+    }
+
+    /**
+     * buffer의 position부터 완성된 메시지 하나의 길이를 구한다.
+     * JSON 줄의 경우 줄바꿈 문자를 포함한 길이를 반환한다.
+     * binary frame의 길이가 maxMessageSize나 그 종류의 최대 크기를 넘으면 본문을 받기 전에 예외를 던진다.
+     * JSON 줄은 앞부분에서 type을 읽을 수 있으면 그 종류의 최대 크기를 넘는 순간, 줄바꿈을 기다리지 않고 예외를 던진다.
+     * @param scanned JSON 줄에서 이전 호출 때 이미 줄바꿈이 없다고 확인한 bytes 수.
+     *                긴 줄이 조금씩 도착할 때 처음부터 다시 찾지 않는다
+     * @return 아직 데이터가 모자라면 -1
+     */
+    static int nextMessageLength(ByteBuffer buffer, int maxMessageSize, int scanned) {
+        int start = buffer.position();
+        int available = buffer.remaining();
+        if (available == 0) { return -1; }
+
+        if (buffer.get(start) == MAGIC) {
+            if (available < HEADER_SIZE) { return -1; }
+            int typeCode = buffer.get(start + 2) & 0xff;
+            int length = buffer.getInt(start + 3);
+            MessageWrapper.MessageType[] types = MessageWrapper.MessageType.values();
+            int limit = typeCode < types.length ? Math.min(maxMessageSize, maxMessageSize(types[typeCode]) - HEADER_SIZE) : maxMessageSize;
+            if (length < 0 || length > limit) {
+                throw new IllegalStateException("Frame length " + length + " exceeds limit");
+            }
+            return available >= HEADER_SIZE + length ? HEADER_SIZE + length : -1;
+        }
+
+        int limit = jsonLineLimit(buffer, maxMessageSize);
+        for (int i = start + Math.min(scanned, available); i < buffer.limit(); i++) {
+            if (buffer.get(i) == '\n') {
+                if (i - start > limit) {
+                    throw new IllegalStateException("Line length " + (i - start) + " exceeds limit");
+                }
+                return i - start + 1;
+            }
+        }
+        if (available > limit) {
+            throw new IllegalStateException("Line length exceeds " + limit + " bytes");
+        }
+        return -1;
+    }
+
+    /** 줄바꿈을 뺀 JSON 줄의 최대 길이. type을 아직 읽을 수 없거나 알 수 없는 type이면 maxMessageSize */
+    private static int jsonLineLimit(ByteBuffer buffer, int maxMessageSize) {
+        byte[] head = new byte[Math.min(buffer.remaining(), JSON_TYPE_PREFIX.length + MAX_TYPE_NAME_LENGTH + 1)];
+        buffer.get(buffer.position(), head);
+        MessageWrapper.MessageType type = peekType(head);
+        return type == null ? maxMessageSize : Math.min(maxMessageSize, maxMessageSize(type));
+    }
+}